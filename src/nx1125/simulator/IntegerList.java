@@ -1,5 +1,11 @@
 package nx1125.simulator;
 
+import java.util.Arrays;
+
+/**
+ * A list of primitive integers. Unlike a {@code List<Integer>}, reading the list or walking
+ * through it with {@link #get(int)} does not allocate any object.
+ */
 public class IntegerList {
 
     private static final int INCREASE_CAPACITY = 10;
@@ -25,25 +31,84 @@ public class IntegerList {
     }
 
     public void add(int value) {
+        ensureIncrementCapacity();
+
+        mArray[mLength++] = value;
+    }
+
+    public int get(int index) {
+        if (index >= mLength) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mLength);
+        }
+
+        return mArray[index];
+    }
+
+    public int size() {
+        return mLength;
+    }
+
+    public boolean isEmpty() {
+        return mLength == 0;
+    }
+
+    public int indexOf(int value) {
+        for (int i = 0; i < mLength; i++) {
+            if (mArray[i] == value) return i;
+        }
+
+        return -1;
+    }
+
+    public boolean contains(int value) {
+        return indexOf(value) >= 0;
+    }
+
+    /**
+     * Remove the first occurrence of the value and return {@code true} if it was in the list.
+     */
+    public boolean removeValue(int value) {
+        int index = indexOf(value);
+
+        if (index < 0) return false;
+
+        removeAt(index);
+
+        return true;
+    }
+
+    public int removeAt(int index) {
+        int value = get(index);
+
+        System.arraycopy(mArray, index + 1, mArray, index, mLength - index - 1);
+
+        mLength--;
+
+        return value;
+    }
+
+    public void clear() {
+        mLength = 0;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(mArray, mLength);
     }
 
     private void ensureCapacity(int capacity) {
-        if (capacity < mArray.length) {
+        if (capacity > mArray.length) {
             int[] newArray = new int[capacity];
 
-            System.arraycopy(mArray, 0, newArray, 0, mArray.length);
+            System.arraycopy(mArray, 0, newArray, 0, mLength);
 
             mArray = newArray;
         }
     }
 
     private void ensureIncrementCapacity() {
-        if (mLength + 1 >= mArray.length) {
-
+        if (mLength + 1 > mArray.length) {
+            // doubling keeps the cost of adding constant even for long lists
+            ensureCapacity(Math.max(mArray.length * 2, mArray.length + INCREASE_CAPACITY));
         }
     }
-
-    private void copyArray() {
-
-    }
 }
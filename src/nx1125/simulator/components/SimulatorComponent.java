@@ -82,6 +82,14 @@ public class SimulatorComponent extends CartesianComponent {
         mPlanetStateArray = states;
     }
 
+    /**
+     * Return the count of states to draw, which is less than the count of planets after some
+     * planets merged.
+     */
+    private int getStateCount() {
+        return Math.min(mPlanetCount, mPlanetStateArray.length);
+    }
+
     public int getPlanetIndexAt(int pixelX, int pixelY) {
         setCachedPointArray(pixelX, pixelY);
         invert(mCachedClickPointToInverseTransform);
@@ -95,7 +103,7 @@ public class SimulatorComponent extends CartesianComponent {
         PlanetState closestState = null;
         int closestStateIndex = 0;
 
-        for (int i = 0; i < mPlanetCount; i++) {
+        for (int i = 0; i < getStateCount(); i++) {
             PlanetState s = mPlanetStateArray[i];
 
             float d = s.distanceSqr(x, y);
@@ -108,7 +116,7 @@ public class SimulatorComponent extends CartesianComponent {
         }
 
         if (closestState != null) {
-            float r = mPlanetArray[closestStateIndex].getRadius() + TOLERANCE_CLICK / getCartesianScale();
+            float r = (float) closestState.radius + TOLERANCE_CLICK / getCartesianScale();
 
             if (closestDistanceSqr <= r * r) {
                 return closestStateIndex;
@@ -131,7 +139,8 @@ public class SimulatorComponent extends CartesianComponent {
             System.out.println("Clicked planet index: " + mReleasedPlanetIndex);
 
             if (mReleasedPlanetIndex != -1) {
-                mOnPlanetClickedListener.onPlanetClicked(mReleasedPlanetIndex, mPlanetArray[mReleasedPlanetIndex]);
+                mOnPlanetClickedListener.onPlanetClicked(mReleasedPlanetIndex,
+                        mPlanetArray[mPlanetStateArray[mReleasedPlanetIndex].id]);
             } else {
                 super.onMouseClicked(e);
             }
@@ -213,7 +222,7 @@ public class SimulatorComponent extends CartesianComponent {
         if (mPlanetStateArray != null && mPlanetArray != null) {
             PlanetState state = mPlanetStateArray[0];
 
-            float r = mPlanetArray[0].getRadius();
+            float r = (float) state.radius;
 
             //mRect.set((float) state.x - r, (float) state.y - r, (float) state.x + r, (float) state.y + r);
 
@@ -222,9 +231,9 @@ public class SimulatorComponent extends CartesianComponent {
             float top = (float) state.y - r;
             float bottom = (float) state.y + r;
 
-            for (int i = 1; i < mPlanetCount; i++) {
+            for (int i = 1; i < getStateCount(); i++) {
                 state = mPlanetStateArray[i];
-                r = mPlanetArray[i].getRadius();
+                r = (float) state.radius;
 
                 //mRect.union((float) state.x - r, (float) state.y - r, (float) state.x + r, (float) state.y + r);
 
@@ -315,7 +324,7 @@ public class SimulatorComponent extends CartesianComponent {
     private void prepareCircumferenceArray(AffineTransform matrix) {
         // long time = System.currentTimeMillis();
 
-        for (int i = 0, k = 0; i < mPlanetCount; i++) {
+        for (int i = 0, k = 0; i < getStateCount(); i++) {
             PlanetState state = mPlanetStateArray[i];
 
             mTransformArray[k++] = (float) state.x;
@@ -333,8 +342,8 @@ public class SimulatorComponent extends CartesianComponent {
         float scale = getCartesianScale();
 
         // compute each bounds because it will be used twice
-        for (int i = 0, centerIndex = 0, pointIndex = 0; i < mPlanetCount; i++) {
-            float r = mPlanetArray[i].getRadius() * scale;
+        for (int i = 0, centerIndex = 0, pointIndex = 0; i < getStateCount(); i++) {
+            float r = (float) mPlanetStateArray[i].radius * scale;
 
             float x = mTransformArray[centerIndex++];
             float y = mTransformArray[centerIndex++];
@@ -351,7 +360,7 @@ public class SimulatorComponent extends CartesianComponent {
 
     private void onPaintCircumferences(Consumer<Shape> drawer) {
         // long time = System.currentTimeMillis();
-        for (int i = 0, k = 0; i < mPlanetCount; i++) {
+        for (int i = 0, k = 0; i < getStateCount(); i++) {
             float x = mCachedPointArray[k++];
             float y = mCachedPointArray[k++];
 
@@ -368,7 +377,7 @@ public class SimulatorComponent extends CartesianComponent {
      * {@link #mCachedPointArray}.
      */
     private void stridePointArray(int offset) {
-        for (int i = 0, transformIndex = 0, pointIndex = offset; i < mPlanetCount; i++) {
+        for (int i = 0, transformIndex = 0, pointIndex = offset; i < getStateCount(); i++) {
             mCachedPointArray[pointIndex] = mTransformArray[transformIndex++];
             mCachedPointArray[pointIndex + 1] = mTransformArray[transformIndex++];
 
@@ -405,7 +414,7 @@ public class SimulatorComponent extends CartesianComponent {
         public Rectangle2D getBounds2D() {
             Rectangle2D.Float bounds = new Rectangle2D.Float(mTransformArray[0], mTransformArray[1], 0, 0);
 
-            for (int i = 1, j = 2; i < mPlanetCount; i++) {
+            for (int i = 1, j = 2; i < getStateCount(); i++) {
                 bounds.add(mTransformArray[j++], mTransformArray[j++]);
             }
 
@@ -457,7 +466,7 @@ public class SimulatorComponent extends CartesianComponent {
 
                 @Override
                 public boolean isDone() {
-                    return mPointIndex >= mPlanetCount;
+                    return mPointIndex >= getStateCount();
                 }
 
                 @Override
@@ -0,0 +1,145 @@
+package nx1125.simulator.simulation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Check that the steps of a simulator do not allocate memory. The memory allocated by the thread
+ * is read before and after each step, and the memory of the steps after the warm up is summed.
+ * The first steps are ignored, because the caches of the simulator are created in them, and so
+ * are the steps of the first seconds, because the code that the compiler has not optimized yet
+ * may allocate memory. The kernels of the vector engines allocate their vectors until then.
+ * <p>
+ * The virtual machine itself allocates a few bytes in the thread when it compiles a loop that
+ * is running, which may happen at any time, so the sum may reach a small tolerance before an
+ * exception is thrown. A simulator that allocates in every step passes the tolerance quickly.
+ * <p>
+ * The memory allocated by the threads of {@link ParallelPairExecutor} in each step is added to the
+ * memory of the thread that calls the simulator. The threads are shared by all the simulators, so
+ * the memory of another simulator that runs at the same time in them is also counted. A thread
+ * created by the pools during a step is only measured from the next step.
+ */
+public class AllocationMonitor {
+
+    /**
+     * The count of steps that may allocate memory before the check starts.
+     */
+    public static final int WARM_UP_STEPS = 100;
+
+    /**
+     * The time in nanoseconds from the first step in which the steps may allocate memory.
+     */
+    public static final long WARM_UP_TIME = 2_000_000_000L;
+
+    /**
+     * The bytes that may be allocated by the virtual machine after the warm up.
+     */
+    public static final long TOLERANCE_BYTES = 4096;
+
+    private final com.sun.management.ThreadMXBean mThreadBean;
+
+    private int mStepCount;
+
+    private long mStartTime;
+
+    private int mCheckedStepCount;
+
+    private long mStepStartBytes;
+
+    private long[] mWorkerIds = new long[0];
+    private long[] mWorkerStartBytes = new long[0];
+
+    private int mWorkerCount;
+
+    private long mAllocatedBytes;
+
+    private AllocationMonitor(com.sun.management.ThreadMXBean threadBean) {
+        mThreadBean = threadBean;
+    }
+
+    /**
+     * Return a monitor for the simulation, or {@code null} if the check is not enabled in the
+     * simulation.
+     *
+     * @throws UnsupportedOperationException if the check is enabled, but the virtual machine does
+     *                                       not measure the memory of the threads.
+     */
+    public static AllocationMonitor create(Simulation simulation) {
+        if (!simulation.isAllocationCheckEnabled()) {
+            return null;
+        }
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException("The virtual machine does not measure the memory of the threads");
+        }
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        return new AllocationMonitor(threadBean);
+    }
+
+    /**
+     * Called before a step.
+     */
+    public void begin() {
+        if (mStepCount == 0) {
+            mStartTime = System.nanoTime();
+        }
+
+        // the pools may create threads while the arrays grow
+        while ((mWorkerCount = ParallelPairExecutor.getWorkerThreadIds(mWorkerIds)) > mWorkerIds.length) {
+            mWorkerIds = new long[mWorkerCount * 2];
+            mWorkerStartBytes = new long[mWorkerIds.length];
+        }
+
+        for (int i = 0; i < mWorkerCount; i++) {
+            mWorkerStartBytes[i] = mThreadBean.getThreadAllocatedBytes(mWorkerIds[i]);
+        }
+
+        mStepStartBytes = mThreadBean.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Called after a step.
+     *
+     * @throws IllegalStateException if the steps after the warm up allocated more than the
+     *                               tolerance.
+     */
+    public void end() {
+        long bytes = mThreadBean.getCurrentThreadAllocatedBytes() - mStepStartBytes;
+
+        for (int i = 0; i < mWorkerCount; i++) {
+            long workerBytes = mThreadBean.getThreadAllocatedBytes(mWorkerIds[i]);
+
+            // -1 if the thread finished during the step
+            if (workerBytes >= 0 && mWorkerStartBytes[i] >= 0) {
+                bytes += workerBytes - mWorkerStartBytes[i];
+            }
+        }
+
+        mStepCount++;
+
+        if (mCheckedStepCount == 0 && (mStepCount <= WARM_UP_STEPS
+                || System.nanoTime() - mStartTime < WARM_UP_TIME)) return;
+
+        mCheckedStepCount++;
+        mAllocatedBytes += bytes;
+
+        if (mAllocatedBytes > TOLERANCE_BYTES) {
+            throw new IllegalStateException("The steps allocated " + mAllocatedBytes + " bytes in "
+                    + mCheckedStepCount + " steps, the last one allocated " + bytes + " bytes");
+        }
+    }
+
+    /**
+     * Return the bytes allocated by the steps after the warm up.
+     */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+}
@@ -27,6 +27,10 @@ public class CollisionResult {
         mIndex1 = i1;
     }
 
+    public void setCollision(Planet p0, Planet p1, double collisionTime) {
+        setCollision(p0, null, p1, null, collisionTime);
+    }
+
     public void setCollision(Planet p0, PlanetState s0, Planet p1, PlanetState s1, double collisionTime) {
         mPlanet0 = p0;
         mPlanet1 = p1;
@@ -37,6 +41,15 @@ public class CollisionResult {
         mCollisionTime = collisionTime;
     }
 
+    /**
+     * Copy the collision of another result.
+     */
+    public void setCollision(CollisionResult result) {
+        setCollision(result.mPlanet0, result.mPlanetState0, result.mPlanet1, result.mPlanetState1,
+                result.mCollisionTime);
+        setIndexes(result.mIndex0, result.mIndex1);
+    }
+
     public void clear() {
         mCollisionTime = Double.MAX_VALUE;
 
@@ -1,17 +1,24 @@
 package nx1125.simulator.simulation;
 
-import java.util.LinkedList;
-import java.util.List;
-
 /**
+ * A batch of collisions, like the collisions that happen at the same time or in a short window of
+ * time. The results are kept from one use to another, so after the first steps adding a collision
+ * does not allocate memory.
+ * <p>
  * Created by guilh on 01/10/2017.
  */
 public class CollisionResults {
 
-    private List<CollisionResult> mCollisionResultList = new LinkedList<>();
+    private CollisionResult[] mCollisionResults = new CollisionResult[0];
+
+    private int mCollisionCount;
 
     private double mCollisionTime;
 
+    public CollisionResults() {
+        this(Double.MAX_VALUE);
+    }
+
     public CollisionResults(double collisionTime) {
         mCollisionTime = collisionTime;
     }
@@ -20,11 +27,108 @@ public class CollisionResults {
         return mCollisionTime;
     }
 
+    /**
+     * Remove all collisions, but keep their objects to be used by the next collisions.
+     */
+    public void clear(double collisionTime) {
+        mCollisionTime = collisionTime;
+        mCollisionCount = 0;
+    }
+
+    /**
+     * Return a cleared result at the end of the list, which is reused from a previous use when
+     * there is one.
+     */
+    public CollisionResult nextCollision() {
+        if (mCollisionCount == mCollisionResults.length) {
+            CollisionResult[] results = new CollisionResult[Math.max(4, mCollisionCount * 2)];
+
+            System.arraycopy(mCollisionResults, 0, results, 0, mCollisionCount);
+
+            for (int i = mCollisionCount; i < results.length; i++) {
+                results[i] = new CollisionResult();
+            }
+
+            mCollisionResults = results;
+        }
+
+        CollisionResult result = mCollisionResults[mCollisionCount++];
+        result.clear();
+
+        return result;
+    }
+
+    /**
+     * Add a copy of the collision.
+     */
     public void addCollision(CollisionResult result) {
-        mCollisionResultList.add(result);
+        nextCollision().setCollision(result);
+    }
+
+    public int getCollisionCount() {
+        return mCollisionCount;
+    }
+
+    public CollisionResult getCollisionResult(int index) {
+        return mCollisionResults[index];
     }
 
+    /**
+     * Sort the collisions from the earliest to the latest, and make the time of the batch the time
+     * of the earliest collision. The sort is a heap sort, which does not allocate memory.
+     */
+    public void sortByTime() {
+        CollisionResult[] results = mCollisionResults;
+        int count = mCollisionCount;
+
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(results, i, count);
+        }
+
+        for (int end = count - 1; end > 0; end--) {
+            CollisionResult aux = results[0];
+            results[0] = results[end];
+            results[end] = aux;
+
+            siftDown(results, 0, end);
+        }
+
+        if (count > 0) {
+            mCollisionTime = results[0].getCollisionTime();
+        }
+    }
+
+    private static void siftDown(CollisionResult[] results, int index, int count) {
+        CollisionResult result = results[index];
+        double time = result.getCollisionTime();
+
+        while (true) {
+            int child = 2 * index + 1;
+
+            if (child >= count) break;
+
+            if (child + 1 < count && results[child + 1].getCollisionTime() > results[child].getCollisionTime()) {
+                child++;
+            }
+
+            if (results[child].getCollisionTime() <= time) break;
+
+            results[index] = results[child];
+            index = child;
+        }
+
+        results[index] = result;
+    }
+
+    /**
+     * Return a new array with the collisions. Prefer {@link #getCollisionResult(int)} while
+     * stepping, which does not allocate.
+     */
     public CollisionResult[] getCollisionResults() {
-        return mCollisionResultList.toArray(new CollisionResult[mCollisionResultList.size()]);
+        CollisionResult[] results = new CollisionResult[mCollisionCount];
+
+        System.arraycopy(mCollisionResults, 0, results, 0, mCollisionCount);
+
+        return results;
     }
 }
@@ -1,6 +1,18 @@
 package nx1125.simulator.simulation;
 
 import nx1125.simulator.FrameRateThread;
+import nx1125.simulator.IntegerList;
+import nx1125.simulator.simulation.collision.AllPairsBroadPhase;
+import nx1125.simulator.simulation.collision.BroadPhase;
+import nx1125.simulator.simulation.collision.EventQueue;
+import nx1125.simulator.simulation.collision.NewtonQuarticSolver;
+import nx1125.simulator.simulation.collision.QuarticSolver;
+import nx1125.simulator.simulation.integrator.Integrator;
+import nx1125.simulator.simulation.integrator.LeapfrogIntegrator;
+import nx1125.simulator.simulation.integrator.TaylorIntegrator;
+import nx1125.simulator.simulation.integrator.YoshidaIntegrator;
+
+import java.util.Arrays;
 
 public abstract class DefaultSimulator implements Simulator {
 
@@ -8,21 +20,166 @@ public abstract class DefaultSimulator implements Simulator {
 
     private static final boolean DEBUG = false;
 
+    /**
+     * The most collisions in one step for each planet. Planets that touch each other with no
+     * relative velocity could collide forever, and after this the rest of the step is advanced
+     * without collisions.
+     */
+    private static final int MAX_COLLISIONS_PER_PLANET = 8;
+
+    /**
+     * How much the boxes of the broad phase are expanded when the collisions are scheduled as
+     * events. A planet that leaves its box after a collision makes all the pairs to be found
+     * again, so bigger boxes find them less often but give more pairs.
+     */
+    private static final double EVENT_BOX_EXPANSION = 1.0;
+
+    /**
+     * The escaped planets are checked against all the planets, so after their count reaches the
+     * square root of the count of planets, or this minimum, all the pairs are found again.
+     */
+    private static final int MIN_ESCAPED_PLANETS = 8;
+
+    /**
+     * The shortest adaptive step, as a fraction of the step of the simulation.
+     */
+    private static final double MIN_ADAPTIVE_STEP = 1e-6;
+
+    /**
+     * How much an adaptive step can grow or shrink compared to the last one.
+     */
+    private static final double MAX_ADAPTIVE_GROWTH = 2.0;
+    private static final double MAX_ADAPTIVE_SHRINK = 0.25;
+
     private final int mPlanetCount;
 
     private final Planet[] mPlanets;
 
     private final Simulation mSimulation;
 
-    private final CubicFunction mCubicFunction = new CubicFunction();
-    private final QuadraticFunction mQuadraticFunction = new QuadraticFunction();
-
     private double[] mCachedCollisionRootsArray;
 
+    private Integrator mIntegrator;
+
+    private BroadPhase mBroadPhase;
+    private QuarticSolver mQuarticSolver;
+    private final IntegerList mCollisionPairs = new IntegerList();
+    private final CollisionResult mCollisionResult = new CollisionResult();
+    private final CollisionResults mCollisionBatch = new CollisionResults();
+
+    private final EventQueue mEventQueue = new EventQueue();
+
+    /**
+     * The planet with which each planet collides at the time of its event in the queue.
+     */
+    private int[] mEventPartners = new int[0];
+
+    /**
+     * The time until which each planet was advanced in the current step. The planets are only
+     * advanced when they collide, so each one is at its own time.
+     */
+    private double[] mLocalTimes = new double[0];
+
+    /**
+     * The planets that may collide with the planet i are from mNeighbors[mNeighborStart[i]] until
+     * mNeighbors[mNeighborStart[i + 1]].
+     */
+    private int[] mNeighborStart = new int[0];
+    private int[] mNeighbors = new int[0];
+
+    private int[] mStaleEvents = new int[0];
+
+    /**
+     * The planets that left their boxes after a collision. Their boxes were computed again, but
+     * they are not in the pairs, so they are checked against all the planets.
+     */
+    private final IntegerList mEscapedPlanets = new IntegerList();
+    private boolean[] mEscaped = new boolean[0];
+
+    /**
+     * The planets that already collided in the current batch.
+     */
+    private boolean[] mBatchMarks = new boolean[0];
+
+    /**
+     * The planets that merged into another planet in the current batch.
+     */
+    private int[] mMergedPlanets = new int[0];
+
+    /**
+     * The order given to {@link #onReorderCaches(int[], int)}, which is kept as the identity
+     * between the calls.
+     */
+    private int[] mReorder;
+
+    /**
+     * The order of the planets along the curve of Morton, or {@code null} if the planets are not
+     * reordered.
+     */
+    private MortonOrder mMortonOrder;
+
+    private double[] mReorderAux;
+    private int[] mReorderIndexAux;
+
+    private int mStepsSinceReorder;
+
+    private long mStepPairCount;
+    private volatile long mCandidatePairCount;
+
+    private long mCollisionCount;
+
     private double mTimeInterval;
 
-    private PlanetState[] mLastState;
-    private PlanetState[] mNextState;
+    /**
+     * The length of the next adaptive step, which is kept between the steps of the simulation.
+     */
+    private double mAdaptiveStep;
+    private boolean mAdaptiveStepValid;
+
+    private double[] mLastAccelerationX;
+    private double[] mLastAccelerationY;
+
+    /**
+     * The states at the beginning and at the end of an adaptive step that covers many steps of
+     * the simulation, whose states are interpolated between them.
+     */
+    private StateArrays mSpanStart;
+    private StateArrays mSpanEnd;
+
+    /**
+     * The count of steps of the simulation in the current span, or zero if there is no span, and
+     * how many of them were already computed.
+     */
+    private int mSpanLength;
+    private int mSpanPosition;
+
+    /**
+     * The index of the next step of the simulation in its frame. The spans never cross the end of
+     * a frame, so the states of the frames are always computed by the integrator.
+     */
+    private int mFrameStep;
+
+    private StateArrays mLastState;
+    private StateArrays mNextState;
+
+    /**
+     * The sums of each state, swapped with the states. They are only summed at the end of the
+     * step that computed the last state of each frame, the one the interface draws; the sums of
+     * the states inside a frame are marked stale and summed when they are asked for. The sums of
+     * the last state are volatile, so the thread of the interface sees them complete once they are
+     * swapped. The potential energy needs the fields of all the planets, so it is also only
+     * computed when it is asked for inside a frame, and apart from the other sums.
+     */
+    private volatile Diagnostics mLastDiagnostics = new Diagnostics();
+    private Diagnostics mNextDiagnostics = new Diagnostics();
+
+    /**
+     * Held by the steps and by the computation of the potential energy of the last state, which
+     * may be asked for in another thread and uses the same caches as the steps.
+     */
+    private final Object mStepLock = new Object();
+
+    private AllocationMonitor mAllocationMonitor;
 
     public DefaultSimulator(Simulation simulation) {
         mPlanets = simulation.getPlanets();
@@ -52,6 +209,22 @@ public abstract class DefaultSimulator implements Simulator {
         return mPlanetCount;
     }
 
+    /**
+     * Return the count of collisions and merges since the simulator was created. An integrator
+     * that keeps values between the steps can compare it before and after advancing the planets
+     * to know if the velocities changed.
+     */
+    public long getCollisionCount() {
+        return mCollisionCount;
+    }
+
+    /**
+     * Return the count of planets that were not merged into another planet.
+     */
+    public int getCurrentPlanetCount() {
+        return mLastState.getCount();
+    }
+
     @Override
     public void onCreate() {
         info("Starting simulator with " + mPlanetCount + " planets");
@@ -63,398 +236,1198 @@ public abstract class DefaultSimulator implements Simulator {
         onCreateInitialStates();
 
         mTimeInterval = mSimulation.getTimeInterval() / (mSimulation.getFrameRate() * FrameRateThread.INNER_STATES_COUNT);
+
+        mAdaptiveStep = mTimeInterval;
+
+        if (mSimulation.isAdaptiveStepEnabled()) {
+            mLastAccelerationX = new double[mPlanetCount];
+            mLastAccelerationY = new double[mPlanetCount];
+
+            mSpanStart = new StateArrays(mLastState);
+            mSpanEnd = new StateArrays(mLastState);
+        }
+
+        if (mSimulation.getReorderInterval() > 0 && isReorderSupported()) {
+            mMortonOrder = new MortonOrder();
+
+            mReorderAux = new double[mPlanetCount];
+            mReorderIndexAux = new int[mPlanetCount];
+        }
+
+        mAllocationMonitor = AllocationMonitor.create(mSimulation);
     }
 
     protected void onCreateCache() {
-        mLastState = new PlanetState[mPlanetCount];
-        mNextState = new PlanetState[mPlanetCount];
-
         // a polynomial with 4 as the highest power, has four solutions
         mCachedCollisionRootsArray = new double[4];
+
+        mIntegrator = createIntegrator();
+
+        mBroadPhase = createBroadPhase();
+        mQuarticSolver = createQuarticSolver();
+
+        mReorder = new int[mPlanetCount];
+
+        for (int i = 0; i < mPlanetCount; i++) {
+            mReorder[i] = i;
+        }
+    }
+
+    /**
+     * Return the integrator that advances the planets in each step.
+     */
+    protected Integrator createIntegrator() {
+        switch (mSimulation.getIntegrator()) {
+            case Simulation.INTEGRATOR_LEAPFROG:
+                return new LeapfrogIntegrator();
+            case Simulation.INTEGRATOR_YOSHIDA:
+                return new YoshidaIntegrator();
+            case Simulation.INTEGRATOR_TAYLOR:
+            default:
+                return new TaylorIntegrator();
+        }
+    }
+
+    /**
+     * Return the broad phase that finds the pairs of planets that may collide.
+     */
+    protected BroadPhase createBroadPhase() {
+        return new AllPairsBroadPhase();
+    }
+
+    /**
+     * Return the solver of the polynomial that gives the time of the collision of two planets.
+     */
+    protected QuarticSolver createQuarticSolver() {
+        return new NewtonQuarticSolver();
+    }
+
+    /**
+     * Return {@code true} if the planets can be reordered in the arrays. The simulators whose
+     * forces depend on the order of the planets must return {@code false}.
+     */
+    protected boolean isReorderSupported() {
+        return true;
+    }
+
+    /**
+     * Return {@code true} if the planets collide with each other while they move in a step.
+     */
+    protected boolean isCollisionEnabled() {
+        return false;
+    }
+
+    /**
+     * Return {@code true} if the planets that collide merge into one planet instead of bouncing.
+     */
+    protected boolean isMergeEnabled() {
+        return false;
     }
 
     public PlanetState[] getLastComputedStates() {
+        return mLastState.getStates();
+    }
+
+    /**
+     * Return the arrays of the last computed state. Unlike {@link #getLastComputedStates()}, this
+     * does not update the views of the states.
+     */
+    protected StateArrays getLastStateArrays() {
         return mLastState;
     }
 
-    protected PlanetState[] onCreateInitialStates() {
-        PlanetState[] states = mLastState;
+    protected StateArrays onCreateInitialStates() {
+        mLastState = new StateArrays(mPlanets);
+        mNextState = new StateArrays(mLastState);
 
-        for (int i = 0; i < mPlanetCount; i++) {
-            states[i] = new PlanetState(mPlanets[i]);
-        }
+        updateLastDiagnostics();
 
-        return states;
+        return mLastState;
     }
 
     @Override
     public void restart() {
-        for (int i = 0; i < mPlanetCount; i++) {
-            mLastState[i].setState(mPlanets[i]);
-            mNextState[i].setState(mPlanets[i]);
-        }
+        // the planets that merged are back
+        mLastState.reset(mPlanets);
+        mNextState.setState(mLastState);
+
+        updateLastDiagnostics();
+
+        mIntegrator.reset();
+
+        mAdaptiveStep = mTimeInterval;
+        mAdaptiveStepValid = false;
+
+        mSpanLength = 0;
+        mFrameStep = 0;
     }
 
     @Override
     public PlanetState[] computeStates() {
+        step();
+
+        return getLastComputedStates();
+    }
+
+    @Override
+    public void step() {
+        synchronized (mStepLock) {
+            computeNextState();
+        }
+    }
+
+    private void computeNextState() {
         long beginningStateTime = getTime();
 
-        copyFromLastState();
+        if (mAllocationMonitor != null) mAllocationMonitor.begin();
+
+        // the states of a span keep the indexes of its ends
+        if (mMortonOrder != null && mSpanLength == 0 && ++mStepsSinceReorder >= mSimulation.getReorderInterval()) {
+            mStepsSinceReorder = 0;
+
+            reorderPlanets(mLastState);
+        }
+
+        mNextState.setState(mLastState);
+
+        mStepPairCount = 0;
 
-        computeAccelerations(mPlanets, mNextState);
+        if (mLastAccelerationX != null) {
+            advanceAdaptiveStep(mNextState);
+        } else {
+            mIntegrator.step(this, mNextState, mTimeInterval);
+        }
 
-        advance(mTimeInterval, mNextState);
+        mFrameStep = (mFrameStep + 1) % FrameRateThread.INNER_STATES_COUNT;
+
+        // the sums of the states inside a frame are computed if they are asked for
+        if (mFrameStep == 0) {
+            mNextDiagnostics.compute(mNextState, computePotentialEnergy(mNextState));
+        } else {
+            mNextDiagnostics.markStale();
+        }
 
         swapStateArrays();
 
+        mCandidatePairCount = mStepPairCount;
+
+        if (mAllocationMonitor != null) mAllocationMonitor.end();
+
         if (DEBUG) {
             debug("A new state is complete " + " with " + (getTime() - beginningStateTime) + " milliseconds");
         }
+    }
 
-        return mLastState;
+    public abstract void computeAccelerations(StateArrays states);
+
+    /**
+     * Advance the states by one step of the simulation with adaptive steps. When the adaptive
+     * step is longer than the step of the simulation, the integrator advances a span of many
+     * steps at once, until the end of the frame at most, and the states inside the span are
+     * interpolated from its ends with their velocities. The collisions change the velocities
+     * inside the span, so with the collisions the adaptive step is at most the step of the
+     * simulation.
+     */
+    private void advanceAdaptiveStep(StateArrays states) {
+        if (mSpanLength == 0) {
+            int span = 1;
+
+            if (!isCollisionEnabled()) {
+                span = (int) Math.min(FrameRateThread.INNER_STATES_COUNT - mFrameStep,
+                        Math.floor(mAdaptiveStep / mTimeInterval));
+            }
+
+            if (span <= 1) {
+                advanceAdaptively(mTimeInterval, states);
+                return;
+            }
+
+            mSpanStart.setState(states);
+            mSpanEnd.setState(states);
+
+            advanceAdaptively(span * mTimeInterval, mSpanEnd);
+
+            mSpanLength = span;
+            mSpanPosition = 0;
+        }
+
+        if (++mSpanPosition == mSpanLength) {
+            states.setState(mSpanEnd);
+
+            mSpanLength = 0;
+        } else {
+            interpolateSpan(states, (double) mSpanPosition / mSpanLength);
+        }
+    }
+
+    /**
+     * Put the state at the fraction of the span in the states, with the cubic of Hermite between
+     * the positions and the velocities of the ends of the span.
+     */
+    private void interpolateSpan(StateArrays states, double s) {
+        StateArrays start = mSpanStart;
+        StateArrays end = mSpanEnd;
+
+        double time = mSpanLength * mTimeInterval;
+
+        double sSqr = s * s;
+        double sCube = sSqr * s;
+
+        // the weights of the positions and the velocities of the start and the end
+        double startX = 2.0 * sCube - 3.0 * sSqr + 1.0;
+        double startV = (sCube - 2.0 * sSqr + s) * time;
+        double endX = 1.0 - startX;
+        double endV = (sCube - sSqr) * time;
+
+        // the weights of the same terms in the velocity
+        double dx = 6.0 * (sSqr - s) / time;
+        double startDv = 3.0 * sSqr - 4.0 * s + 1.0;
+        double endDv = 3.0 * sSqr - 2.0 * s;
+
+        for (int i = 0; i < end.getCount(); i++) {
+            states.x[i] = startX * start.x[i] + startV * start.vx[i] + endX * end.x[i] + endV * end.vx[i];
+            states.y[i] = startX * start.y[i] + startV * start.vy[i] + endX * end.y[i] + endV * end.vy[i];
+
+            states.vx[i] = dx * (start.x[i] - end.x[i]) + startDv * start.vx[i] + endDv * end.vx[i];
+            states.vy[i] = dx * (start.y[i] - end.y[i]) + startDv * start.vy[i] + endDv * end.vy[i];
+
+            states.ax[i] = start.ax[i] + (end.ax[i] - start.ax[i]) * s;
+            states.ay[i] = start.ay[i] + (end.ay[i] - start.ay[i]) * s;
+
+            states.forceX[i] = start.forceX[i] + (end.forceX[i] - start.forceX[i]) * s;
+            states.forceY[i] = start.forceY[i] + (end.forceY[i] - start.forceY[i]) * s;
+        }
     }
 
-    public abstract void computeAccelerations(Planet[] planets, PlanetState[] actualStates);
+    /**
+     * Advance the states by the time in steps of the integrator that divide the time evenly, so
+     * the states end exactly at the time. After each step, the next step is the accuracy times
+     * the shortest time in which the acceleration of a planet changes by itself, estimated from
+     * the change of the accelerations in the step.
+     */
+    private void advanceAdaptively(double time, StateArrays states) {
+        double remainingTime = time;
+
+        while (remainingTime > 0.0) {
+            double steps = Math.ceil(remainingTime / mAdaptiveStep);
+            double t = steps > 1.0 ? remainingTime / steps : remainingTime;
+
+            int count = states.getCount();
+
+            System.arraycopy(states.ax, 0, mLastAccelerationX, 0, count);
+            System.arraycopy(states.ay, 0, mLastAccelerationY, 0, count);
 
-    protected void advance(double time, PlanetState[] states) {
+            mIntegrator.step(this, states, t);
+
+            // the accelerations before the first step may not be of the states, and the indexes
+            // change when planets merge
+            if (mAdaptiveStepValid && states.getCount() == count) {
+                mAdaptiveStep = findAdaptiveStep(states, t);
+            }
+
+            mAdaptiveStepValid = true;
+
+            remainingTime -= t;
+        }
+    }
+
+    private double findAdaptiveStep(StateArrays states, double time) {
+        double shortestSqr = Double.POSITIVE_INFINITY;
+
+        for (int i = 0; i < states.getCount(); i++) {
+            double dax = states.ax[i] - mLastAccelerationX[i];
+            double day = states.ay[i] - mLastAccelerationY[i];
+
+            double changeSqr = dax * dax + day * day;
+
+            if (changeSqr == 0) continue;
+
+            double accelerationSqr = Math.max(states.ax[i] * states.ax[i] + states.ay[i] * states.ay[i],
+                    mLastAccelerationX[i] * mLastAccelerationX[i] + mLastAccelerationY[i] * mLastAccelerationY[i]);
+
+            shortestSqr = Math.min(shortestSqr, accelerationSqr / changeSqr);
+        }
+
+        double step = mSimulation.getAdaptiveStepAccuracy() * time * Math.sqrt(shortestSqr);
+
+        step = Math.min(step, MAX_ADAPTIVE_GROWTH * mAdaptiveStep);
+        step = Math.max(step, MAX_ADAPTIVE_SHRINK * time);
+
+        // a span ends at the end of the frame, so longer steps are never used
+        double frameInterval = mTimeInterval * FrameRateThread.INNER_STATES_COUNT;
+
+        return Math.max(MIN_ADAPTIVE_STEP * mTimeInterval, Math.min(frameInterval, step));
+    }
+
+    /**
+     * Advance the states by the time with their accelerations, stopping at the collisions when
+     * they are enabled.
+     */
+    public void advancePlanets(double time, StateArrays states) {
+        if (isCollisionEnabled()) {
+            advanceWithCollisions(time, states);
+        } else {
+            advance(time, states);
+        }
+    }
+
+    /**
+     * Move the planets in straight lines by the time, which may be negative, stopping at the
+     * collisions when they are enabled. The accelerations are cleared.
+     */
+    public void drift(double time, StateArrays states) {
+        states.clearAccelerations();
+
+        if (time < 0.0 && isCollisionEnabled()) {
+            // the collisions are only found forwards, so the planets go forwards with the
+            // velocities reversed, which gives the same collisions
+            reverseVelocities(states);
+            advanceWithCollisions(-time, states);
+            reverseVelocities(states);
+        } else {
+            advancePlanets(time, states);
+        }
+    }
+
+    private static void reverseVelocities(StateArrays states) {
+        for (int i = 0; i < states.getCount(); i++) {
+            states.vx[i] = -states.vx[i];
+            states.vy[i] = -states.vy[i];
+        }
+    }
+
+    protected void advance(double time, StateArrays states) {
         double halfTimeSqr = time * time * 0.5;
 
-        for (PlanetState state : states) {
+        double[] x = states.x;
+        double[] y = states.y;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] ax = states.ax;
+        double[] ay = states.ay;
+
+        for (int i = 0; i < states.getCount(); i++) {
             // advance position
-            state.x += state.vx * time + state.ax * halfTimeSqr;
-            state.y += state.vy * time + state.ay * halfTimeSqr;
+            x[i] += vx[i] * time + ax[i] * halfTimeSqr;
+            y[i] += vy[i] * time + ay[i] * halfTimeSqr;
 
             // advance velocity
-            state.vx += state.ax * time;
-            state.vy += state.ay * time;
+            vx[i] += ax[i] * time;
+            vy[i] += ay[i] * time;
         }
     }
 
-    private void copyFromLastState() {
-        for (int i = 0; i < mPlanetCount; i++) {
-            // TODO: 01/10/2017 Is better clone or copy constructor?
-            mNextState[i] = mLastState[i].clone();
+    /**
+     * Advance the states by the time, stopping at each collision to change the velocities of the
+     * planets that collide.
+     */
+    protected void advanceWithCollisions(double time, StateArrays states) {
+        CollisionResult result = mCollisionResult;
+
+        mBroadPhase.setExpansion(0.0);
+
+        int collisionLimit = MAX_COLLISIONS_PER_PLANET * states.getCount();
+
+        double remainingTime = time;
+
+        for (int k = 0; k < collisionLimit; k++) {
+            if (!checkCollisions(result, remainingTime, states)) break;
+
+            double t = result.getCollisionTime();
+
+            advance(t, states);
+
+            if (isMergeEnabled()) {
+                merge(result, states);
+                removePlanet(states, result.getIndex1());
+            } else {
+                collide(result, states);
+            }
+
+            remainingTime -= t;
         }
+
+        advance(remainingTime, states);
     }
 
-    private void swapStateArrays() {
-        PlanetState[] aux = mLastState;
-        mLastState = mNextState;
-        mNextState = aux;
+    /**
+     * Advance the states by the time like {@link #advanceWithCollisions(double, StateArrays)}, but
+     * predicting the next collision of each planet only once. The collisions are kept in a queue,
+     * and after a collision only the events of the two planets and of the planets that would
+     * collide with them are computed again.
+     */
+    protected void advanceWithCollisionEvents(double time, StateArrays states) {
+        int count = states.getCount();
+
+        ensureEventCapacity(count);
+
+        Arrays.fill(mLocalTimes, 0, count, 0.0);
+
+        mBroadPhase.setExpansion(EVENT_BOX_EXPANSION);
+
+        scheduleEvents(states, 0.0, time);
+
+        EventQueue queue = mEventQueue;
+        CollisionResult result = mCollisionResult;
+
+        int collisionLimit = MAX_COLLISIONS_PER_PLANET * count;
+
+        for (int k = 0; k < collisionLimit && count > 1; k++) {
+            int i = queue.peek();
+            double t = queue.getTime(i);
+
+            if (t > time) break;
+
+            int j = mEventPartners[i];
+
+            advancePlanet(states, i, t);
+            advancePlanet(states, j, t);
+
+            result.setCollision(mPlanets[states.id[i]], mPlanets[states.id[j]], t);
+            result.setIndexes(i, j);
+
+            if (isMergeEnabled()) {
+                // the indexes of the planets change, so all the events are computed again
+                for (int m = 0; m < count; m++) {
+                    advancePlanet(states, m, t);
+                }
+
+                merge(result, states);
+                removePlanet(states, j);
+
+                count = states.getCount();
+
+                scheduleEvents(states, t, time);
+
+                continue;
+            }
+
+            collide(result, states);
+
+            if (checkEscape(states, i, t, time) && checkEscape(states, j, t, time)) {
+                rescheduleEvents(states, i, j, t, time);
+            } else {
+                // too many planets left their boxes and checking them against all the planets
+                // would cost more than finding the pairs again
+                for (int m = 0; m < count; m++) {
+                    advancePlanet(states, m, t);
+                }
+
+                scheduleEvents(states, t, time);
+            }
+        }
+
+        for (int m = 0; m < count; m++) {
+            advancePlanet(states, m, time);
+        }
     }
 
-    public void setPlanetLocation(int index, double x, double y) {
-        mLastState[index].setLocation(x, y);
+    private void ensureEventCapacity(int count) {
+        if (mLocalTimes.length < count) {
+            mLocalTimes = new double[count];
+            mEventPartners = new int[count];
+            mStaleEvents = new int[count];
+            mNeighborStart = new int[count + 1];
+            mEscaped = new boolean[count];
+            mBatchMarks = new boolean[count];
+            mMergedPlanets = new int[count];
+        }
     }
 
     /**
-     * Check for each planet if it collides with another planet. If no planet collides, then
-     * {@code null} is returned.
+     * Advance the states by the time like {@link #advanceWithCollisions(double, StateArrays)}, but
+     * resolving many collisions after each search. All the collisions until the remaining time are
+     * found and, from the earliest, the collisions in the window are resolved together while
+     * their planets are not in an earlier collision. A planet in two collisions is a chain of
+     * contacts, which ends the batch, and the next search finds its next collision.
+     * <p>
+     * The planets of a batch may collide again with another planet before the end of the batch,
+     * and that collision is only found by the next search, when the planets already touch. So the
+     * window is a trade between the count of searches and the precision of the collisions.
      */
-    public boolean checkCollisions(CollisionResult result, double remainingTime,
-                                   int planetCount, Planet[] planets, PlanetState[] actualStates) {
-        boolean found = false;
+    protected void advanceWithCollisionBatches(double time, double window, StateArrays states) {
+        int count = states.getCount();
 
-        double smallestTime = remainingTime;
+        ensureEventCapacity(count);
+
+        Arrays.fill(mLocalTimes, 0, count, 0.0);
+
+        mBroadPhase.setExpansion(0.0);
+
+        CollisionResults batch = mCollisionBatch;
+
+        boolean[] marks = mBatchMarks;
+
+        int collisionLimit = MAX_COLLISIONS_PER_PLANET * count;
+
+        double remainingTime = time;
+
+        for (int collisions = 0; collisions < collisionLimit; ) {
+            if (!findCollisions(batch, remainingTime, states)) break;
 
-        for (int i = 0; i < planetCount; i++) {
-            PlanetState s0 = actualStates[i];
-            Planet p0 = planets[i];
+            batch.sortByTime();
 
-            double r0 = p0.getRadius();
+            double windowEnd = Math.min(remainingTime, batch.getCollisionTime() + window);
+            double end = 0.0;
 
-            for (int j = i + 1; j < planetCount; j++) {
-                PlanetState s1 = actualStates[j];
-                Planet p1 = planets[j];
+            int batchCount = 0;
+            int mergedCount = 0;
 
-                double dx = s1.x - s0.x;
-                double dy = s1.y - s0.y;
+            for (int k = 0; k < batch.getCollisionCount(); k++) {
+                CollisionResult result = batch.getCollisionResult(k);
 
-                double dvx = s1.vx - s0.vx;
-                double dvy = s1.vy - s0.vy;
+                int i = result.getIndex0();
+                int j = result.getIndex1();
 
-                double dax = s1.ax - s0.ax;
-                double day = s1.ay - s0.ay;
+                double t = result.getCollisionTime();
 
-                double r = p1.getRadius() + r0;
+                if (t > windowEnd || marks[i] || marks[j]) break;
 
-                int count = solveQuadratic(
-                        (dax * dax + day * day) * 0.25,
-                        dax * dvx + day * dvy,
-                        dax * dx + day * dy + dvx * dvx + dvy * dvy,
-                        2.0 * (dvx * dx + dvy * dy),
-                        dx * dx + dy * dy - r * r,
-                        mCachedCollisionRootsArray
-                );
+                marks[i] = true;
+                marks[j] = true;
 
-                for (int k = 0; k < count; k++) {
-                    double t = mCachedCollisionRootsArray[k];
-                    if (t >= 0.0 && t <= smallestTime) {
-                        smallestTime = t;
-                        result.setCollision(p0, s0, p1, s1, t);
-                        result.setIndexes(i, j);
-                        found = true;
-                    }
+                advancePlanet(states, i, t);
+                advancePlanet(states, j, t);
+
+                if (isMergeEnabled()) {
+                    // the planet j is removed after the batch, so the indexes do not change
+                    merge(result, states);
+                    mMergedPlanets[mergedCount++] = j;
+                } else {
+                    collide(result, states);
                 }
+
+                end = t;
+                batchCount++;
+            }
+
+            for (int m = 0; m < count; m++) {
+                advancePlanet(states, m, end);
+
+                mLocalTimes[m] = 0.0;
+                marks[m] = false;
             }
+
+            if (mergedCount > 0) {
+                Arrays.sort(mMergedPlanets, 0, mergedCount);
+
+                // from the last, so the planet moved to the place of a removed one is never removed
+                for (int k = mergedCount - 1; k >= 0; k--) {
+                    removePlanet(states, mMergedPlanets[k]);
+                }
+
+                count = states.getCount();
+            }
+
+            collisions += batchCount;
+            remainingTime -= end;
         }
 
-        return found;
+        advance(remainingTime, states);
     }
 
-    public void collide(CollisionResult result, PlanetState[] actualStates) {
-        // get the reference in array instead of CollisionResult so it can save the state for later
-        PlanetState s0 = actualStates[result.getIndex0()];
-        PlanetState s1 = actualStates[result.getIndex1()];
+    /**
+     * Add the earliest collision of each pair of planets until the remaining time to the batch,
+     * which is cleared first. If no planet collides, then {@code false} is returned.
+     */
+    public boolean findCollisions(CollisionResults batch, double remainingTime, StateArrays states) {
+        batch.clear(remainingTime);
+
+        IntegerList pairs = mCollisionPairs;
 
-        double m0 = result.getPlanet0().getMass();
-        double m1 = result.getPlanet1().getMass();
+        mBroadPhase.findPairs(states, remainingTime, pairs);
 
-        double dx = s1.x - s0.x;
-        double dy = s1.y - s0.y;
+        mStepPairCount += pairs.size() / 2;
 
-        double ir = 1.0 / Math.hypot(dx, dy);
+        double[] x = states.x;
+        double[] y = states.y;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] ax = states.ax;
+        double[] ay = states.ay;
+        double[] radius = states.radius;
 
-        dx *= ir;
-        dy *= ir;
+        for (int p = 0; p < pairs.size(); p += 2) {
+            int i = pairs.get(p);
+            int j = pairs.get(p + 1);
 
-        double u0 = s0.vx * dx + s0.vy * dy;
-        double u1 = s1.vx * dx + s1.vy * dy;
+            double t = findCollisionTime(x[j] - x[i], y[j] - y[i], vx[j] - vx[i], vy[j] - vy[i],
+                    ax[j] - ax[i], ay[j] - ay[i], radius[j] + radius[i], remainingTime);
 
-        double u0f = (2.0 * m1 * u1 + u0 * (m0 - m1)) / (m1 + m0);
-        double u1f = u0 + u0f - u1;
+            if (t >= 0.0) {
+                CollisionResult result = batch.nextCollision();
 
-        s0.vx += dx * (u0f - u0);
-        s0.vy += dy * (u0f - u0);
+                result.setCollision(mPlanets[states.id[i]], mPlanets[states.id[j]], t);
+                result.setIndexes(i, j);
+            }
+        }
 
-        s1.vx += dx * (u1f - u1);
-        s1.vy += dy * (u1f - u1);
+        return batch.getCollisionCount() > 0;
     }
 
-    private int solveCubic(double a, double b, double c, double d, double[] roots) {
-        if (a == 0) {
-            return solveSquare(b, c, d, roots);
-        }
+    /**
+     * Find the pairs from now until the time and the first collision of each planet. All the
+     * planets must be at the same time.
+     */
+    private void scheduleEvents(StateArrays states, double now, double time) {
+        int count = states.getCount();
+
+        IntegerList pairs = mCollisionPairs;
 
-        if (d == 0) {
-            // one of the roots is zero
+        mBroadPhase.findPairs(states, time - now, pairs);
 
-            int count = solveSquare(a, b, c, roots);
-            roots[count] = 0.0;
+        mStepPairCount += pairs.size() / 2;
 
-            return count + 1;
+        int pairCount = pairs.size();
+
+        if (mNeighbors.length < pairCount) {
+            mNeighbors = new int[pairCount];
         }
 
-        mCubicFunction.setEquation(a, b, c, d);
+        int[] start = mNeighborStart;
 
-        double x = 0;
-        do {
-            x = newtonRaphson(mCubicFunction, x + 1, Function.DEFAULT_LOOP_LIMIT, Function.DEFAULT_TOLERANCE);
-        } while (mCubicFunction.getState() == Function.STATE_ZERO_DERIVATIVE);
+        Arrays.fill(start, 0, count + 1, 0);
 
-        if (mCubicFunction.getState() == Function.STATE_COMPUTED) {
-            int count = solveSquare(a, b + a * x, -d / x, roots);
-            roots[count] = x;
-            return count + 1;
+        for (int p = 0; p < pairCount; p++) {
+            start[pairs.get(p) + 1]++;
         }
 
-        return 0;
-    }
+        for (int i = 0; i < count; i++) {
+            start[i + 1] += start[i];
+        }
+
+        // start[i] is used as the next free position of i and ends as the start of i + 1
+        for (int p = 0; p < pairCount; p += 2) {
+            int i = pairs.get(p);
+            int j = pairs.get(p + 1);
 
-    private int solveQuadratic(double a, double b, double c, double d, double e, double[] roots) {
-        if (a == 0) {
-            return solveCubic(b, c, d, e, roots);
+            mNeighbors[start[i]++] = j;
+            mNeighbors[start[j]++] = i;
         }
 
-        if (e == 0) {
-            // one of the roots is zero
-            int count = solveCubic(a, b, c, d, roots);
-            roots[count] = 0.0;
-            return count + 1;
+        for (int i = count; i > 0; i--) {
+            start[i] = start[i - 1];
         }
 
-        int count = solveCubic(4 * a, 3 * b, 2 * c, d, roots);
-        boolean positiveA = a > 0.0;
-        for (int i = 0; i < count; i++) {
-            double x = roots[i];
-            if (positiveA != ((((a * x + b) * x + c) * x + d) * x + e > 0.0)) {
-                mQuadraticFunction.setEquation(a, b, c, d, e);
+        start[0] = 0;
+
+        mEventQueue.reset(count);
 
-                x = 0;
-                do {
-                    x = newtonRaphson(mQuadraticFunction, x + 1, Function.DEFAULT_LOOP_LIMIT, Function.DEFAULT_TOLERANCE);
-                } while (mQuadraticFunction.getState() == Function.STATE_ZERO_DERIVATIVE);
+        for (int k = 0; k < mEscapedPlanets.size(); k++) {
+            mEscaped[mEscapedPlanets.get(k)] = false;
+        }
 
-                if (mQuadraticFunction.getState() == Function.STATE_COMPUTED) {
-                    double t = b + a * x;
+        mEscapedPlanets.clear();
 
-                    count = solveCubic(a, b + a * x, c + t * x, -e / x, roots);
-                    roots[count] = x;
+        Arrays.fill(mEventPartners, 0, count, -1);
 
-                    return count + 1;
-                } else {
-                    break;
-                }
+        for (int p = 0; p < pairCount; p += 2) {
+            int i = pairs.get(p);
+            int j = pairs.get(p + 1);
+
+            computeEvent(states, i, j, now, time);
+        }
+    }
+
+    /**
+     * Check if a planet that collided left its box. The planet is then marked as escaped and its
+     * box computed again, and {@code false} is returned if there are too many escaped planets.
+     */
+    private boolean checkEscape(StateArrays states, int i, double now, double time) {
+        if (mBroadPhase.contains(states, i, time - now)) return true;
+
+        if (!mEscaped[i]) {
+            if (mEscapedPlanets.size() >= Math.max(MIN_ESCAPED_PLANETS, (int) Math.sqrt(states.getCount()))) {
+                return false;
             }
+
+            mEscaped[i] = true;
+            mEscapedPlanets.add(i);
         }
 
-        return 0;
+        mBroadPhase.updateBounds(states, i, time - now);
+
+        return true;
     }
 
-    private double newtonRaphson(Function function, double x, int loopLimit, double tolerance) {
-        while (loopLimit-- > 0) {
-            function.solve(x);
-            double dy = function.getValueDerivative();
-            if (dy == 0) {
-                function.setState(Function.STATE_ZERO_DERIVATIVE);
-                return x;
+    /**
+     * Compute again the events of the planets that collided and of the planets whose event was a
+     * collision with them.
+     */
+    private void rescheduleEvents(StateArrays states, int i, int j, double now, double time) {
+        EventQueue queue = mEventQueue;
+
+        int staleCount = 0;
+
+        if (mEscaped[i] || mEscaped[j]) {
+            // an escaped planet may be the partner of any planet
+            for (int m = 0; m < states.getCount(); m++) {
+                staleCount = invalidateEvent(m, i, j, staleCount);
             }
-            double y = function.getSolvedFunctionValue();
+        } else {
+            for (int k = 0; k < 2; k++) {
+                int planet = k == 0 ? i : j;
 
-            if (-tolerance <= y && y <= tolerance) {
-                function.setState(Function.STATE_COMPUTED);
-                return x;
+                for (int n = mNeighborStart[planet]; n < mNeighborStart[planet + 1]; n++) {
+                    staleCount = invalidateEvent(mNeighbors[n], i, j, staleCount);
+                }
             }
 
-            x -= y / dy;
+            for (int k = 0; k < mEscapedPlanets.size(); k++) {
+                staleCount = invalidateEvent(mEscapedPlanets.get(k), i, j, staleCount);
+            }
         }
 
-        function.setState(Function.STATE_LOOP_LIMIT_REACHED);
+        mEventPartners[i] = -1;
+        mEventPartners[j] = -1;
+        queue.setTime(i, Double.POSITIVE_INFINITY);
+        queue.setTime(j, Double.POSITIVE_INFINITY);
+
+        computeEvents(states, i, now, time);
+        computeEvents(states, j, now, time);
 
-        return x;
+        for (int k = 0; k < staleCount; k++) {
+            computeEvents(states, mStaleEvents[k], now, time);
+        }
     }
 
-    protected void clearAccelerations(PlanetState[] states) {
-        SimulationUtils.clearAccelerations(states);
+    /**
+     * Remove the event of the planet m if it is a collision with i or j, and add it to the stale
+     * events.
+     */
+    private int invalidateEvent(int m, int i, int j, int staleCount) {
+        int partner = mEventPartners[m];
+
+        if (m != i && m != j && partner >= 0 && (partner == i || partner == j)) {
+            mEventPartners[m] = -1;
+            mEventQueue.setTime(m, Double.POSITIVE_INFINITY);
+
+            mStaleEvents[staleCount++] = m;
+        }
+
+        return staleCount;
     }
 
-    private static int solveSquare(double a, double b, double c, double[] roots) {
-        if (a == 0) {
-            if (b == 0) return 0;
-            // linear equation: bx+c = 0 -> x = -c / b
-            roots[0] = -c / b;
-            return 1;
+    private void computeEvents(StateArrays states, int i, double now, double time) {
+        if (mEscaped[i]) {
+            for (int j = 0; j < states.getCount(); j++) {
+                if (j != i && mBroadPhase.overlaps(i, j)) {
+                    computeEvent(states, i, j, now, time);
+                }
+            }
+
+            return;
+        }
+
+        for (int n = mNeighborStart[i]; n < mNeighborStart[i + 1]; n++) {
+            computeEvent(states, i, mNeighbors[n], now, time);
         }
 
-        double d = b * b - 4.0 * a * c;
+        for (int k = 0; k < mEscapedPlanets.size(); k++) {
+            int j = mEscapedPlanets.get(k);
 
-        if (d == 0) {
-            roots[0] = -b / (2.0 * a);
-            return 1;
+            if (j != i && mBroadPhase.overlaps(i, j)) {
+                computeEvent(states, i, j, now, time);
+            }
         }
-        if (d < 0) return 0;
+    }
 
-        a = 0.5 / a;
-        d = Math.sqrt(d);
+    private void computeEvent(StateArrays states, int i, int j, double now, double time) {
+        double t = findCollisionTime(states, i, j, now, time);
 
-        roots[0] = (-b - d) * a;
-        roots[1] = (-b + d) * a;
+        if (t >= 0.0) {
+            offerEvent(i, j, t);
+            offerEvent(j, i, t);
+        }
+    }
 
-        return 2;
+    private void offerEvent(int i, int j, double t) {
+        if (t < mEventQueue.getTime(i)) {
+            mEventQueue.setTime(i, t);
+            mEventPartners[i] = j;
+        }
     }
 
-    private static void debug(String msg) {
-        System.out.println(TAG + "/D " + msg);
+    /**
+     * Return the time when two planets collide after now and until the time, or a negative number
+     * if they do not collide. Both planets are moved from their own times to now before the check.
+     */
+    private double findCollisionTime(StateArrays states, int i, int j, double now, double time) {
+        double ti = now - mLocalTimes[i];
+        double tj = now - mLocalTimes[j];
+
+        double[] ax = states.ax;
+        double[] ay = states.ay;
+
+        double dx = states.x[j] + (states.vx[j] + 0.5 * ax[j] * tj) * tj
+                - states.x[i] - (states.vx[i] + 0.5 * ax[i] * ti) * ti;
+        double dy = states.y[j] + (states.vy[j] + 0.5 * ay[j] * tj) * tj
+                - states.y[i] - (states.vy[i] + 0.5 * ay[i] * ti) * ti;
+
+        double dvx = states.vx[j] + ax[j] * tj - states.vx[i] - ax[i] * ti;
+        double dvy = states.vy[j] + ay[j] * tj - states.vy[i] - ay[i] * ti;
+
+        double t = findCollisionTime(dx, dy, dvx, dvy, ax[j] - ax[i], ay[j] - ay[i],
+                states.radius[i] + states.radius[j], time - now);
+
+        return t < 0.0 ? t : now + t;
     }
 
-    private static void info(String msg) {
-        System.out.println(TAG + "/I " + msg);
+    /**
+     * Advance a planet from its own time to the time.
+     */
+    private void advancePlanet(StateArrays states, int i, double time) {
+        double t = time - mLocalTimes[i];
+
+        if (t == 0) return;
+
+        states.x[i] += states.vx[i] * t + states.ax[i] * t * t * 0.5;
+        states.y[i] += states.vy[i] * t + states.ay[i] * t * t * 0.5;
+
+        states.vx[i] += states.ax[i] * t;
+        states.vy[i] += states.ay[i] * t;
+
+        mLocalTimes[i] = time;
     }
 
-    private static abstract class Function {
+    /**
+     * Return the count of pairs that the broad phase gave to the exact check of the collisions in
+     * the last step, summing all the checks of the step. It is zero when the collisions are
+     * disabled.
+     */
+    public long getCandidatePairCount() {
+        return mCandidatePairCount;
+    }
 
-        static final double DEFAULT_TOLERANCE = 1.0E-8;
-        static final int DEFAULT_LOOP_LIMIT = 10000;
+    private void swapStateArrays() {
+        StateArrays aux = mLastState;
+        mLastState = mNextState;
+        mNextState = aux;
 
-        static final int STATE_NOT_COMPUTED = -1;
+        Diagnostics diagnostics = mLastDiagnostics;
+        mLastDiagnostics = mNextDiagnostics;
+        mNextDiagnostics = diagnostics;
+    }
 
-        static final int STATE_COMPUTED = 0;
-        static final int STATE_LOOP_LIMIT_REACHED = 1;
-        static final int STATE_ZERO_DERIVATIVE = 2;
-        double solvedFunctionValue;
-        double valueDerivative;
-        private int mState = STATE_NOT_COMPUTED;
+    /**
+     * Return the sums of the last state, which were summed with the masses of the states at the
+     * end of its step, or are summed here if the state is inside a frame.
+     */
+    @Override
+    public Diagnostics getDiagnostics() {
+        Diagnostics diagnostics = mLastDiagnostics;
 
-        public abstract void solve(double x);
+        if (diagnostics.isStale()) {
+            synchronized (mStepLock) {
+                diagnostics = mLastDiagnostics;
 
-        double getValueDerivative() {
-            return valueDerivative;
+                if (diagnostics.isStale()) {
+                    diagnostics.compute(mLastState, Double.NaN);
+                }
+            }
         }
 
-        double getSolvedFunctionValue() {
-            return solvedFunctionValue;
+        return diagnostics;
+    }
+
+    @Override
+    public double getKineticEnergy() {
+        return getDiagnostics().getKineticEnergy();
+    }
+
+    /**
+     * Sum again the diagnostics of the last state, after it changed outside of a step.
+     */
+    protected void updateLastDiagnostics() {
+        synchronized (mStepLock) {
+            mLastDiagnostics.compute(mLastState, computePotentialEnergy(mLastState));
         }
+    }
+
+    /**
+     * Return the potential energy of the last state. It is kept in the {@link Diagnostics} of the
+     * state, where it is NaN for the states inside a frame until it is computed here for the
+     * first time.
+     */
+    protected double getLastPotentialEnergy() {
+        synchronized (mStepLock) {
+            Diagnostics diagnostics = getDiagnostics();
+
+            double potentialEnergy = diagnostics.getPotentialEnergy();
+
+            if (Double.isNaN(potentialEnergy)) {
+                potentialEnergy = computePotentialEnergy(mLastState);
 
-        int getState() {
-            return mState;
+                diagnostics.setPotentialEnergy(potentialEnergy);
+            }
+
+            return potentialEnergy;
         }
+    }
+
+    /**
+     * Return the potential energy of the states, which is kept with them in their
+     * {@link Diagnostics}. It is called in the thread of the steps, or with the steps locked, so
+     * it may use the caches of the steps. The simulators that do not keep the potential energy
+     * with the states return NaN.
+     */
+    protected double computePotentialEnergy(StateArrays states) {
+        return Double.NaN;
+    }
 
-        void setState(int state) {
-            mState = state;
+    /**
+     * Sort the planets of the states along the curve of Morton. The other state is overwritten by
+     * these states in the step anyway, so only its constants are reordered.
+     */
+    private void reorderPlanets(StateArrays states) {
+        int[] order = mMortonOrder.sort(states);
+
+        int count = states.getCount();
+
+        int i = 0;
+
+        while (i < count && order[i] == i) {
+            i++;
         }
+
+        // already in order, like when the planets barely moved
+        if (i == count) return;
+
+        states.reorder(order, mReorderAux);
+        states.reorderConstants(order, mReorderAux, mReorderIndexAux);
+
+        onReorderCaches(order, count);
+
+        // the caches of the integrator follow the indexes
+        mIntegrator.reset();
+
+        mAdaptiveStepValid = false;
+    }
+
+    /**
+     * Move the planet of the index, as seen from outside of the simulator, to the location.
+     */
+    public void setPlanetLocation(int index, double x, double y) {
+        mLastState.setLocation(mLastState.getIndex(index), x, y);
+
+        updateLastDiagnostics();
+
+        mIntegrator.reset();
+
+        mAdaptiveStepValid = false;
+
+        // the next steps start from the moved planet
+        mSpanLength = 0;
     }
 
-    private static class CubicFunction extends Function {
+    /**
+     * Check for each planet if it collides with another planet. If no planet collides, then
+     * {@code false} is returned. Only the pairs given by the broad phase are checked.
+     */
+    public boolean checkCollisions(CollisionResult result, double remainingTime, StateArrays states) {
+        boolean found = false;
 
-        private double a;
-        private double b;
-        private double c;
-        private double d;
+        double smallestTime = remainingTime;
+
+        IntegerList pairs = mCollisionPairs;
+
+        mBroadPhase.findPairs(states, remainingTime, pairs);
+
+        mStepPairCount += pairs.size() / 2;
 
-        private double da;
-        private double db;
+        double[] x = states.x;
+        double[] y = states.y;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] ax = states.ax;
+        double[] ay = states.ay;
+        double[] radius = states.radius;
 
-        CubicFunction() {
+        for (int p = 0; p < pairs.size(); p += 2) {
+            int i = pairs.get(p);
+            int j = pairs.get(p + 1);
+
+            double t = findCollisionTime(x[j] - x[i], y[j] - y[i], vx[j] - vx[i], vy[j] - vy[i],
+                    ax[j] - ax[i], ay[j] - ay[i], radius[j] + radius[i], smallestTime);
+
+            if (t >= 0.0 && t <= smallestTime) {
+                smallestTime = t;
+                result.setCollision(mPlanets[states.id[i]], mPlanets[states.id[j]], t);
+                result.setIndexes(i, j);
+                found = true;
+            }
         }
 
-        @Override
-        public void solve(double x) {
-            solvedFunctionValue = ((a * x + b) * x + c) * x + d;
-            valueDerivative = (da * x + db) * x + c;
+        return found;
+    }
+
+    /**
+     * Return the earliest time until the limit when two planets collide, or a negative number if
+     * they do not collide. The arguments are the differences between the second planet and the
+     * first, and the sum of their radius. When the planets merge, two planets that already
+     * overlap collide at zero, so the collisions are repeated until no planet overlaps another.
+     */
+    private double findCollisionTime(double dx, double dy, double dvx, double dvy,
+                                     double dax, double day, double r, double limit) {
+        double distanceSqr = dx * dx + dy * dy;
+
+        // the farthest that the planets can approach each other until the limit
+        double reach = Math.sqrt(dvx * dvx + dvy * dvy) * limit
+                + 0.5 * Math.sqrt(dax * dax + day * day) * limit * limit;
+
+        if (distanceSqr > (r + reach) * (r + reach)) return -1.0;
+
+        // the distance squared minus the radius squared is a polynomial of fourth degree
+        double a = (dax * dax + day * day) * 0.25;
+        double b = dax * dvx + day * dvy;
+        double c = dax * dx + day * dy + dvx * dvx + dvy * dvy;
+        double d = 2.0 * (dvx * dx + dvy * dy);
+        double e = distanceSqr - r * r;
+
+        if (e <= 0.0) {
+            // the planets already touch, they collide now if they are getting closer. The planets
+            // that merge collide now anyway, because a merged planet grows and may cover a
+            // planet that is moving away from it
+            return d < 0.0 || isMergeEnabled() ? 0.0 : -1.0;
         }
 
-        void setEquation(double a, double b, double c, double d) {
-            this.a = a;
-            this.b = b;
-            this.c = c;
-            this.d = d;
+        int count = mQuarticSolver.solve(a, b, c, d, e, limit, mCachedCollisionRootsArray);
+
+        double smallestTime = -1.0;
 
-            da = 3.0 * a;
-            db = 2.0 * b;
+        for (int k = 0; k < count; k++) {
+            double t = mCachedCollisionRootsArray[k];
+
+            // the planets must be getting closer, otherwise the root is when they separate
+            if ((smallestTime < 0.0 || t < smallestTime)
+                    && ((4.0 * a * t + 3.0 * b) * t + 2.0 * c) * t + d < 0.0) {
+                smallestTime = t;
+            }
         }
+
+        return smallestTime;
     }
 
-    private static class QuadraticFunction extends Function {
+    public void collide(CollisionResult result, StateArrays states) {
+        mCollisionCount++;
 
-        private double a;
-        private double b;
-        private double c;
-        private double d;
-        private double e;
+        int i0 = result.getIndex0();
+        int i1 = result.getIndex1();
 
-        private double da;
-        private double db;
-        private double dc;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
 
-        QuadraticFunction() {
-        }
+        double m0 = states.mass[i0];
+        double m1 = states.mass[i1];
+
+        double dx = states.x[i1] - states.x[i0];
+        double dy = states.y[i1] - states.y[i0];
+
+        double ir = 1.0 / Math.hypot(dx, dy);
+
+        dx *= ir;
+        dy *= ir;
+
+        double u0 = vx[i0] * dx + vy[i0] * dy;
+        double u1 = vx[i1] * dx + vy[i1] * dy;
+
+        double u0f = (2.0 * m1 * u1 + u0 * (m0 - m1)) / (m1 + m0);
+        double u1f = u0 + u0f - u1;
+
+        vx[i0] += dx * (u0f - u0);
+        vy[i0] += dy * (u0f - u0);
+
+        vx[i1] += dx * (u1f - u1);
+        vy[i1] += dy * (u1f - u1);
+    }
+
+    /**
+     * Merge the second planet of the collision into the first one, keeping the total mass,
+     * momentum and charge. The new planet is at the center of mass and has the area of both. The
+     * second planet is left in the states and must be removed with
+     * {@link #removePlanet(StateArrays, int)}.
+     */
+    public void merge(CollisionResult result, StateArrays states) {
+        mCollisionCount++;
+
+        int i0 = result.getIndex0();
+        int i1 = result.getIndex1();
+
+        double m0 = states.mass[i0];
+        double m1 = states.mass[i1];
+
+        double mass = m0 + m1;
+
+        double w0 = 0.5;
+        double w1 = 0.5;
 
-        @Override
-        public void solve(double x) {
-            solvedFunctionValue = (((a * x + b) * x + c) * x + d) * x + e;
-            valueDerivative = ((da * x + db) * x + dc) * x + d;
+        if (mass != 0) {
+            w0 = m0 / mass;
+            w1 = m1 / mass;
         }
 
-        public void setEquation(double a, double b, double c, double d, double e) {
-            this.a = a;
-            this.b = b;
-            this.c = c;
-            this.d = d;
-            this.e = e;
+        states.x[i0] = states.x[i0] * w0 + states.x[i1] * w1;
+        states.y[i0] = states.y[i0] * w0 + states.y[i1] * w1;
 
-            da = 4.0 * a;
-            db = 3.0 * b;
-            dc = 2.0 * c;
+        states.vx[i0] = states.vx[i0] * w0 + states.vx[i1] * w1;
+        states.vy[i0] = states.vy[i0] * w0 + states.vy[i1] * w1;
+
+        states.ax[i0] = states.ax[i0] * w0 + states.ax[i1] * w1;
+        states.ay[i0] = states.ay[i0] * w0 + states.ay[i1] * w1;
+
+        states.forceX[i0] += states.forceX[i1];
+        states.forceY[i0] += states.forceY[i1];
+
+        double r0 = states.radius[i0];
+        double r1 = states.radius[i1];
+
+        states.mass[i0] = mass;
+        states.charge[i0] += states.charge[i1];
+        states.radius[i0] = Math.sqrt(r0 * r0 + r1 * r1);
+    }
+
+    /**
+     * Remove a planet from the states by moving the last planet to its place. The constants are
+     * shared with the other state, which is overwritten in the next step anyway.
+     */
+    protected void removePlanet(StateArrays states, int index) {
+        int last = states.getCount() - 1;
+
+        states.removeView(index);
+
+        if (index != last) {
+            states.move(last, index);
+            states.moveConstants(last, index);
         }
+
+        states.setCount(last);
+
+        int[] order = mReorder;
+
+        order[index] = last;
+
+        onReorderCaches(order, last);
+
+        order[index] = index;
+    }
+
+    /**
+     * Called after the planets of the states changed their indexes, like after a merge or when
+     * they are sorted by {@link MortonOrder}, so the caches of each planet follow them. The planet
+     * at the index i was at the index order[i], for each index until the count.
+     */
+    protected void onReorderCaches(int[] order, int count) {
+    }
+
+    protected void clearAccelerations(StateArrays states) {
+        states.clearAccelerations();
+    }
+
+    private static void debug(String msg) {
+        System.out.println(TAG + "/D " + msg);
+    }
+
+    private static void info(String msg) {
+        System.out.println(TAG + "/I " + msg);
     }
 }
@@ -0,0 +1,181 @@
+package nx1125.simulator.simulation;
+
+/**
+ * The sums over the planets of a state that show how well a simulator keeps what the forces
+ * conserve: the kinetic energy, the linear momentum, the angular momentum around the origin and
+ * the center of mass. They are summed in a single walk over the states, so asking for all of
+ * them costs the same as asking for one.
+ * <p>
+ * {@link DefaultSimulator} sums them once per frame and keeps them with the state, so they are
+ * only read by the interface. The sums of the states inside a frame are marked stale instead, and
+ * summed when they are asked for. The potential energy depends on the forces, so it is given by
+ * the simulator with the state.
+ * <p>
+ * The methods are synchronized, so the thread of the interface always reads the sums of a whole
+ * state while the simulator writes them in its own thread. Like the states themselves, they may
+ * be rewritten by the simulator a few steps after they are returned.
+ */
+public class Diagnostics {
+
+    private double mMass;
+
+    private double mKineticEnergy;
+
+    private double mMomentumX;
+    private double mMomentumY;
+
+    private double mAngularMomentum;
+
+    private double mPotentialEnergy = Double.NaN;
+
+    /**
+     * If the sums were not computed for the state that they are kept with.
+     */
+    private boolean mStale;
+
+    /**
+     * The sums of the masses times the positions, which give the center of mass.
+     */
+    private double mMassMomentX;
+    private double mMassMomentY;
+
+    /**
+     * Sum the quantities of the states, with the masses of the states, and keep the potential
+     * energy of the states given by the simulator.
+     */
+    public synchronized void compute(StateArrays states, double potentialEnergy) {
+        double[] x = states.x;
+        double[] y = states.y;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] mass = states.mass;
+
+        double totalMass = 0, kinetic = 0, momentumX = 0, momentumY = 0, angular = 0;
+        double momentX = 0, momentY = 0;
+
+        for (int i = 0; i < states.getCount(); i++) {
+            double m = mass[i];
+
+            double px = m * vx[i];
+            double py = m * vy[i];
+
+            totalMass += m;
+            kinetic += px * vx[i] + py * vy[i];
+            momentumX += px;
+            momentumY += py;
+            angular += x[i] * py - y[i] * px;
+            momentX += m * x[i];
+            momentY += m * y[i];
+        }
+
+        set(totalMass, 0.5 * kinetic, momentumX, momentumY, angular, momentX, momentY);
+
+        mPotentialEnergy = potentialEnergy;
+    }
+
+    /**
+     * Sum the quantities of the views of the states, with the masses of the planets. This is
+     * slower than {@link #compute(StateArrays, double)}, and wrong after some planets merged, so it is
+     * only used by the simulators that keep no other form of the states. They give no potential
+     * energy.
+     */
+    public synchronized void compute(PlanetState[] states, Planet[] planets) {
+        double totalMass = 0, kinetic = 0, momentumX = 0, momentumY = 0, angular = 0;
+        double momentX = 0, momentY = 0;
+
+        for (int i = 0; i < planets.length; i++) {
+            PlanetState state = states[i];
+            double m = planets[i].getMass();
+
+            double px = m * state.vx;
+            double py = m * state.vy;
+
+            totalMass += m;
+            kinetic += px * state.vx + py * state.vy;
+            momentumX += px;
+            momentumY += py;
+            angular += state.x * py - state.y * px;
+            momentX += m * state.x;
+            momentY += m * state.y;
+        }
+
+        set(totalMass, 0.5 * kinetic, momentumX, momentumY, angular, momentX, momentY);
+
+        mPotentialEnergy = Double.NaN;
+    }
+
+    /**
+     * Mark the sums as not computed for the state that they are kept with, until the next time
+     * that they are computed.
+     */
+    public synchronized void markStale() {
+        mStale = true;
+    }
+
+    public synchronized boolean isStale() {
+        return mStale;
+    }
+
+    private void set(double totalMass, double kinetic, double momentumX, double momentumY,
+                     double angular, double momentX, double momentY) {
+        mMass = totalMass;
+        mKineticEnergy = kinetic;
+        mMomentumX = momentumX;
+        mMomentumY = momentumY;
+        mAngularMomentum = angular;
+        mMassMomentX = momentX;
+        mMassMomentY = momentY;
+
+        mStale = false;
+    }
+
+    public synchronized double getMass() {
+        return mMass;
+    }
+
+    public synchronized double getKineticEnergy() {
+        return mKineticEnergy;
+    }
+
+    /**
+     * Return the potential energy of the forces between the planets, or NaN if it is not known for
+     * the state, like for the states inside a frame of {@link DefaultSimulator} until the
+     * potential energy of the simulator is asked for.
+     */
+    public synchronized double getPotentialEnergy() {
+        return mPotentialEnergy;
+    }
+
+    /**
+     * Keep the potential energy of the state when it is computed after its other sums.
+     */
+    public synchronized void setPotentialEnergy(double potentialEnergy) {
+        mPotentialEnergy = potentialEnergy;
+    }
+
+    public synchronized double getMomentumX() {
+        return mMomentumX;
+    }
+
+    public synchronized double getMomentumY() {
+        return mMomentumY;
+    }
+
+    /**
+     * Return the angular momentum around the origin, counterclockwise when positive.
+     */
+    public synchronized double getAngularMomentum() {
+        return mAngularMomentum;
+    }
+
+    /**
+     * Return the center of mass, or the origin if there is no mass.
+     */
+    public synchronized double getCenterX() {
+        return mMass == 0 ? 0 : mMassMomentX / mMass;
+    }
+
+    public synchronized double getCenterY() {
+        return mMass == 0 ? 0 : mMassMomentY / mMass;
+    }
+}
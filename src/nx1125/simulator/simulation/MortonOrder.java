@@ -0,0 +1,145 @@
+package nx1125.simulator.simulation;
+
+import java.util.Arrays;
+
+/**
+ * Sort the planets of a state along the curve of Morton, which visits the space in squares inside
+ * squares, so the planets that are close in space are mostly close in the arrays. The engines that
+ * walk the planets by their regions, like the trees and the grids, then read memory that is
+ * already in the cache instead of jumping through the whole arrays.
+ * <p>
+ * The positions are rounded to a grid of 2^16 cells in each direction over the bounds of the
+ * planets, and the bits of both coordinates are interleaved into a key of 32 bits. The keys are
+ * sorted by a radix sort of four passes of 8 bits, which is stable, so the planets in the same
+ * cell keep their order and sorting an already sorted state changes nothing.
+ */
+public class MortonOrder {
+
+    private static final int AXIS_BITS = 16;
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    private final int[] mCounts = new int[RADIX];
+
+    private int[] mKeys = new int[0];
+    private int[] mSortedKeys = new int[0];
+
+    private int[] mOrder = new int[0];
+    private int[] mSortedOrder = new int[0];
+
+    /**
+     * Return the order of the planets along the curve. The planet that goes to the index i is at
+     * the index order[i], for each index until the count of the states. The array is reused in the
+     * next call.
+     */
+    public int[] sort(StateArrays states) {
+        int count = states.getCount();
+
+        if (mKeys.length < count) {
+            int capacity = states.x.length;
+
+            mKeys = new int[capacity];
+            mSortedKeys = new int[capacity];
+            mOrder = new int[capacity];
+            mSortedOrder = new int[capacity];
+        }
+
+        for (int i = 0; i < count; i++) {
+            mOrder[i] = i;
+        }
+
+        if (count < 2) return mOrder;
+
+        computeKeys(states, count);
+
+        for (int shift = 0; shift < 2 * AXIS_BITS; shift += RADIX_BITS) {
+            sortDigit(count, shift);
+        }
+
+        return mOrder;
+    }
+
+    private void computeKeys(StateArrays states, int count) {
+        double[] x = states.x;
+        double[] y = states.y;
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+
+        // the same scale in both directions, so the cells are squares
+        double size = Math.max(maxX - minX, maxY - minY);
+        double scale = size > 0 ? ((1 << AXIS_BITS) - 1) / size : 0;
+
+        for (int i = 0; i < count; i++) {
+            int cellX = (int) ((x[i] - minX) * scale);
+            int cellY = (int) ((y[i] - minY) * scale);
+
+            mKeys[i] = spread(cellX) | (spread(cellY) << 1);
+        }
+    }
+
+    /**
+     * Move the 16 lowest bits of the value to the even bits.
+     */
+    private static int spread(int value) {
+        value &= 0xFFFF;
+
+        value = (value | (value << 8)) & 0x00FF00FF;
+        value = (value | (value << 4)) & 0x0F0F0F0F;
+        value = (value | (value << 2)) & 0x33333333;
+        value = (value | (value << 1)) & 0x55555555;
+
+        return value;
+    }
+
+    /**
+     * Sort the keys and the order by the digit of 8 bits at the shift, keeping the order of the
+     * equal digits.
+     */
+    private void sortDigit(int count, int shift) {
+        int[] counts = mCounts;
+
+        Arrays.fill(counts, 0);
+
+        for (int i = 0; i < count; i++) {
+            counts[(mKeys[i] >>> shift) & (RADIX - 1)]++;
+        }
+
+        // all the keys have the same digit, so nothing moves
+        if (counts[(mKeys[0] >>> shift) & (RADIX - 1)] == count) return;
+
+        int start = 0;
+
+        for (int d = 0; d < RADIX; d++) {
+            int digitCount = counts[d];
+            counts[d] = start;
+            start += digitCount;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int key = mKeys[i];
+            int k = counts[(key >>> shift) & (RADIX - 1)]++;
+
+            mSortedKeys[k] = key;
+            mSortedOrder[k] = mOrder[i];
+        }
+
+        int[] keys = mKeys;
+        mKeys = mSortedKeys;
+        mSortedKeys = keys;
+
+        int[] order = mOrder;
+        mOrder = mSortedOrder;
+        mSortedOrder = order;
+    }
+}
@@ -0,0 +1,366 @@
+package nx1125.simulator.simulation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compute the interactions between all pairs of planets in many threads. The triangle of pairs
+ * (i, j) with {@code i < j} is split into square tiles and the tiles are split between the workers
+ * so that each worker has about the same count of pairs. There are more workers than threads, but
+ * the workers that run in the same thread add their interactions into the same accumulator, so
+ * there is only one accumulator for each thread, the threads never write the same memory, and the
+ * accumulators are summed at the end.
+ * <p>
+ * The accumulator has a fixed count of components for each planet. Usually the components of the
+ * planet i start at {@code i * componentCount}, but the executor only sums the accumulators, so a
+ * kernel may use any layout with the same length.
+ */
+public class ParallelPairExecutor {
+
+    private static final int TILE_SIZE = 128;
+
+    private static final Map<Integer, ForkJoinPool> sPools = new HashMap<>();
+
+    /**
+     * The threads created by the pools, which may have finished since.
+     */
+    private static final List<Thread> sWorkerThreads = new ArrayList<>();
+
+    private final ForkJoinPool mPool;
+
+    private final int mWorkerCount;
+    private final int mComponentCount;
+
+    private final double[][] mAccumulators;
+
+    /**
+     * The thread that adds into each accumulator in the current execution. The accumulators are
+     * taken in order, so the taken ones are always the first.
+     */
+    private final AtomicReferenceArray<Thread> mAccumulatorThreads;
+
+    /**
+     * The count of accumulators taken in the last execution.
+     */
+    private int mAccumulatorCount;
+
+    private final WorkerTask[] mWorkerTasks;
+    private final MergeTask[] mMergeTasks;
+
+    private final ExecuteTask mExecuteTask;
+
+    /**
+     * The thread that waits for the execution. It is parked instead of joining the task, because
+     * joining from a thread that is not in the pool allocates a node for the waiting thread.
+     */
+    private Thread mCallerThread;
+
+    private volatile boolean mDone;
+
+    private Throwable mFailure;
+
+    private int mPlanetCount = -1;
+
+    /**
+     * The first and the last planet of each tile, as i0, i1, j0 and j1.
+     */
+    private int[] mTiles = new int[0];
+
+    /**
+     * The first tile of each worker. The last element is the count of tiles.
+     */
+    private final int[] mWorkerTiles;
+
+    private TileKernel mKernel;
+
+    public ParallelPairExecutor(int threadCount, int componentCount) {
+        mPool = getPool(threadCount);
+
+        // more workers than threads so a slow thread can be helped by the others
+        mWorkerCount = threadCount * 2;
+        mComponentCount = componentCount;
+
+        // a thread may run many workers, but there are never more threads than workers
+        mAccumulators = new double[mWorkerCount][0];
+        mAccumulatorThreads = new AtomicReferenceArray<>(mWorkerCount);
+
+        mWorkerTasks = new WorkerTask[mWorkerCount];
+        mMergeTasks = new MergeTask[mWorkerCount];
+
+        for (int i = 0; i < mWorkerCount; i++) {
+            mWorkerTasks[i] = new WorkerTask(i);
+            mMergeTasks[i] = new MergeTask(i);
+        }
+
+        mExecuteTask = new ExecuteTask();
+
+        mWorkerTiles = new int[mWorkerCount + 1];
+    }
+
+    private static ForkJoinPool getPool(int threadCount) {
+        // the pools are shared by all the simulators so the threads are not created again for
+        // each simulation
+        synchronized (sPools) {
+            return sPools.computeIfAbsent(threadCount,
+                    count -> new ForkJoinPool(count, ParallelPairExecutor::createWorkerThread, null, false));
+        }
+    }
+
+    private static ForkJoinWorkerThread createWorkerThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+
+        synchronized (sWorkerThreads) {
+            sWorkerThreads.add(thread);
+        }
+
+        return thread;
+    }
+
+    /**
+     * Copy the ids of the threads of all the executors that have not finished into the array and
+     * return their count. If the count is larger than the array, only the count is returned. The
+     * threads are shared by all the simulators, so they may also be working for another one.
+     */
+    public static int getWorkerThreadIds(long[] ids) {
+        synchronized (sWorkerThreads) {
+            for (int i = sWorkerThreads.size() - 1; i >= 0; i--) {
+                if (sWorkerThreads.get(i).getState() == Thread.State.TERMINATED) {
+                    sWorkerThreads.remove(i);
+                }
+            }
+
+            int count = sWorkerThreads.size();
+
+            if (count <= ids.length) {
+                for (int i = 0; i < count; i++) {
+                    ids[i] = sWorkerThreads.get(i).getId();
+                }
+            }
+
+            return count;
+        }
+    }
+
+    public int getComponentCount() {
+        return mComponentCount;
+    }
+
+    /**
+     * Compute all interactions between the first planets and return the accumulator with the sum
+     * of all workers. The returned array is reused by the next call, and no other object is
+     * allocated once the tiles and the accumulators exist.
+     */
+    public double[] execute(int planetCount, TileKernel kernel) {
+        if (planetCount != mPlanetCount) {
+            createTiles(planetCount);
+        }
+
+        mKernel = kernel;
+
+        mCallerThread = Thread.currentThread();
+        mFailure = null;
+        mDone = false;
+
+        for (int i = 0; i < mWorkerCount; i++) {
+            mAccumulatorThreads.set(i, null);
+        }
+
+        mExecuteTask.reinitialize();
+        mPool.execute(mExecuteTask);
+
+        while (!mDone) {
+            LockSupport.park(this);
+        }
+
+        // the task is only done after it returns from its finally block, which is very soon, and
+        // it must be done before it is submitted again
+        while (!mExecuteTask.isDone()) {
+            Thread.onSpinWait();
+        }
+
+        mKernel = null;
+        mCallerThread = null;
+
+        if (mFailure != null) {
+            throw new IllegalStateException("The interactions could not be computed", mFailure);
+        }
+
+        return mAccumulators[0];
+    }
+
+    private void createTiles(int planetCount) {
+        mPlanetCount = planetCount;
+
+        int blocks = (planetCount + TILE_SIZE - 1) / TILE_SIZE;
+        int tileCount = blocks * (blocks + 1) / 2;
+
+        if (mTiles.length < tileCount * 4) {
+            mTiles = new int[tileCount * 4];
+        }
+
+        long totalPairs = (long) planetCount * (planetCount - 1) / 2;
+
+        int tile = 0;
+        int worker = 0;
+        long pairs = 0;
+
+        mWorkerTiles[0] = 0;
+
+        for (int bi = 0; bi < blocks; bi++) {
+            for (int bj = bi; bj < blocks; bj++, tile++) {
+                int i0 = bi * TILE_SIZE;
+                int i1 = Math.min(planetCount, i0 + TILE_SIZE);
+                int j0 = bj * TILE_SIZE;
+                int j1 = Math.min(planetCount, j0 + TILE_SIZE);
+
+                mTiles[tile * 4] = i0;
+                mTiles[tile * 4 + 1] = i1;
+                mTiles[tile * 4 + 2] = j0;
+                mTiles[tile * 4 + 3] = j1;
+
+                // a worker is complete when it has its share of pairs
+                while (worker < mWorkerCount - 1 && pairs >= totalPairs * (worker + 1) / mWorkerCount) {
+                    mWorkerTiles[++worker] = tile;
+                }
+
+                long size = i1 - i0;
+                pairs += bi == bj ? size * (size - 1) / 2 : size * (j1 - j0);
+            }
+        }
+
+        while (worker < mWorkerCount) {
+            mWorkerTiles[++worker] = tileCount;
+        }
+    }
+
+    public interface TileKernel {
+
+        /**
+         * Add the interactions between the planets in [i0, i1) and the planets in [j0, j1) into
+         * the accumulator. When the ranges are the same, only the pairs with {@code i < j} must be
+         * computed.
+         */
+        void computeTile(int i0, int i1, int j0, int j1, double[] accumulator);
+    }
+
+    private class ExecuteTask extends RecursiveAction {
+
+        @Override
+        protected void compute() {
+            try {
+                invokeAll(mWorkerTasks);
+
+                mAccumulatorCount = 0;
+
+                while (mAccumulatorCount < mWorkerCount && mAccumulatorThreads.get(mAccumulatorCount) != null) {
+                    mAccumulatorCount++;
+                }
+
+                invokeAll(mMergeTasks);
+            } catch (Throwable e) {
+                mFailure = e;
+            } finally {
+                mDone = true;
+                LockSupport.unpark(mCallerThread);
+            }
+        }
+
+        private void invokeAll(RecursiveAction[] tasks) {
+            for (RecursiveAction task : tasks) {
+                task.reinitialize();
+            }
+
+            ForkJoinTask.invokeAll(tasks);
+        }
+    }
+
+    private class WorkerTask extends RecursiveAction {
+
+        private final int mWorker;
+
+        WorkerTask(int worker) {
+            mWorker = worker;
+        }
+
+        @Override
+        protected void compute() {
+            double[] accumulator = getAccumulator();
+
+            TileKernel kernel = mKernel;
+            int[] tiles = mTiles;
+
+            for (int tile = mWorkerTiles[mWorker]; tile < mWorkerTiles[mWorker + 1]; tile++) {
+                int index = tile * 4;
+
+                kernel.computeTile(tiles[index], tiles[index + 1], tiles[index + 2], tiles[index + 3], accumulator);
+            }
+        }
+
+        /**
+         * Return the accumulator of the current thread. The first worker of the thread takes the
+         * first free accumulator and clears it.
+         */
+        private double[] getAccumulator() {
+            Thread thread = Thread.currentThread();
+
+            int index = 0;
+
+            while (mAccumulatorThreads.get(index) != thread) {
+                if (mAccumulatorThreads.compareAndSet(index, null, thread)) {
+                    int length = mPlanetCount * mComponentCount;
+
+                    double[] accumulator = mAccumulators[index];
+
+                    if (accumulator.length < length) {
+                        accumulator = mAccumulators[index] = new double[length];
+                    } else {
+                        for (int i = 0; i < length; i++) {
+                            accumulator[i] = 0.0;
+                        }
+                    }
+
+                    return accumulator;
+                }
+
+                index++;
+            }
+
+            return mAccumulators[index];
+        }
+    }
+
+    private class MergeTask extends RecursiveAction {
+
+        private final int mPart;
+
+        MergeTask(int part) {
+            mPart = part;
+        }
+
+        @Override
+        protected void compute() {
+            int length = mPlanetCount * mComponentCount;
+
+            int start = (int) ((long) length * mPart / mWorkerCount);
+            int end = (int) ((long) length * (mPart + 1) / mWorkerCount);
+
+            double[] sum = mAccumulators[0];
+
+            for (int worker = 1; worker < mAccumulatorCount; worker++) {
+                double[] accumulator = mAccumulators[worker];
+
+                for (int i = start; i < end; i++) {
+                    sum[i] += accumulator[i];
+                }
+            }
+        }
+    }
+}
@@ -18,6 +18,14 @@ public class PlanetState implements Cloneable {
     public double forceX;
     public double forceY;
 
+    public double radius;
+
+    /**
+     * The index of the planet in the simulation. It may be different from the index of the state
+     * after planets merge.
+     */
+    public int id;
+
     public PlanetState(Planet planet) {
         x = planet.getX();
         y = planet.getY();
@@ -41,6 +49,9 @@ public class PlanetState implements Cloneable {
 
         forceX = state.forceX;
         forceY = state.forceY;
+
+        radius = state.radius;
+        id = state.id;
     }
 
     public PlanetState(double x, double y, double vx, double vy) {
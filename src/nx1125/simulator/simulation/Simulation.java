@@ -23,6 +23,29 @@ import java.util.List;
 
 public abstract class Simulation implements Serializable, Cloneable {
 
+    /**
+     * Move the planets with the acceleration of the beginning of each step.
+     *
+     * @see nx1125.simulator.simulation.integrator.TaylorIntegrator
+     */
+    public static final int INTEGRATOR_TAYLOR = 0;
+
+    /**
+     * The kick-drift-kick leapfrog, of second order and with one computation of the accelerations
+     * in each step.
+     *
+     * @see nx1125.simulator.simulation.integrator.LeapfrogIntegrator
+     */
+    public static final int INTEGRATOR_LEAPFROG = 1;
+
+    /**
+     * The integrator of Yoshida, of fourth order and with three computations of the
+     * accelerations in each step.
+     *
+     * @see nx1125.simulator.simulation.integrator.YoshidaIntegrator
+     */
+    public static final int INTEGRATOR_YOSHIDA = 2;
+
     private final List<Planet> mPlanetList = new ArrayList<>();
     /**
      * The number of frames to show in one second or one cycle.
@@ -41,6 +64,24 @@ public abstract class Simulation implements Serializable, Cloneable {
      */
     private double mTimeInterval = 0.001;
 
+    /**
+     * The count of threads used to compute the interactions between the planets.
+     */
+    private int mThreadCount = 1;
+
+    /**
+     * A test mode where the simulator fails when a step allocates memory.
+     */
+    private boolean mAllocationCheckEnabled = false;
+
+    private int mIntegrator = INTEGRATOR_TAYLOR;
+
+    private boolean mAdaptiveStepEnabled = false;
+
+    private double mAdaptiveStepAccuracy = 0.02;
+
+    private int mReorderInterval = 0;
+
     public Simulation() {
         this(60);
     }
@@ -99,6 +140,86 @@ public abstract class Simulation implements Serializable, Cloneable {
         mFrameRate = frameRate;
     }
 
+    /**
+     * Return the count of threads used to compute the interactions between the planets. When it
+     * is one, all the interactions are computed in the thread that calls the simulator.
+     */
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    public void setThreadCount(int threadCount) {
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * Return {@code true} if the simulator must throw an exception when a step allocates memory
+     * in the thread that calls it. This is meant to test the simulators, because measuring the
+     * memory of each step is not free.
+     *
+     * @see AllocationMonitor
+     */
+    public boolean isAllocationCheckEnabled() {
+        return mAllocationCheckEnabled;
+    }
+
+    public void setAllocationCheckEnabled(boolean allocationCheckEnabled) {
+        mAllocationCheckEnabled = allocationCheckEnabled;
+    }
+
+    /**
+     * Return the algorithm used to advance the planets in each step.
+     */
+    public int getIntegrator() {
+        return mIntegrator;
+    }
+
+    public void setIntegrator(int integrator) {
+        mIntegrator = integrator;
+    }
+
+    /**
+     * Return {@code true} if the simulator changes the length of its steps with how quickly the
+     * accelerations change. The steps are divided in close encounters, and while the
+     * accelerations change slowly and the collisions are disabled, a step may cover many states
+     * until the end of the frame, with the states inside it interpolated. The states of the
+     * frames are always computed by the integrator.
+     */
+    public boolean isAdaptiveStepEnabled() {
+        return mAdaptiveStepEnabled;
+    }
+
+    public void setAdaptiveStepEnabled(boolean adaptiveStepEnabled) {
+        mAdaptiveStepEnabled = adaptiveStepEnabled;
+    }
+
+    /**
+     * Return the fraction of the time in which the acceleration of a planet changes by itself
+     * that is used as the length of the adaptive steps. Smaller values give shorter steps.
+     */
+    public double getAdaptiveStepAccuracy() {
+        return mAdaptiveStepAccuracy;
+    }
+
+    public void setAdaptiveStepAccuracy(double adaptiveStepAccuracy) {
+        mAdaptiveStepAccuracy = adaptiveStepAccuracy;
+    }
+
+    /**
+     * Return the count of steps between the sorts of the planets by their positions, which keep
+     * the planets that are close in space close in memory too. When it is zero, the planets keep
+     * the order in which they were added.
+     *
+     * @see MortonOrder
+     */
+    public int getReorderInterval() {
+        return mReorderInterval;
+    }
+
+    public void setReorderInterval(int reorderInterval) {
+        mReorderInterval = reorderInterval;
+    }
+
     public abstract Simulator createSimulator();
 
     @Override
@@ -12,6 +12,14 @@ public interface Simulator {
 
     PlanetState[] computeStates();
 
+    /**
+     * Compute the next state like {@link #computeStates()}, but without updating the states
+     * returned by {@link #getLastComputedStates()} when the simulator keeps them in another form.
+     */
+    default void step() {
+        computeStates();
+    }
+
     Simulation getSimulation();
 
     Planet[] getPlanets();
@@ -20,17 +28,21 @@ public interface Simulator {
         return getKineticEnergy() + getPotentialEnergy();
     }
 
+    /**
+     * Return the kinetic energy, the momentums and the center of mass of the last computed
+     * states. This walks the views of the states, so the simulators that keep the states in
+     * another form should return the sums that they keep instead.
+     */
+    default Diagnostics getDiagnostics() {
+        Diagnostics diagnostics = new Diagnostics();
+
+        diagnostics.compute(getLastComputedStates(), getPlanets());
+
+        return diagnostics;
+    }
+
     default double getKineticEnergy() {
-        double kinetics = 0;
-        PlanetState[] states = getLastComputedStates();
-        Planet[] planets = getPlanets();
-        for (int i = 0; i < planets.length; i++) {
-            PlanetState state = states[i];
-            Planet planet = planets[i];
-
-            kinetics += 0.5 * planet.getMass() * (state.vx * state.vx + state.vy * state.vy);
-        }
-        return kinetics;
+        return getDiagnostics().getKineticEnergy();
     }
 
     double getPotentialEnergy();
@@ -0,0 +1,342 @@
+package nx1125.simulator.simulation;
+
+/**
+ * The states of all planets of a simulator, with each component in its own array, so that the
+ * loops of the simulators walk contiguous memory instead of objects spread in the heap. The mass,
+ * the charge and the radius of the planets are copied from the planets, so the loops do not need
+ * to read the planets either.
+ * <p>
+ * The arrays of the constants can be shared between many states of the same simulator, and only
+ * the arrays of the state are owned by each instance.
+ * <p>
+ * Planets can be removed, like when two planets merge, by moving the last planet to the place of
+ * the removed one. The index of each planet in the simulation is kept in {@link #id}.
+ * <p>
+ * The planets can also be reordered, like by {@link MortonOrder}, so the index of a planet in the
+ * arrays is not the index that the others know it by. That index is kept in {@link #view}, which
+ * follows the removals as if the planets were never reordered, and it gives the position of the
+ * planet in {@link #getStates()}.
+ * <p>
+ * The {@link PlanetState} objects are only views for who needs them, like the interface, and they
+ * are only updated when {@link #getStates()} is called.
+ */
+public class StateArrays {
+
+    public final double[] x;
+    public final double[] y;
+
+    public final double[] vx;
+    public final double[] vy;
+
+    public final double[] ax;
+    public final double[] ay;
+
+    public final double[] forceX;
+    public final double[] forceY;
+
+    public final double[] mass;
+    public final double[] charge;
+    public final double[] radius;
+
+    /**
+     * The index of each planet in the planets of the simulation, which is shared like the
+     * constants.
+     */
+    public final int[] id;
+
+    /**
+     * The index of each planet as seen from outside of the simulator, like by the interface,
+     * which is shared like the constants. It is the index that the planet would have if the
+     * planets were never reordered.
+     */
+    public final int[] view;
+
+    /**
+     * The index in the arrays of the planet of each view, which is shared like the constants.
+     */
+    private final int[] mIndexes;
+
+    private int mCount;
+
+    private PlanetState[] mStates;
+
+    public StateArrays(Planet[] planets) {
+        int count = planets.length;
+
+        x = new double[count];
+        y = new double[count];
+        vx = new double[count];
+        vy = new double[count];
+        ax = new double[count];
+        ay = new double[count];
+        forceX = new double[count];
+        forceY = new double[count];
+
+        mass = new double[count];
+        charge = new double[count];
+        radius = new double[count];
+        id = new int[count];
+        view = new int[count];
+        mIndexes = new int[count];
+
+        reset(planets);
+    }
+
+    /**
+     * Create the arrays of a new state that shares the constants of another state. The state is
+     * a copy of the other state.
+     */
+    public StateArrays(StateArrays states) {
+        int capacity = states.x.length;
+
+        x = new double[capacity];
+        y = new double[capacity];
+        vx = new double[capacity];
+        vy = new double[capacity];
+        ax = new double[capacity];
+        ay = new double[capacity];
+        forceX = new double[capacity];
+        forceY = new double[capacity];
+
+        mass = states.mass;
+        charge = states.charge;
+        radius = states.radius;
+        id = states.id;
+        view = states.view;
+        mIndexes = states.mIndexes;
+
+        setState(states);
+    }
+
+    /**
+     * Return the count of planets in the arrays. The arrays may be longer than it.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Put back all the planets with their initial states and constants. The arrays must have room
+     * for all of them.
+     */
+    public void reset(Planet[] planets) {
+        int count = planets.length;
+
+        for (int i = 0; i < count; i++) {
+            Planet p = planets[i];
+
+            mass[i] = p.getMass();
+            charge[i] = p.getCharge();
+            radius[i] = p.getRadius();
+            id[i] = i;
+            view[i] = i;
+            mIndexes[i] = i;
+
+            setState(i, p);
+        }
+
+        mCount = count;
+    }
+
+    /**
+     * Return the index in the arrays of the planet of the view.
+     */
+    public int getIndex(int view) {
+        return mIndexes[view];
+    }
+
+    /**
+     * Change the count of planets. The planets after the count are ignored.
+     */
+    public void setCount(int count) {
+        mCount = count;
+    }
+
+    /**
+     * Copy the state of the planet from one index to another.
+     */
+    public void move(int from, int to) {
+        x[to] = x[from];
+        y[to] = y[from];
+        vx[to] = vx[from];
+        vy[to] = vy[from];
+        ax[to] = ax[from];
+        ay[to] = ay[from];
+        forceX[to] = forceX[from];
+        forceY[to] = forceY[from];
+    }
+
+    /**
+     * Copy the constants of the planet from one index to another. The constants are shared, so
+     * this is done only once for all the states that share them.
+     */
+    public void moveConstants(int from, int to) {
+        mass[to] = mass[from];
+        charge[to] = charge[from];
+        radius[to] = radius[from];
+        id[to] = id[from];
+        view[to] = view[from];
+
+        mIndexes[view[to]] = to;
+    }
+
+    /**
+     * Remove the view of the planet before the planet itself is removed, by giving it to the
+     * planet of the last view, like the planets were removed before any reordering. This must be
+     * called before {@link #moveConstants(int, int)} moves the last planet to the index.
+     */
+    public void removeView(int index) {
+        int lastView = mCount - 1;
+
+        int moved = mIndexes[lastView];
+        int freed = view[index];
+
+        view[moved] = freed;
+        mIndexes[freed] = moved;
+    }
+
+    /**
+     * Put the state of the planet at the index order[i] in the index i, for each index until the
+     * count. The auxiliary array must be as long as the count.
+     */
+    public void reorder(int[] order, double[] aux) {
+        reorder(x, order, aux);
+        reorder(y, order, aux);
+        reorder(vx, order, aux);
+        reorder(vy, order, aux);
+        reorder(ax, order, aux);
+        reorder(ay, order, aux);
+        reorder(forceX, order, aux);
+        reorder(forceY, order, aux);
+    }
+
+    /**
+     * Reorder the constants like {@link #reorder(int[], double[])}. The constants are shared, so
+     * this is done only once for all the states that share them.
+     */
+    public void reorderConstants(int[] order, double[] aux, int[] indexAux) {
+        reorder(mass, order, aux);
+        reorder(charge, order, aux);
+        reorder(radius, order, aux);
+
+        reorder(id, order, indexAux);
+        reorder(view, order, indexAux);
+
+        for (int i = 0; i < mCount; i++) {
+            mIndexes[view[i]] = i;
+        }
+    }
+
+    private void reorder(double[] array, int[] order, double[] aux) {
+        for (int i = 0; i < mCount; i++) {
+            aux[i] = array[order[i]];
+        }
+
+        System.arraycopy(aux, 0, array, 0, mCount);
+    }
+
+    private void reorder(int[] array, int[] order, int[] aux) {
+        for (int i = 0; i < mCount; i++) {
+            aux[i] = array[order[i]];
+        }
+
+        System.arraycopy(aux, 0, array, 0, mCount);
+    }
+
+    public void setState(int index, Planet planet) {
+        x[index] = planet.getX();
+        y[index] = planet.getY();
+
+        vx[index] = planet.getVx();
+        vy[index] = planet.getVy();
+
+        ax[index] = 0;
+        ay[index] = 0;
+    }
+
+    /**
+     * Copy the position, the velocity and the acceleration of a planet from another state.
+     */
+    public void setState(int index, StateArrays states) {
+        x[index] = states.x[index];
+        y[index] = states.y[index];
+
+        vx[index] = states.vx[index];
+        vy[index] = states.vy[index];
+
+        ax[index] = states.ax[index];
+        ay[index] = states.ay[index];
+    }
+
+    /**
+     * Copy the whole state from another state.
+     */
+    public void setState(StateArrays states) {
+        int count = states.mCount;
+
+        System.arraycopy(states.x, 0, x, 0, count);
+        System.arraycopy(states.y, 0, y, 0, count);
+        System.arraycopy(states.vx, 0, vx, 0, count);
+        System.arraycopy(states.vy, 0, vy, 0, count);
+        System.arraycopy(states.ax, 0, ax, 0, count);
+        System.arraycopy(states.ay, 0, ay, 0, count);
+        System.arraycopy(states.forceX, 0, forceX, 0, count);
+        System.arraycopy(states.forceY, 0, forceY, 0, count);
+
+        mCount = count;
+    }
+
+    public void setLocation(int index, double x, double y) {
+        this.x[index] = x;
+        this.y[index] = y;
+    }
+
+    public void clearAccelerations() {
+        for (int i = 0; i < mCount; i++) {
+            ax[i] = 0;
+            ay[i] = 0;
+        }
+    }
+
+    public void clearForces() {
+        for (int i = 0; i < mCount; i++) {
+            forceX[i] = 0;
+            forceY[i] = 0;
+        }
+    }
+
+    public double distance(int i, int j) {
+        return Math.hypot(x[i] - x[j], y[i] - y[j]);
+    }
+
+    /**
+     * Return the state of each planet as objects, in the order of their views. The objects are
+     * reused, so they are only valid until the next call.
+     */
+    public PlanetState[] getStates() {
+        if (mStates == null || mStates.length != mCount) {
+            mStates = new PlanetState[mCount];
+
+            for (int i = 0; i < mCount; i++) {
+                mStates[i] = new PlanetState(0, 0, 0, 0);
+            }
+        }
+
+        for (int i = 0; i < mCount; i++) {
+            PlanetState s = mStates[view[i]];
+
+            s.x = x[i];
+            s.y = y[i];
+            s.vx = vx[i];
+            s.vy = vy[i];
+            s.ax = ax[i];
+            s.ay = ay[i];
+            s.forceX = forceX[i];
+            s.forceY = forceY[i];
+            s.radius = radius[i];
+            s.id = id[i];
+        }
+
+        return mStates;
+    }
+}
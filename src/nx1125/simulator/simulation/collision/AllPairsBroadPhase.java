@@ -0,0 +1,39 @@
+package nx1125.simulator.simulation.collision;
+
+import nx1125.simulator.IntegerList;
+import nx1125.simulator.simulation.StateArrays;
+
+/**
+ * Return every pair of planets, so the exact time of the collision is computed for all of them.
+ */
+public class AllPairsBroadPhase extends BroadPhase {
+
+    @Override
+    public void findPairs(StateArrays states, double time, IntegerList pairs) {
+        pairs.clear();
+
+        int count = states.getCount();
+
+        for (int i = 0; i < count; i++) {
+            for (int j = i + 1; j < count; j++) {
+                pairs.add(i);
+                pairs.add(j);
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(StateArrays states, int index, double time) {
+        // every pair is always found
+        return true;
+    }
+
+    @Override
+    public void updateBounds(StateArrays states, int index, double time) {
+    }
+
+    @Override
+    public boolean overlaps(int i, int j) {
+        return true;
+    }
+}
@@ -0,0 +1,145 @@
+package nx1125.simulator.simulation.collision;
+
+import nx1125.simulator.IntegerList;
+import nx1125.simulator.simulation.StateArrays;
+
+/**
+ * A broad phase finds the pairs of planets that may collide in an interval of time, so the exact
+ * time of the collision is only computed for them. Each planet is bounded by the box that it
+ * sweeps while it moves with its velocity and acceleration, inflated by its radius, and only the
+ * planets whose boxes overlap are candidates.
+ */
+public abstract class BroadPhase {
+
+    protected double[] mMinX = new double[0];
+    protected double[] mMinY = new double[0];
+    protected double[] mMaxX = new double[0];
+    protected double[] mMaxY = new double[0];
+
+    private double mExpansion;
+
+    private double mLow;
+    private double mHigh;
+
+    /**
+     * Replace the pairs by the pairs of planets that may collide before the time. Each pair is
+     * added as two consecutive indexes, the lowest first.
+     */
+    public abstract void findPairs(StateArrays states, double time, IntegerList pairs);
+
+    /**
+     * Return the fraction of the size of each box by which it is expanded on all sides. The size
+     * is the sum of the width and the height of the box.
+     */
+    public double getExpansion() {
+        return mExpansion;
+    }
+
+    /**
+     * Expand each box by a fraction of its size, so a box still bounds its planet for a while
+     * after a collision changes the velocity of the planet.
+     *
+     * @see #contains(StateArrays, int, double)
+     */
+    public void setExpansion(double expansion) {
+        mExpansion = expansion;
+    }
+
+    /**
+     * Return {@code true} if the planet stays in the box of the last pairs from now until the
+     * time, with its current velocity and acceleration. When it is {@code false}, the pairs of the
+     * planet may be missing some planets.
+     */
+    public boolean contains(StateArrays states, int index, double time) {
+        double r = states.radius[index];
+
+        computeRange(states.x[index], states.vx[index], states.ax[index], time);
+
+        if (mLow - r < mMinX[index] || mHigh + r > mMaxX[index]) return false;
+
+        computeRange(states.y[index], states.vy[index], states.ay[index], time);
+
+        return mLow - r >= mMinY[index] && mHigh + r <= mMaxY[index];
+    }
+
+    /**
+     * Compute the box of a planet again, after its velocity changed.
+     */
+    public void updateBounds(StateArrays states, int i, double time) {
+        computeRange(states.x[i], states.vx[i], states.ax[i], time);
+
+        double lowX = mLow;
+        double highX = mHigh;
+
+        computeRange(states.y[i], states.vy[i], states.ay[i], time);
+
+        // the same margin in both axes, because a collision may turn the planet to any side
+        double margin = (highX - lowX + mHigh - mLow) * mExpansion + states.radius[i];
+
+        mMinX[i] = lowX - margin;
+        mMaxX[i] = highX + margin;
+        mMinY[i] = mLow - margin;
+        mMaxY[i] = mHigh + margin;
+    }
+
+    /**
+     * Compute the box of each planet from now until the time.
+     */
+    protected void computeBounds(StateArrays states, double time) {
+        int count = states.getCount();
+
+        if (mMinX.length < count) {
+            mMinX = new double[count];
+            mMinY = new double[count];
+            mMaxX = new double[count];
+            mMaxY = new double[count];
+        }
+
+        for (int i = 0; i < count; i++) {
+            updateBounds(states, i, time);
+        }
+    }
+
+    /**
+     * Compute the range of {@code p + v t + a t^2 / 2} for t between zero and the time.
+     */
+    private void computeRange(double p, double v, double a, double time) {
+        double end = p + (v + 0.5 * a * time) * time;
+
+        double low = Math.min(p, end);
+        double high = Math.max(p, end);
+
+        if (a != 0) {
+            // the parabola turns back when the velocity is zero
+            double t = -v / a;
+
+            if (t > 0 && t < time) {
+                double turn = p + 0.5 * v * t;
+
+                low = Math.min(low, turn);
+                high = Math.max(high, turn);
+            }
+        }
+
+        mLow = low;
+        mHigh = high;
+    }
+
+    /**
+     * Return {@code true} if the boxes of two planets overlap.
+     */
+    public boolean overlaps(int i, int j) {
+        return mMinX[i] <= mMaxX[j] && mMinX[j] <= mMaxX[i]
+                && mMinY[i] <= mMaxY[j] && mMinY[j] <= mMaxY[i];
+    }
+
+    protected static void addPair(IntegerList pairs, int i, int j) {
+        if (i < j) {
+            pairs.add(i);
+            pairs.add(j);
+        } else {
+            pairs.add(j);
+            pairs.add(i);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package nx1125.simulator.simulation.collision;
+
+/**
+ * Find the roots with the formulas of Ferrari and Cardano, so each polynomial costs about the same
+ * no matter its coefficients. The quartic is written as a product of two quadratics using a root
+ * of its resolvent cubic, and the roots of both quadratics are refined with a few steps of Newton
+ * on the quartic to remove the rounding errors of the formulas.
+ * <p>
+ * The formulas divide by the leading coefficient, so they lose all precision when it is tiny,
+ * like the relative acceleration of two planets that fall the same way. When the interval is
+ * known, the polynomial is solved in the time divided by the interval, where the terms can be
+ * compared, and the leading terms that are negligible in the interval are dropped.
+ */
+public class ClosedFormQuarticSolver extends QuarticSolver {
+
+    private static final int POLISH_STEPS = 2;
+
+    /**
+     * A leading term this small next to the others in the interval is dropped. The formulas with
+     * it lose about its square in relative precision, while dropping it moves the roots in the
+     * interval about as much as its size, which the polishing on the whole polynomial removes.
+     * The roots that it adds are at least about its inverse fourth root away, so out of the
+     * interval.
+     */
+    private static final double NEGLIGIBLE_TERM = 1e-4;
+
+    private static final int MAX_POLISH_STEPS = 8;
+
+    /**
+     * The largest value of the polynomial at a root in the interval, relative to the sum of its
+     * terms. A root of the polynomial without the dropped terms that the polishing cannot bring
+     * below it is not a root of the whole polynomial.
+     */
+    private static final double ROOT_TOLERANCE = 1e-10;
+
+    private final double[] mCubicRoots = new double[3];
+
+    @Override
+    public int solve(double a, double b, double c, double d, double e, double[] roots) {
+        if (a == 0) {
+            return solveCubic(b, c, d, e, roots, 0);
+        }
+
+        if (e == 0) {
+            // one of the roots is zero
+            int count = solveCubic(a, b, c, d, roots, 0);
+            roots[count] = 0.0;
+            return count + 1;
+        }
+
+        double ia = 1.0 / a;
+
+        double b1 = b * ia;
+        double c1 = c * ia;
+        double d1 = d * ia;
+        double e1 = e * ia;
+
+        // x = y - b1 / 4 removes the cubic term
+        double shift = 0.25 * b1;
+        double shiftSqr = shift * shift;
+
+        double p = c1 - 6.0 * shiftSqr;
+        double q = d1 - 2.0 * c1 * shift + 8.0 * shiftSqr * shift;
+        double r = e1 - d1 * shift + c1 * shiftSqr - 3.0 * shiftSqr * shiftSqr;
+
+        int count;
+
+        if (q == 0) {
+            count = solveBiquadratic(p, r, roots);
+        } else {
+            // (y^2 + p / 2 + m)^2 = 2 m (y - q / (4 m))^2 when m is a root of the resolvent cubic
+            double m = findLargestRoot(1.0, p, 0.25 * p * p - r, -0.125 * q * q);
+
+            if (!(m > 0)) {
+                return 0;
+            }
+
+            double s = Math.sqrt(2.0 * m);
+            double u = 0.5 * p + m;
+            double v = 0.5 * q / s;
+
+            count = solveSquare(1.0, s, u - v, roots, 0);
+            count += solveSquare(1.0, -s, u + v, roots, count);
+        }
+
+        for (int i = 0; i < count; i++) {
+            roots[i] = polish(a, b, c, d, e, roots[i] - shift, POLISH_STEPS);
+        }
+
+        return count;
+    }
+
+    @Override
+    public int solve(double a, double b, double c, double d, double e, double limit, double[] roots) {
+        if (!(limit > 0.0 && limit < Double.POSITIVE_INFINITY)) {
+            return super.solve(a, b, c, d, e, limit, roots);
+        }
+
+        // the coefficients of the polynomial of s = t / limit, whose roots are in [0, 1]
+        double limitSqr = limit * limit;
+
+        a *= limitSqr * limitSqr;
+        b *= limitSqr * limit;
+        c *= limitSqr;
+        d *= limit;
+
+        double scale = Math.max(Math.abs(d), Math.abs(e));
+
+        int count;
+
+        if (Math.abs(a) > NEGLIGIBLE_TERM * Math.max(Math.max(Math.abs(b), Math.abs(c)), scale)) {
+            count = solve(a, b, c, d, e, roots);
+        } else if (Math.abs(b) > NEGLIGIBLE_TERM * Math.max(Math.abs(c), scale)) {
+            count = solveCubic(b, c, d, e, roots, 0);
+        } else if (Math.abs(c) > NEGLIGIBLE_TERM * scale) {
+            count = solveSquare(c, d, e, roots, 0);
+        } else {
+            count = solveSquare(0.0, d, e, roots, 0);
+        }
+
+        double tolerance = ROOT_TOLERANCE * (Math.abs(a) + Math.abs(b) + Math.abs(c) + Math.abs(d) + Math.abs(e));
+
+        int inside = 0;
+
+        for (int i = 0; i < count; i++) {
+            double x = polish(a, b, c, d, e, roots[i], MAX_POLISH_STEPS);
+
+            if (x >= 0.0 && x <= 1.0 && Math.abs((((a * x + b) * x + c) * x + d) * x + e) <= tolerance) {
+                roots[inside++] = x * limit;
+            }
+        }
+
+        return inside;
+    }
+
+    private static int solveBiquadratic(double p, double r, double[] roots) {
+        int count = 0;
+
+        double disc = p * p - 4.0 * r;
+
+        if (disc < 0) return 0;
+
+        double sqrtDisc = Math.sqrt(disc);
+
+        double z0 = 0.5 * (-p - sqrtDisc);
+        double z1 = 0.5 * (-p + sqrtDisc);
+
+        if (z0 >= 0) {
+            double y = Math.sqrt(z0);
+            roots[count++] = y;
+            roots[count++] = -y;
+        }
+
+        if (z1 >= 0 && z1 != z0) {
+            double y = Math.sqrt(z1);
+            roots[count++] = y;
+            roots[count++] = -y;
+        }
+
+        return count;
+    }
+
+    /**
+     * Return the largest real root of the cubic, which must have its leading coefficient
+     * different from zero.
+     */
+    private double findLargestRoot(double a, double b, double c, double d) {
+        int count = solveCubic(a, b, c, d, mCubicRoots, 0);
+
+        double x = mCubicRoots[0];
+
+        for (int i = 1; i < count; i++) {
+            x = Math.max(x, mCubicRoots[i]);
+        }
+
+        // the root of the resolvent cubic affects all the roots of the quartic
+        for (int i = 0; i < POLISH_STEPS; i++) {
+            double f = ((a * x + b) * x + c) * x + d;
+            double df = (3.0 * a * x + 2.0 * b) * x + c;
+
+            if (df == 0) break;
+
+            x -= f / df;
+        }
+
+        return x;
+    }
+
+    private static int solveCubic(double a, double b, double c, double d, double[] roots, int offset) {
+        if (a == 0) {
+            return solveSquare(b, c, d, roots, offset);
+        }
+
+        double ia = 1.0 / a;
+
+        double b1 = b * ia;
+        double c1 = c * ia;
+        double d1 = d * ia;
+
+        double third = b1 / 3.0;
+
+        double q = (b1 * b1 - 3.0 * c1) / 9.0;
+        double r = (2.0 * b1 * b1 * b1 - 9.0 * b1 * c1 + 27.0 * d1) / 54.0;
+
+        double qCube = q * q * q;
+        double rSqr = r * r;
+
+        if (rSqr < qCube) {
+            // three real roots
+            double theta = Math.acos(r / Math.sqrt(qCube));
+            double k = -2.0 * Math.sqrt(q);
+
+            roots[offset] = k * Math.cos(theta / 3.0) - third;
+            roots[offset + 1] = k * Math.cos((theta + 2.0 * Math.PI) / 3.0) - third;
+            roots[offset + 2] = k * Math.cos((theta - 2.0 * Math.PI) / 3.0) - third;
+
+            return 3;
+        }
+
+        double u = -Math.copySign(Math.cbrt(Math.abs(r) + Math.sqrt(rSqr - qCube)), r);
+        double v = u == 0 ? 0 : q / u;
+
+        roots[offset] = u + v - third;
+
+        return 1;
+    }
+
+    /**
+     * Solve the quadratic without subtracting close numbers, which would lose the precision of
+     * the smallest root.
+     */
+    private static int solveSquare(double a, double b, double c, double[] roots, int offset) {
+        if (a == 0) {
+            if (b == 0) return 0;
+
+            roots[offset] = -c / b;
+            return 1;
+        }
+
+        double disc = b * b - 4.0 * a * c;
+
+        if (disc < 0) return 0;
+
+        double q = -0.5 * (b + Math.copySign(Math.sqrt(disc), b));
+
+        if (q == 0) {
+            // both b and c are zero
+            roots[offset] = 0.0;
+            return 1;
+        }
+
+        roots[offset] = q / a;
+        roots[offset + 1] = c / q;
+
+        return 2;
+    }
+
+    /**
+     * Improve the root with the Newton method until a step does not improve it, with at most the
+     * given count of steps.
+     */
+    private static double polish(double a, double b, double c, double d, double e, double x, int steps) {
+        double f = (((a * x + b) * x + c) * x + d) * x + e;
+
+        for (int i = 0; i < steps; i++) {
+            double df = ((4.0 * a * x + 3.0 * b) * x + 2.0 * c) * x + d;
+
+            if (df == 0) break;
+
+            double next = x - f / df;
+            double nextF = (((a * next + b) * next + c) * next + d) * next + e;
+
+            // a step that does not improve the root is a step away from a double root
+            if (!(Math.abs(nextF) < Math.abs(f))) break;
+
+            x = next;
+            f = nextF;
+        }
+
+        return x;
+    }
+}
@@ -0,0 +1,110 @@
+package nx1125.simulator.simulation.collision;
+
+import java.util.Arrays;
+
+/**
+ * A priority queue with the time of the next collision of each planet. The planets are kept in a
+ * binary heap together with the position of each planet in it, so the time of any planet can be
+ * changed without searching for it. Planets without a collision have an infinite time.
+ */
+public class EventQueue {
+
+    private int mCount;
+
+    private int[] mHeap = new int[0];
+    private int[] mPosition = new int[0];
+    private double[] mTime = new double[0];
+
+    /**
+     * Put the planets in the queue, all of them with no collision.
+     */
+    public void reset(int count) {
+        if (mHeap.length < count) {
+            mHeap = new int[count];
+            mPosition = new int[count];
+            mTime = new double[count];
+        }
+
+        for (int i = 0; i < count; i++) {
+            mHeap[i] = i;
+            mPosition[i] = i;
+        }
+
+        Arrays.fill(mTime, 0, count, Double.POSITIVE_INFINITY);
+
+        mCount = count;
+    }
+
+    /**
+     * Return the planet with the earliest collision.
+     */
+    public int peek() {
+        return mHeap[0];
+    }
+
+    public double getTime(int planet) {
+        return mTime[planet];
+    }
+
+    public void setTime(int planet, double time) {
+        double old = mTime[planet];
+
+        mTime[planet] = time;
+
+        if (time < old) {
+            siftUp(mPosition[planet]);
+        } else if (time > old) {
+            siftDown(mPosition[planet]);
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    private void siftUp(int position) {
+        int planet = mHeap[position];
+        double time = mTime[planet];
+
+        while (position > 0) {
+            int parent = (position - 1) >> 1;
+            int other = mHeap[parent];
+
+            if (mTime[other] <= time) break;
+
+            place(other, position);
+            position = parent;
+        }
+
+        place(planet, position);
+    }
+
+    private void siftDown(int position) {
+        int planet = mHeap[position];
+        double time = mTime[planet];
+
+        while (true) {
+            int child = 2 * position + 1;
+
+            if (child >= mCount) break;
+
+            if (child + 1 < mCount && mTime[mHeap[child + 1]] < mTime[mHeap[child]]) {
+                child++;
+            }
+
+            int other = mHeap[child];
+
+            if (mTime[other] >= time) break;
+
+            place(other, position);
+            position = child;
+        }
+
+        place(planet, position);
+    }
+
+    private void place(int planet, int position) {
+        mHeap[position] = planet;
+        mPosition[planet] = position;
+    }
+}
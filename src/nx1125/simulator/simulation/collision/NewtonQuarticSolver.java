@@ -0,0 +1,231 @@
+package nx1125.simulator.simulation.collision;
+
+/**
+ * Find the roots with the Newton-Raphson method. A root of the derivative is found first to know
+ * where the polynomial changes its sign, and then a root of the polynomial is found and divided
+ * out of it, leaving a cubic that is solved the same way.
+ * <p>
+ * The count of iterations depends on the starting point and may be large, so the cost of each
+ * pair is not predictable.
+ */
+public class NewtonQuarticSolver extends QuarticSolver {
+
+    private final CubicFunction mCubicFunction = new CubicFunction();
+    private final QuadraticFunction mQuadraticFunction = new QuadraticFunction();
+
+    @Override
+    public int solve(double a, double b, double c, double d, double e, double[] roots) {
+        if (a == 0) {
+            return solveCubic(b, c, d, e, roots);
+        }
+
+        if (e == 0) {
+            // one of the roots is zero
+            int count = solveCubic(a, b, c, d, roots);
+            roots[count] = 0.0;
+            return count + 1;
+        }
+
+        int count = solveCubic(4 * a, 3 * b, 2 * c, d, roots);
+        boolean positiveA = a > 0.0;
+        for (int i = 0; i < count; i++) {
+            double x = roots[i];
+            if (positiveA != ((((a * x + b) * x + c) * x + d) * x + e > 0.0)) {
+                mQuadraticFunction.setEquation(a, b, c, d, e);
+
+                x = 0;
+                do {
+                    x = newtonRaphson(mQuadraticFunction, x + 1, Function.DEFAULT_LOOP_LIMIT, Function.DEFAULT_TOLERANCE);
+                } while (mQuadraticFunction.getState() == Function.STATE_ZERO_DERIVATIVE);
+
+                if (mQuadraticFunction.getState() == Function.STATE_COMPUTED) {
+                    double t = b + a * x;
+
+                    count = solveCubic(a, b + a * x, c + t * x, -e / x, roots);
+                    roots[count] = x;
+
+                    return count + 1;
+                } else {
+                    break;
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    private int solveCubic(double a, double b, double c, double d, double[] roots) {
+        if (a == 0) {
+            return solveSquare(b, c, d, roots);
+        }
+
+        if (d == 0) {
+            // one of the roots is zero
+
+            int count = solveSquare(a, b, c, roots);
+            roots[count] = 0.0;
+
+            return count + 1;
+        }
+
+        mCubicFunction.setEquation(a, b, c, d);
+
+        double x = 0;
+        do {
+            x = newtonRaphson(mCubicFunction, x + 1, Function.DEFAULT_LOOP_LIMIT, Function.DEFAULT_TOLERANCE);
+        } while (mCubicFunction.getState() == Function.STATE_ZERO_DERIVATIVE);
+
+        if (mCubicFunction.getState() == Function.STATE_COMPUTED) {
+            int count = solveSquare(a, b + a * x, -d / x, roots);
+            roots[count] = x;
+            return count + 1;
+        }
+
+        return 0;
+    }
+
+    private double newtonRaphson(Function function, double x, int loopLimit, double tolerance) {
+        while (loopLimit-- > 0) {
+            function.solve(x);
+            double dy = function.getValueDerivative();
+            if (dy == 0) {
+                function.setState(Function.STATE_ZERO_DERIVATIVE);
+                return x;
+            }
+            double y = function.getSolvedFunctionValue();
+
+            if (-tolerance <= y && y <= tolerance) {
+                function.setState(Function.STATE_COMPUTED);
+                return x;
+            }
+
+            x -= y / dy;
+        }
+
+        function.setState(Function.STATE_LOOP_LIMIT_REACHED);
+
+        return x;
+    }
+
+    private static int solveSquare(double a, double b, double c, double[] roots) {
+        if (a == 0) {
+            if (b == 0) return 0;
+            // linear equation: bx+c = 0 -> x = -c / b
+            roots[0] = -c / b;
+            return 1;
+        }
+
+        double d = b * b - 4.0 * a * c;
+
+        if (d == 0) {
+            roots[0] = -b / (2.0 * a);
+            return 1;
+        }
+        if (d < 0) return 0;
+
+        a = 0.5 / a;
+        d = Math.sqrt(d);
+
+        roots[0] = (-b - d) * a;
+        roots[1] = (-b + d) * a;
+
+        return 2;
+    }
+
+    private static abstract class Function {
+
+        static final double DEFAULT_TOLERANCE = 1.0E-8;
+        static final int DEFAULT_LOOP_LIMIT = 10000;
+
+        static final int STATE_NOT_COMPUTED = -1;
+
+        static final int STATE_COMPUTED = 0;
+        static final int STATE_LOOP_LIMIT_REACHED = 1;
+        static final int STATE_ZERO_DERIVATIVE = 2;
+        double solvedFunctionValue;
+        double valueDerivative;
+        private int mState = STATE_NOT_COMPUTED;
+
+        public abstract void solve(double x);
+
+        double getValueDerivative() {
+            return valueDerivative;
+        }
+
+        double getSolvedFunctionValue() {
+            return solvedFunctionValue;
+        }
+
+        int getState() {
+            return mState;
+        }
+
+        void setState(int state) {
+            mState = state;
+        }
+    }
+
+    private static class CubicFunction extends Function {
+
+        private double a;
+        private double b;
+        private double c;
+        private double d;
+
+        private double da;
+        private double db;
+
+        CubicFunction() {
+        }
+
+        @Override
+        public void solve(double x) {
+            solvedFunctionValue = ((a * x + b) * x + c) * x + d;
+            valueDerivative = (da * x + db) * x + c;
+        }
+
+        void setEquation(double a, double b, double c, double d) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+
+            da = 3.0 * a;
+            db = 2.0 * b;
+        }
+    }
+
+    private static class QuadraticFunction extends Function {
+
+        private double a;
+        private double b;
+        private double c;
+        private double d;
+        private double e;
+
+        private double da;
+        private double db;
+        private double dc;
+
+        QuadraticFunction() {
+        }
+
+        @Override
+        public void solve(double x) {
+            solvedFunctionValue = (((a * x + b) * x + c) * x + d) * x + e;
+            valueDerivative = ((da * x + db) * x + dc) * x + d;
+        }
+
+        public void setEquation(double a, double b, double c, double d, double e) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+            this.e = e;
+
+            da = 4.0 * a;
+            db = 3.0 * b;
+            dc = 2.0 * c;
+        }
+    }
+}
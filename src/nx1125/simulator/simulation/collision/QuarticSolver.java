@@ -0,0 +1,32 @@
+package nx1125.simulator.simulation.collision;
+
+/**
+ * Find the real roots of {@code a x^4 + b x^3 + c x^2 + d x + e}, which is the square of the
+ * distance between two planets minus the square of the sum of their radius, as a function of the
+ * time.
+ */
+public abstract class QuarticSolver {
+
+    /**
+     * Put the real roots in the array, which must have room for four roots, and return how many
+     * roots were found. The roots are in no particular order.
+     */
+    public abstract int solve(double a, double b, double c, double d, double e, double[] roots);
+
+    /**
+     * Put the real roots from zero until the limit in the array, which must have room for four
+     * roots, and return how many roots were found. The roots are in no particular order.
+     */
+    public int solve(double a, double b, double c, double d, double e, double limit, double[] roots) {
+        int count = solve(a, b, c, d, e, roots);
+        int inside = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (roots[i] >= 0.0 && roots[i] <= limit) {
+                roots[inside++] = roots[i];
+            }
+        }
+
+        return inside;
+    }
+}
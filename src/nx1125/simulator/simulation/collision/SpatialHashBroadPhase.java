@@ -0,0 +1,241 @@
+package nx1125.simulator.simulation.collision;
+
+import nx1125.simulator.IntegerList;
+import nx1125.simulator.simulation.StateArrays;
+
+import java.util.Arrays;
+
+/**
+ * Find the pairs with a uniform grid that is stored in a hash table, so only the cells that have
+ * planets use memory. Each box is added to all cells that it touches, and two boxes are only
+ * compared when they share a cell. A pair of boxes shares many cells when they overlap in more
+ * than one cell, so the pair is only reported by the cell that contains the lowest corner of the
+ * intersection of the boxes.
+ * <p>
+ * The size of the cells is twice the mean size of the boxes. A box that touches too many cells,
+ * like the box of a very fast planet, is not added to the grid and it is compared with all the
+ * other boxes instead, and so is a box that is too far from the others to have a cell, or that has
+ * no position at all.
+ */
+public class SpatialHashBroadPhase extends BroadPhase {
+
+    private static final int MAX_CELLS_PER_BOX = 16;
+
+    /**
+     * The cells are only numbered up to this, so the loops over the cells of a box cannot
+     * overflow.
+     */
+    private static final double MAX_CELL = 1 << 30;
+
+    private int mEntryCount;
+
+    private int[] mEntryPlanets = new int[0];
+    private int[] mEntryCellX = new int[0];
+    private int[] mEntryCellY = new int[0];
+    private int[] mEntryBuckets = new int[0];
+
+    /**
+     * The entries sorted by bucket, with the entries of the bucket b starting at
+     * {@code mBucketStart[b]}.
+     */
+    private int[] mSortedEntries = new int[0];
+    private int[] mBucketStart = new int[0];
+    private int mBucketCount;
+
+    private final IntegerList mLargePlanets = new IntegerList();
+    private boolean[] mLarge = new boolean[0];
+
+    private double mOriginX;
+    private double mOriginY;
+    private double mInverseCellSize;
+
+    @Override
+    public void findPairs(StateArrays states, double time, IntegerList pairs) {
+        pairs.clear();
+
+        int count = states.getCount();
+
+        if (count < 2) return;
+
+        computeBounds(states, time);
+        computeGrid(count);
+
+        fillEntries(count);
+        sortEntries();
+
+        findGridPairs(pairs);
+        findLargePairs(count, pairs);
+    }
+
+    private void computeGrid(int count) {
+        double originX = Double.POSITIVE_INFINITY;
+        double originY = Double.POSITIVE_INFINITY;
+        double size = 0;
+
+        for (int i = 0; i < count; i++) {
+            originX = Math.min(originX, mMinX[i]);
+            originY = Math.min(originY, mMinY[i]);
+
+            size += Math.max(mMaxX[i] - mMinX[i], mMaxY[i] - mMinY[i]);
+        }
+
+        double cellSize = 2.0 * size / count;
+
+        mOriginX = originX;
+        mOriginY = originY;
+        mInverseCellSize = cellSize > 0 ? 1.0 / cellSize : 1.0;
+    }
+
+    private double getCellX(double x) {
+        return Math.floor((x - mOriginX) * mInverseCellSize);
+    }
+
+    private double getCellY(double y) {
+        return Math.floor((y - mOriginY) * mInverseCellSize);
+    }
+
+    private void fillEntries(int count) {
+        mEntryCount = 0;
+        mLargePlanets.clear();
+
+        if (mLarge.length < count) {
+            mLarge = new boolean[count];
+        }
+
+        for (int i = 0; i < count; i++) {
+            double x0 = getCellX(mMinX[i]);
+            double y0 = getCellY(mMinY[i]);
+            double x1 = getCellX(mMaxX[i]);
+            double y1 = getCellY(mMaxY[i]);
+
+            // the cells start at the origin, so only the last cell can be out of range, and NaN
+            // fails the comparison too
+            mLarge[i] = !(x1 <= MAX_CELL && y1 <= MAX_CELL)
+                    || (x1 - x0 + 1) * (y1 - y0 + 1) > MAX_CELLS_PER_BOX;
+
+            if (mLarge[i]) {
+                mLargePlanets.add(i);
+                continue;
+            }
+
+            for (int cy = (int) y0; cy <= (int) y1; cy++) {
+                for (int cx = (int) x0; cx <= (int) x1; cx++) {
+                    addEntry(i, cx, cy);
+                }
+            }
+        }
+    }
+
+    private void addEntry(int planet, int cellX, int cellY) {
+        if (mEntryCount == mEntryPlanets.length) {
+            int capacity = Math.max(64, mEntryCount * 2);
+
+            mEntryPlanets = Arrays.copyOf(mEntryPlanets, capacity);
+            mEntryCellX = Arrays.copyOf(mEntryCellX, capacity);
+            mEntryCellY = Arrays.copyOf(mEntryCellY, capacity);
+            mEntryBuckets = Arrays.copyOf(mEntryBuckets, capacity);
+            mSortedEntries = new int[capacity];
+        }
+
+        int entry = mEntryCount++;
+
+        mEntryPlanets[entry] = planet;
+        mEntryCellX[entry] = cellX;
+        mEntryCellY[entry] = cellY;
+    }
+
+    /**
+     * Sort the entries by their bucket with a counting sort.
+     */
+    private void sortEntries() {
+        int bucketCount = Integer.highestOneBit(Math.max(1, mEntryCount) * 2);
+
+        if (mBucketStart.length < bucketCount + 1) {
+            mBucketStart = new int[bucketCount + 1];
+        } else {
+            for (int b = 0; b <= bucketCount; b++) {
+                mBucketStart[b] = 0;
+            }
+        }
+
+        int mask = bucketCount - 1;
+
+        for (int e = 0; e < mEntryCount; e++) {
+            int bucket = hash(mEntryCellX[e], mEntryCellY[e]) & mask;
+
+            mEntryBuckets[e] = bucket;
+            mBucketStart[bucket + 1]++;
+        }
+
+        for (int b = 0; b < bucketCount; b++) {
+            mBucketStart[b + 1] += mBucketStart[b];
+        }
+
+        // mBucketStart[b] is used as the next free position of the bucket and so, after the
+        // entries are placed, it is the end of the bucket, which is the start of the next one
+        for (int e = 0; e < mEntryCount; e++) {
+            mSortedEntries[mBucketStart[mEntryBuckets[e]]++] = e;
+        }
+
+        for (int b = bucketCount; b > 0; b--) {
+            mBucketStart[b] = mBucketStart[b - 1];
+        }
+
+        mBucketStart[0] = 0;
+
+        mBucketCount = bucketCount;
+    }
+
+    private void findGridPairs(IntegerList pairs) {
+        for (int b = 0; b < mBucketCount; b++) {
+            int start = mBucketStart[b];
+            int end = mBucketStart[b + 1];
+
+            for (int m = start; m < end; m++) {
+                int e0 = mSortedEntries[m];
+
+                int i = mEntryPlanets[e0];
+                int cellX = mEntryCellX[e0];
+                int cellY = mEntryCellY[e0];
+
+                for (int n = m + 1; n < end; n++) {
+                    int e1 = mSortedEntries[n];
+
+                    // different cells may have the same bucket
+                    if (mEntryCellX[e1] != cellX || mEntryCellY[e1] != cellY) continue;
+
+                    int j = mEntryPlanets[e1];
+
+                    if (!overlaps(i, j)) continue;
+
+                    // only the cell with the lowest corner of the intersection reports the pair
+                    if (getCellX(Math.max(mMinX[i], mMinX[j])) != cellX
+                            || getCellY(Math.max(mMinY[i], mMinY[j])) != cellY) continue;
+
+                    addPair(pairs, i, j);
+                }
+            }
+        }
+    }
+
+    private void findLargePairs(int count, IntegerList pairs) {
+        for (int k = 0; k < mLargePlanets.size(); k++) {
+            int i = mLargePlanets.get(k);
+
+            for (int j = 0; j < count; j++) {
+                if (j == i) continue;
+
+                // two large planets are compared only once
+                if (j < i && mLarge[j]) continue;
+
+                if (overlaps(i, j)) {
+                    addPair(pairs, i, j);
+                }
+            }
+        }
+    }
+
+    private static int hash(int x, int y) {
+        return (x * 73856093) ^ (y * 19349663);
+    }
+}
@@ -0,0 +1,85 @@
+package nx1125.simulator.simulation.collision;
+
+import nx1125.simulator.IntegerList;
+import nx1125.simulator.simulation.StateArrays;
+
+/**
+ * Find the pairs by sorting the boxes by their lowest x and sweeping through them, so each box is
+ * only compared with the boxes that start before it ends.
+ * <p>
+ * The order of the boxes is kept from one call to another. Planets move little in a step, so the
+ * order is almost sorted and the insertion sort that fixes it is close to linear.
+ */
+public class SweepAndPruneBroadPhase extends BroadPhase {
+
+    private int[] mOrder = new int[0];
+
+    private int mCount;
+
+    @Override
+    public void findPairs(StateArrays states, double time, IntegerList pairs) {
+        pairs.clear();
+
+        int count = states.getCount();
+
+        if (count < 2) return;
+
+        computeBounds(states, time);
+
+        if (count != mCount) {
+            resetOrder(count);
+        }
+
+        sortOrder();
+
+        int[] order = mOrder;
+
+        for (int k = 0; k < count; k++) {
+            int i = order[k];
+
+            double maxX = mMaxX[i];
+
+            for (int m = k + 1; m < count; m++) {
+                int j = order[m];
+
+                // all the next boxes start after this one ends
+                if (mMinX[j] > maxX) break;
+
+                if (mMinY[i] <= mMaxY[j] && mMinY[j] <= mMaxY[i]) {
+                    addPair(pairs, i, j);
+                }
+            }
+        }
+    }
+
+    private void resetOrder(int count) {
+        if (mOrder.length < count) {
+            mOrder = new int[count];
+        }
+
+        for (int i = 0; i < count; i++) {
+            mOrder[i] = i;
+        }
+
+        mCount = count;
+    }
+
+    private void sortOrder() {
+        int[] order = mOrder;
+        double[] minX = mMinX;
+
+        for (int k = 1; k < mCount; k++) {
+            int i = order[k];
+            double x = minX[i];
+
+            int m = k - 1;
+
+            while (m >= 0 && minX[order[m]] > x) {
+                order[m + 1] = order[m];
+                m--;
+            }
+
+            order[m + 1] = i;
+        }
+    }
+}
@@ -1,24 +1,31 @@
 package nx1125.simulator.simulation.elastic;
 
+import nx1125.simulator.IntegerList;
 import nx1125.simulator.simulation.DefaultSimulator;
-import nx1125.simulator.simulation.Planet;
-import nx1125.simulator.simulation.PlanetState;
+import nx1125.simulator.simulation.ParallelPairExecutor;
 import nx1125.simulator.simulation.SimulationUtils;
-
-import java.util.LinkedList;
-import java.util.List;
+import nx1125.simulator.simulation.StateArrays;
 
 public class ElasticSimulator extends DefaultSimulator implements AbstractElasticSimulator {
 
     private final ElasticSimulation mElasticSimulation;
 
-    // need to be index because of the States the are created in time
-    private final List<Integer> mLockedPlanets = new LinkedList<>();
+    // need to be index because of the States the are created in time, and they are the indexes of
+    // the views, which are kept when the planets are reordered
+    private final IntegerList mLockedPlanets = new IntegerList();
 
     private double mFrictionByVelocity;
     private double mElasticConstant;
     private double mRestingDistance;
 
+    private ParallelPairExecutor mPairExecutor;
+    private ElasticTileKernel mTileKernel;
+
+    /**
+     * The accelerations of a single pair, for {@link #computeAccelerationBetween(StateArrays, int, int)}.
+     */
+    private final double[] mPairAccelerations = new double[4];
+
     public ElasticSimulator(ElasticSimulation simulation) {
         super(simulation);
 
@@ -31,12 +38,20 @@ public class ElasticSimulator extends DefaultSimulator implements AbstractElasti
 
     @Override
     public boolean addLockedPlanet(int index) {
-        return !mLockedPlanets.contains(index) && mLockedPlanets.add(index);
+        synchronized (mLockedPlanets) {
+            if (mLockedPlanets.contains(index)) return false;
+
+            mLockedPlanets.add(index);
+
+            return true;
+        }
     }
 
     @Override
     public void removeLockedPlanet(int index) {
-        mLockedPlanets.remove((Integer) index);
+        synchronized (mLockedPlanets) {
+            mLockedPlanets.removeValue(index);
+        }
     }
 
     @Override
@@ -45,42 +60,88 @@ public class ElasticSimulator extends DefaultSimulator implements AbstractElasti
     }
 
     @Override
-    public void computeAccelerations(Planet[] planets, PlanetState[] states) {
-        SimulationUtils.clearAccelerations(states);
+    public void computeAccelerations(StateArrays states) {
+        states.clearAccelerations();
 
-        for (int i = 0; i < planets.length; i++) {
-            PlanetState s0 = states[i];
+        int count = states.getCount();
 
-            for (int j = i + 1; j < planets.length; j++) {
-                PlanetState s1 = states[j];
+        if (mElasticSimulation.getThreadCount() > 1) {
+            computeParallelAccelerations(states);
+            lateComputeAcceleration(states);
+            return;
+        }
 
-                computeAccelerationBetween(i, planets[i], s0, j, planets[j], s1);
+        for (int i = 0; i < count; i++) {
+            for (int j = i + 1; j < count; j++) {
+                computeAccelerationBetween(states, i, j);
             }
 
-            commitAcceleration(s0);
-            computeAccelerationFriction(s0);
+            commitAcceleration(states, i);
+            computeAccelerationFriction(states, i);
+        }
+
+        lateComputeAcceleration(states);
+    }
+
+    private void computeParallelAccelerations(StateArrays states) {
+        if (mPairExecutor == null) {
+            mPairExecutor = new ParallelPairExecutor(mElasticSimulation.getThreadCount(), 2);
+            mTileKernel = new ElasticTileKernel();
+        }
+
+        mTileKernel.mStates = states;
+
+        double[] accelerations = mPairExecutor.execute(states.getCount(), mTileKernel);
+
+        mTileKernel.mStates = null;
+
+        for (int i = 0; i < states.getCount(); i++) {
+            states.ax[i] = accelerations[2 * i];
+            states.ay[i] = accelerations[2 * i + 1];
+
+            commitAcceleration(states, i);
+            computeAccelerationFriction(states, i);
         }
+    }
 
-        lateComputeAcceleration(planets, states);
+    protected void computeAccelerationBetween(StateArrays states, int index0, int index1) {
+        double[] accelerations = mPairAccelerations;
+
+        accelerations[0] = accelerations[1] = accelerations[2] = accelerations[3] = 0.0;
+
+        computeAccelerationBetween(states, index0, index1, accelerations, 0, 2);
+
+        states.ax[index0] += accelerations[0];
+        states.ay[index0] += accelerations[1];
+        states.ax[index1] += accelerations[2];
+        states.ay[index1] += accelerations[3];
     }
 
-    protected void computeAccelerationBetween(int index0, Planet p0, PlanetState s0, int index1, Planet p1, PlanetState s1) {
-        double dx = s1.x - s0.x;
-        double dy = s1.y - s0.y;
+    /**
+     * Add the accelerations between the planets, without the elastic constant, into the array. The
+     * x and y of the first planet are added at {@code offset0} and {@code offset0 + 1}, and the ones
+     * of the second planet at {@code offset1} and {@code offset1 + 1}. This is the method to
+     * override to change the interaction, since it is used both by the sequential and the
+     * parallel computation.
+     */
+    protected void computeAccelerationBetween(StateArrays states, int index0, int index1,
+                                              double[] accelerations, int offset0, int offset1) {
+        double dx = states.x[index1] - states.x[index0];
+        double dy = states.y[index1] - states.y[index0];
 
         double r = SimulationUtils.hypot(dx, dy);
 
         double f = getElasticForceWithoutConstant(r) / r;
 
-        double a = f / p0.getMass();
+        double a = f / states.mass[index0];
 
-        s0.ax += a * dx;
-        s0.ay += a * dy;
+        accelerations[offset0] += a * dx;
+        accelerations[offset0 + 1] += a * dy;
 
-        a = f / p1.getMass();
+        a = f / states.mass[index1];
 
-        s1.ax -= a * dx;
-        s1.ay -= a * dy;
+        accelerations[offset1] -= a * dx;
+        accelerations[offset1 + 1] -= a * dy;
     }
 
     protected double getElasticForce(double radius) {
@@ -91,23 +152,25 @@ public class ElasticSimulator extends DefaultSimulator implements AbstractElasti
         return radius - mRestingDistance;
     }
 
-    protected void commitAcceleration(PlanetState state) {
-        state.ax *= mElasticConstant;
-        state.ay *= mElasticConstant;
+    protected void commitAcceleration(StateArrays states, int index) {
+        states.ax[index] *= mElasticConstant;
+        states.ay[index] *= mElasticConstant;
     }
 
-    protected void computeAccelerationFriction(PlanetState state) {
-        state.ax -= state.vx * mFrictionByVelocity;
-        state.ay -= state.vy * mFrictionByVelocity;
+    protected void computeAccelerationFriction(StateArrays states, int index) {
+        states.ax[index] -= states.vx[index] * mFrictionByVelocity;
+        states.ay[index] -= states.vy[index] * mFrictionByVelocity;
     }
 
-    protected boolean lateComputeAcceleration(Planet[] planets, PlanetState[] states) {
-        for (int index : mLockedPlanets) {
-            // after the compute, late update
-            PlanetState s = states[index];
+    protected boolean lateComputeAcceleration(StateArrays states) {
+        synchronized (mLockedPlanets) {
+            for (int i = 0; i < mLockedPlanets.size(); i++) {
+                int index = states.getIndex(mLockedPlanets.get(i));
 
-            s.vx = s.vy = 0;
-            s.ax = s.ay = 0;
+                // after the compute, late update
+                states.vx[index] = states.vy[index] = 0;
+                states.ax[index] = states.ay[index] = 0;
+            }
         }
 
         return false;
@@ -142,4 +205,24 @@ public class ElasticSimulator extends DefaultSimulator implements AbstractElasti
     public void setRestingDistance(double restingDistance) {
         mRestingDistance = restingDistance;
     }
+
+    /**
+     * Add the interactions of {@link #computeAccelerationBetween(StateArrays, int, int, double[], int, int)}
+     * into the accumulator of a worker so they can run in the threads of {@link ParallelPairExecutor}.
+     */
+    private class ElasticTileKernel implements ParallelPairExecutor.TileKernel {
+
+        private StateArrays mStates;
+
+        @Override
+        public void computeTile(int i0, int i1, int j0, int j1, double[] accumulator) {
+            StateArrays states = mStates;
+
+            for (int i = i0; i < i1; i++) {
+                for (int j = Math.max(j0, i + 1); j < j1; j++) {
+                    computeAccelerationBetween(states, i, j, accumulator, 2 * i, 2 * j);
+                }
+            }
+        }
+    }
 }
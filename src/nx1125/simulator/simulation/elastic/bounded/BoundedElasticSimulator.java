@@ -1,7 +1,6 @@
 package nx1125.simulator.simulation.elastic.bounded;
 
-import nx1125.simulator.simulation.Planet;
-import nx1125.simulator.simulation.PlanetState;
+import nx1125.simulator.simulation.StateArrays;
 import nx1125.simulator.simulation.field.FieldSimulator;
 
 public class BoundedElasticSimulator extends FieldSimulator {
@@ -11,7 +10,7 @@ public class BoundedElasticSimulator extends FieldSimulator {
     }
 
     @Override
-    protected void computeForces(Planet[] planets, PlanetState[] actualStates) {
+    protected void computeForces(StateArrays actualStates) {
         // The variables a0, a1 and h are functions of both planets that interact with each other.
         // The force between two particles are proportional to the distance.
         // The problem so far is to decide to use spin for a particle that behaves as an atom.
@@ -1,7 +1,6 @@
 package nx1125.simulator.simulation.elastic.linear;
 
-import nx1125.simulator.simulation.Planet;
-import nx1125.simulator.simulation.PlanetState;
+import nx1125.simulator.simulation.StateArrays;
 import nx1125.simulator.simulation.elastic.AbstractLinearElasticSimulator;
 import nx1125.simulator.simulation.elastic.ElasticSimulator;
 
@@ -27,19 +26,23 @@ public class LinearElasticSimulator extends ElasticSimulator implements Abstract
         mRingRelativePosition = new double[getPlanetCount() * 2];
     }
 
+    /**
+     * The springs join each planet to the next one in the arrays, so the planets keep their order.
+     */
+    @Override
+    protected boolean isReorderSupported() {
+        return false;
+    }
+
     private static double atan2(double x, double y) {
         double atan2 = Math.atan2(y, x);
         return atan2 < 0 ? 2 * Math.PI + atan2 : atan2;
     }
 
-    private void updateRingTrigonometricValues(PlanetState[] states) {
-        int count = states.length - 1;
+    private void updateRingTrigonometricValues(StateArrays states) {
+        int count = states.getCount() - 1;
 
         for (int i = 1, coordinateIndex = 0; i < count; i++) {
-            PlanetState state = states[i];
-
-            PlanetState s0 = states[i - 1];
-            PlanetState s1 = states[i + 1];
 
 //            state.ringAngle = (atan2(s1.x - state.x, s1.y - state.y)
 //                    + atan2(s0.x - state.x, s0.y - state.y)) * 0.5;
@@ -58,50 +61,47 @@ public class LinearElasticSimulator extends ElasticSimulator implements Abstract
     }
 
     @Override
-    public void computeAccelerations(Planet[] planets, PlanetState[] states) {
+    public void computeAccelerations(StateArrays states) {
         clearAccelerations(states);
 
         // updateRingTrigonometricValues(states);
 
-        computeStringAccelerations(planets, states);
+        computeStringAccelerations(states);
 
-        // computeRingNetForces(planets, states);
+        // computeRingNetForces(states);
         // applyRingForceToCenter(states);
 
-        // computeRingAxialAcceleration(states, planets);
+        // computeRingAxialAcceleration(states);
 
-        for (PlanetState state : states) computeAccelerationFriction(state);
+        for (int i = 0; i < states.getCount(); i++) computeAccelerationFriction(states, i);
 
-        lateComputeAcceleration(planets, states);
+        lateComputeAcceleration(states);
     }
 
-    protected void computeStringAccelerations(Planet[] planets, PlanetState[] states) {
-        int count = planets.length - 1;
+    protected void computeStringAccelerations(StateArrays states) {
+        int count = states.getCount() - 1;
         for (int i = 0; i < count; i++) {
-            computeAccelerationBetween(i, planets[i], states[i], i + 1, planets[i + 1], states[i + 1]);
-            commitAcceleration(states[i]);
+            computeAccelerationBetween(states, i, i + 1);
+            commitAcceleration(states, i);
         }
 
-        commitAcceleration(states[states.length - 1]);
+        commitAcceleration(states, count);
     }
 
-    protected void applyRingForceToCenter(PlanetState[] states) {
-        for (int i = 0, netForceCoordinateIndex = 0; i < states.length; i++) {
-            states[i].ax += mRingNetForces[netForceCoordinateIndex++];
-            states[i].ay += mRingNetForces[netForceCoordinateIndex++];
-            states[i].ax += mRingNetForces[netForceCoordinateIndex++];
-            states[i].ay += mRingNetForces[netForceCoordinateIndex++];
+    protected void applyRingForceToCenter(StateArrays states) {
+        for (int i = 0, netForceCoordinateIndex = 0; i < states.getCount(); i++) {
+            states.ax[i] += mRingNetForces[netForceCoordinateIndex++];
+            states.ay[i] += mRingNetForces[netForceCoordinateIndex++];
+            states.ax[i] += mRingNetForces[netForceCoordinateIndex++];
+            states.ay[i] += mRingNetForces[netForceCoordinateIndex++];
         }
     }
 
-    protected void computeRingNetForces(Planet[] planets, PlanetState[] states) {
-        int count = planets.length - 1;
+    protected void computeRingNetForces(StateArrays states) {
+        int count = states.getCount() - 1;
         for (int i = 0, netForceCoordinateIndex = 0, relativeCoordinateIndex = 0; i < count; i++) {
-            PlanetState state = states[i];
-            PlanetState next = states[i + 1];
-
-            double dx = next.x - state.x;
-            double dy = next.y - state.y;
+            double dx = states.x[i + 1] - states.x[i];
+            double dy = states.y[i + 1] - states.y[i];
 
             double rx = mRingRelativePosition[relativeCoordinateIndex] - mRingRelativePosition[relativeCoordinateIndex + 2];
             double ry = mRingRelativePosition[relativeCoordinateIndex + 1] - mRingRelativePosition[relativeCoordinateIndex + 3];
@@ -126,12 +126,12 @@ public class LinearElasticSimulator extends ElasticSimulator implements Abstract
         mRingNetForces[netForceIndex + 5] -= force * dy;
     }
 
-    protected void computeRingAxialAcceleration(PlanetState[] states, Planet[] planets) {
-        for (int i = 0, netForceIndex = 0, ringDirectionIndex = 0; i < states.length; i++) {
-            Planet p = planets[i];
+    protected void computeRingAxialAcceleration(StateArrays states) {
+        for (int i = 0, netForceIndex = 0, ringDirectionIndex = 0; i < states.getCount(); i++) {
+            double mass = states.mass[i];
 
-            double ax = (mRingNetForces[netForceIndex + 2] - mRingNetForces[netForceIndex]) / p.getMass();
-            double ay = (mRingNetForces[netForceIndex + 3] - mRingNetForces[netForceIndex + 1]) / p.getMass();
+            double ax = (mRingNetForces[netForceIndex + 2] - mRingNetForces[netForceIndex]) / mass;
+            double ay = (mRingNetForces[netForceIndex + 3] - mRingNetForces[netForceIndex + 1]) / mass;
 
             // multiply by the orthogonal of the radius direction to get the projection of the difference force
             // into the radius vector
@@ -139,7 +139,7 @@ public class LinearElasticSimulator extends ElasticSimulator implements Abstract
             double dy = mRingDirection[ringDirectionIndex++];
 
             // the orthogonal is (-dy, dx)
-//            states[i].ringAngleAcceleration = (dx * ay - dy * ax) / p.getRadius();
+//            states[i].ringAngleAcceleration = (dx * ay - dy * ax) / states.radius[i];
 
             netForceIndex += 4;
         }
@@ -156,13 +156,11 @@ public class LinearElasticSimulator extends ElasticSimulator implements Abstract
         double k = getElasticConstant();
         double resting = getRestingDistance();
 
-        int count = getPlanetCount();
-        PlanetState[] states = getLastComputedStates();
-        for (int i = 1; i < count; i++) {
-            PlanetState s0 = states[i - 1];
-            PlanetState s1 = states[i];
+        StateArrays states = getLastStateArrays();
 
-            double r = Math.hypot(s1.x - s0.x, s1.y - s0.y) - resting;
+        int count = states.getCount();
+        for (int i = 1; i < count; i++) {
+            double r = states.distance(i - 1, i) - resting;
 
             potentials += 0.5 * k * r * r;
         }
@@ -173,20 +171,20 @@ public class LinearElasticSimulator extends ElasticSimulator implements Abstract
     }
 
     @Override
-    protected void clearAccelerations(PlanetState[] states) {
+    protected void clearAccelerations(StateArrays states) {
         super.clearAccelerations(states);
 
         Arrays.fill(mRingNetForces, 0);
     }
 
     @Override
-    protected void advance(double time, PlanetState[] states) {
+    protected void advance(double time, StateArrays states) {
 
     }
 
-    private void computeTension(PlanetState s0, PlanetState s1) {
-//        double dx = s1.x - s0.x;
-//        double dy = s1.y - s0.y;
+    private void computeTension(StateArrays states, int index0, int index1) {
+//        double dx = states.x[index1] - states.x[index0];
+//        double dy = states.y[index1] - states.y[index0];
 
 //        double r = Math.hypot(dx, dy);
 
@@ -1,12 +1,10 @@
 package nx1125.simulator.simulation.elastic.linear2;
 
 import nx1125.simulator.FrameRateThread;
+import nx1125.simulator.IntegerList;
 import nx1125.simulator.simulation.*;
 import nx1125.simulator.simulation.elastic.AbstractLinearElasticSimulator;
 
-import java.util.LinkedList;
-import java.util.List;
-
 public class LinearElasticSimulator2 implements Simulator, AbstractLinearElasticSimulator {
 
     protected final int mPlanetCount;
@@ -14,14 +12,14 @@ public class LinearElasticSimulator2 implements Simulator, AbstractLinearElastic
     private final Object mLockObject = new Object();
     private final LinearElasticSimulation2 mElasticSimulation;
     // need to be index because of the States the are created in time
-    private final List<Integer> mLockedPlanets = new LinkedList<>();
+    private final IntegerList mLockedPlanets = new IntegerList();
     private final double mDoubleTimeIntervalSqr;
     protected double mFrictionByVelocity;
     protected double mElasticConstant;
     protected double mRestingDistance;
-    protected PlanetState[] mLastStates;
-    protected PlanetState[] mActualStates;
-    protected PlanetState[] mNextStates;
+    protected StateArrays mLastStates;
+    protected StateArrays mActualStates;
+    protected StateArrays mNextStates;
     protected Planet[] mPlanets;
     /**
      * Cache array to be used when computing the distance.
@@ -30,6 +28,13 @@ public class LinearElasticSimulator2 implements Simulator, AbstractLinearElastic
     private double[] mCachedNumeratorConstants;
     private double[] mCachedDenominatorConstants;
 
+    private AllocationMonitor mAllocationMonitor;
+
+    /**
+     * The sums of the last computed states, summed at the end of each step.
+     */
+    private final Diagnostics mDiagnostics = new Diagnostics();
+
     public LinearElasticSimulator2(LinearElasticSimulation2 simulation) {
         mElasticSimulation = simulation;
 
@@ -50,24 +55,26 @@ public class LinearElasticSimulator2 implements Simulator, AbstractLinearElastic
     public void onCreate() {
         mCachedDistances = new double[mPlanetCount - 1];
 
-        mLastStates = new PlanetState[mPlanetCount];
-        mActualStates = new PlanetState[mPlanetCount];
-        mNextStates = new PlanetState[mPlanetCount];
+        mLastStates = new StateArrays(mPlanets);
 
-        createInitialStates();
         createSecondStates();
-        copyActualToNext();
+
+        mNextStates = new StateArrays(mActualStates);
 
         mCachedNumeratorConstants = new double[mPlanetCount];
         mCachedDenominatorConstants = new double[mPlanetCount];
 
         invalidateCaches();
+
+        mDiagnostics.compute(mActualStates, Double.NaN);
+
+        mAllocationMonitor = AllocationMonitor.create(mElasticSimulation);
     }
 
     private void invalidateCaches() {
         if (mCachedNumeratorConstants != null) {
             for (int i = 0; i < mPlanetCount; i++) {
-                double c = mFrictionByVelocity * mTimeInterval / mPlanets[i].getMass();
+                double c = mFrictionByVelocity * mTimeInterval / mLastStates.mass[i];
 
                 mCachedNumeratorConstants[i] = c - 2;
                 mCachedDenominatorConstants[i] = c + 2;
@@ -75,42 +82,41 @@ public class LinearElasticSimulator2 implements Simulator, AbstractLinearElastic
         }
     }
 
-    private void createInitialStates() {
-        for (int i = 0; i < mPlanetCount; i++) {
-            mLastStates[i] = new PlanetState(mPlanets[i]);
-        }
-    }
-
     private void createSecondStates() {
         double halfTimeSqr = mTimeInterval * mTimeInterval * 0.5;
 
-        for (int i = 0; i < mPlanetCount; i++) {
-            PlanetState s = new PlanetState(mLastStates[i]);
-            mActualStates[i] = s;
-
-            s.x += mTimeInterval * s.vx + halfTimeSqr * s.ax;
-            s.y += mTimeInterval * s.vy + halfTimeSqr * s.ay;
-
-            s.vx += mTimeInterval * s.ax;
-            s.vy += mTimeInterval * s.ay;
-        }
-    }
+        StateArrays s = new StateArrays(mLastStates);
+        mActualStates = s;
 
-    private void copyActualToNext() {
         for (int i = 0; i < mPlanetCount; i++) {
-            mNextStates[i] = new PlanetState(mActualStates[i]);
+            s.x[i] += mTimeInterval * s.vx[i] + halfTimeSqr * s.ax[i];
+            s.y[i] += mTimeInterval * s.vy[i] + halfTimeSqr * s.ay[i];
+
+            s.vx[i] += mTimeInterval * s.ax[i];
+            s.vy[i] += mTimeInterval * s.ay[i];
         }
     }
 
     @Override
     public PlanetState[] getLastComputedStates() {
-        return mActualStates;
+        return mActualStates.getStates();
     }
 
     @Override
     public PlanetState[] computeStates() {
         synchronized (mLockObject) {
-            SimulationUtils.clearAccelerations(mActualStates);
+            step();
+
+            return mActualStates.getStates();
+        }
+    }
+
+    @Override
+    public void step() {
+        synchronized (mLockObject) {
+            if (mAllocationMonitor != null) mAllocationMonitor.begin();
+
+            mActualStates.clearAccelerations();
 
             computeForces();
 
@@ -118,74 +124,59 @@ public class LinearElasticSimulator2 implements Simulator, AbstractLinearElastic
                 advance(i);
             }
 
-            for (int i : mLockedPlanets) {
-                PlanetState actual = mActualStates[i];
+            for (int k = 0; k < mLockedPlanets.size(); k++) {
+                int i = mLockedPlanets.get(k);
 
-                mNextStates[i].setState(actual);
-//            mLastStates[i].setState(actual);
+                mNextStates.setState(i, mActualStates);
+//            mLastStates.setState(i, mActualStates);
             }
 
             // the last state is not needed anymore and so dump the array to be used in the next state
-            PlanetState[] aux = mLastStates;
+            StateArrays aux = mLastStates;
 
             mLastStates = mActualStates;
             mActualStates = mNextStates;
             mNextStates = aux;
 
-            return mActualStates;
+            mDiagnostics.compute(mActualStates, Double.NaN);
+
+            if (mAllocationMonitor != null) mAllocationMonitor.end();
         }
     }
 
     protected void advance(int index) {
-        PlanetState last = mLastStates[index];
-        PlanetState actual = mActualStates[index];
-        PlanetState next = mNextStates[index];
+        StateArrays last = mLastStates;
+        StateArrays actual = mActualStates;
+        StateArrays next = mNextStates;
 
-        double mass = mPlanets[index].getMass();
+        double mass = actual.mass[index];
 
-        actual.ax /= mass;
-        actual.ay /= mass;
+        actual.ax[index] /= mass;
+        actual.ay[index] /= mass;
 
         double n = mCachedNumeratorConstants[index];
         double d = mCachedDenominatorConstants[index];
 
-        next.x = (mDoubleTimeIntervalSqr * actual.ax + 4.0 * actual.x + last.x * n) / d;
-        next.y = (mDoubleTimeIntervalSqr * actual.ay + 4.0 * actual.y + last.y * n) / d;
+        next.x[index] = (mDoubleTimeIntervalSqr * actual.ax[index] + 4.0 * actual.x[index] + last.x[index] * n) / d;
+        next.y[index] = (mDoubleTimeIntervalSqr * actual.ay[index] + 4.0 * actual.y[index] + last.y[index] * n) / d;
 
-        next.vx = (next.x - last.x) / mTimeInterval;
-        next.vy = (next.y - last.y) / mTimeInterval;
+        next.vx[index] = (next.x[index] - last.x[index]) / mTimeInterval;
+        next.vy[index] = (next.y[index] - last.y[index]) / mTimeInterval;
     }
 
     protected void computeForces() {
         int count = mPlanetCount - 1;
 
         for (int i = 0; i < count; i++) {
-            PlanetState pi = mActualStates[i];
-            PlanetState pj = mActualStates[i + 1];
-
-            double dx = pj.x - pi.x;
-            double dy = pj.y - pi.y;
-
-            double r = SimulationUtils.hypot(dx, dy);
-
-            double force = (1.0 - mRestingDistance / r) * mElasticConstant;
-
-            mCachedDistances[i] = r;
-
-            pi.ax += force * dx;
-            pi.ay += force * dy;
-
-            pj.ax -= force * dx;
-            pj.ay -= force * dy;
+            getForceBetween(i, i + 1);
         }
     }
 
-    protected void getForceBetween(int i0, int i1, double radius) {
-        PlanetState pi = mActualStates[i0];
-        PlanetState pj = mActualStates[i1];
+    protected void getForceBetween(int i0, int i1) {
+        StateArrays s = mActualStates;
 
-        double dx = pj.x - pi.x;
-        double dy = pj.y - pi.y;
+        double dx = s.x[i1] - s.x[i0];
+        double dy = s.y[i1] - s.y[i0];
 
         double r = SimulationUtils.hypot(dx, dy);
 
@@ -193,11 +184,11 @@ public class LinearElasticSimulator2 implements Simulator, AbstractLinearElastic
 
         mCachedDistances[i0] = r;
 
-        pi.ax += force * dx;
-        pi.ay += force * dy;
+        s.ax[i0] += force * dx;
+        s.ay[i0] += force * dy;
 
-        pj.ax -= force * dx;
-        pj.ay -= force * dy;
+        s.ax[i1] -= force * dx;
+        s.ay[i1] -= force * dy;
     }
 
     @Override
@@ -210,6 +201,20 @@ public class LinearElasticSimulator2 implements Simulator, AbstractLinearElastic
         return mPlanets;
     }
 
+    /**
+     * Return the sums of the last computed states, which were summed at the end of their step.
+     * The potential energy is not kept with them, so it is NaN.
+     */
+    @Override
+    public Diagnostics getDiagnostics() {
+        return mDiagnostics;
+    }
+
+    @Override
+    public double getKineticEnergy() {
+        return mDiagnostics.getKineticEnergy();
+    }
+
     @Override
     public double getPotentialEnergy() {
         double potentials = 0;
@@ -274,35 +279,43 @@ public class LinearElasticSimulator2 implements Simulator, AbstractLinearElastic
         for (int i = 0; i < mPlanetCount; i++) {
             Planet p = mPlanets[i];
 
-            mLastStates[i].setState(p);
-            mNextStates[i].setState(p);
-            mActualStates[i].setState(p);
+            mLastStates.setState(i, p);
+            mNextStates.setState(i, p);
+            mActualStates.setState(i, p);
         }
+
+        mDiagnostics.compute(mActualStates, Double.NaN);
     }
 
     @Override
     public boolean addLockedPlanet(int index) {
         synchronized (mLockObject) {
             if (mNextStates != null) {
-                mNextStates[index].setState(mActualStates[index]);
-                mLastStates[index].setState(mActualStates[index]);
+                mNextStates.setState(index, mActualStates);
+                mLastStates.setState(index, mActualStates);
             }
 
-            return !mLockedPlanets.contains(index) && mLockedPlanets.add(index);
+            if (mLockedPlanets.contains(index)) return false;
+
+            mLockedPlanets.add(index);
+
+            return true;
         }
     }
 
     @Override
     public void setPlanetLocation(int index, double x, double y) {
         synchronized (mLockObject) {
-            mActualStates[index].setLocation(x, y);
-            mNextStates[index].setLocation(x, y);
-            mLastStates[index].setLocation(x, y);
+            mActualStates.setLocation(index, x, y);
+            mNextStates.setLocation(index, x, y);
+            mLastStates.setLocation(index, x, y);
         }
     }
 
     @Override
     public void removeLockedPlanet(int index) {
-        mLockedPlanets.remove((Integer) index);
+        synchronized (mLockObject) {
+            mLockedPlanets.removeValue(index);
+        }
     }
 }
@@ -5,9 +5,6 @@ import nx1125.simulator.simulation.*;
 
 public abstract class FieldSimulator implements Simulator {
 
-    protected final double[] mActualPositions;
-    protected final double[] mActualForces;
-    protected final double[] mActualAccelerations;
     protected final int mPlanetCount;
     protected final double mTimeInterval;
     private final Object mLockObject = new Object();
@@ -15,9 +12,9 @@ public abstract class FieldSimulator implements Simulator {
     private final double mCenterX;
     private final double mCenterY;
     private final double mBoundsRadius;
-    protected PlanetState[] mLastStates;
-    protected PlanetState[] mActualStates;
-    protected PlanetState[] mNextStates;
+    protected StateArrays mLastStates;
+    protected StateArrays mActualStates;
+    protected StateArrays mNextStates;
     protected Planet[] mPlanets;
     /**
      * Cache array to be used when computing the distance. All distances
@@ -27,6 +24,13 @@ public abstract class FieldSimulator implements Simulator {
     private double mDoubleTimeInterval;
     private double mTimeIntervalSqr;
 
+    private AllocationMonitor mAllocationMonitor;
+
+    /**
+     * The sums of the last computed states, summed at the end of each step.
+     */
+    private final Diagnostics mDiagnostics = new Diagnostics();
+
     public FieldSimulator(FieldSimulation simulation) {
         mElasticSimulation = simulation;
 
@@ -35,10 +39,6 @@ public abstract class FieldSimulator implements Simulator {
 
         mTimeInterval = simulation.getTimeInterval() / (simulation.getFrameRate() * FrameRateThread.INNER_STATES_COUNT);
 
-        mActualPositions = new double[mPlanetCount << 1];
-        mActualForces = new double[mActualPositions.length];
-        mActualAccelerations = new double[mActualPositions.length];
-
         System.out.println("Time interval : " + mTimeInterval);
 
         mCenterX = simulation.getCenterX();
@@ -51,21 +51,22 @@ public abstract class FieldSimulator implements Simulator {
     public void onCreate() {
         mCachedDistances = new double[mPlanetCount][];
 
-        mLastStates = new PlanetState[mPlanetCount];
-        mActualStates = new PlanetState[mPlanetCount];
-        mNextStates = new PlanetState[mPlanetCount];
+        mLastStates = new StateArrays(mPlanets);
 
-        createInitialStates();
         createSecondStates();
-        copyActualToNext();
 
-        int count = mPlanetCount - 1;
-        for (int i = 0; i < count; i++) {
-            mCachedDistances[i] = new double[i + 1];
+        mNextStates = new StateArrays(mActualStates);
+
+        for (int i = 0; i < mPlanetCount; i++) {
+            mCachedDistances[i] = new double[i];
         }
 
         mTimeIntervalSqr = mTimeInterval * mTimeInterval;
         mDoubleTimeInterval = 2.0 * mTimeInterval;
+
+        mDiagnostics.compute(mActualStates, Double.NaN);
+
+        mAllocationMonitor = AllocationMonitor.create(mElasticSimulation);
     }
 
     protected double getDistanceBetween(int i, int j) {
@@ -77,80 +78,64 @@ public abstract class FieldSimulator implements Simulator {
         }
     }
 
-    private void createInitialStates() {
-        for (int i = 0; i < mPlanetCount; i++) {
-            mLastStates[i] = new PlanetState(mPlanets[i]);
-        }
-    }
-
     private void createSecondStates() {
         double halfTimeSqr = mTimeInterval * mTimeInterval * 0.5;
 
-        for (int i = 0; i < mPlanetCount; i++) {
-            PlanetState s = new PlanetState(mLastStates[i]);
-            mActualStates[i] = s;
-
-            s.x += mTimeInterval * s.vx + halfTimeSqr * s.ax;
-            s.y += mTimeInterval * s.vy + halfTimeSqr * s.ay;
+        StateArrays s = new StateArrays(mLastStates);
+        mActualStates = s;
 
-            s.vx += mTimeInterval * s.ax;
-            s.vy += mTimeInterval * s.ay;
-        }
-    }
-
-    private void copyActualToNext() {
         for (int i = 0; i < mPlanetCount; i++) {
-            mNextStates[i] = new PlanetState(mActualStates[i]);
-        }
-    }
+            s.x[i] += mTimeInterval * s.vx[i] + halfTimeSqr * s.ax[i];
+            s.y[i] += mTimeInterval * s.vy[i] + halfTimeSqr * s.ay[i];
 
-    private void clearForces() {
-        for (int i = 0; i < mActualForces.length; i++) {
-            mActualForces[i] = 0;
-        }
-    }
-
-    private void copyToPositionCache() {
-        for (int i = 0, j = 0; i < mPlanetCount; i++) {
-            PlanetState s = mActualStates[i];
-
-            mActualPositions[j++] = s.x;
-            mActualPositions[j++] = s.y;
+            s.vx[i] += mTimeInterval * s.ax[i];
+            s.vy[i] += mTimeInterval * s.ay[i];
         }
     }
 
     @Override
     public PlanetState[] getLastComputedStates() {
-        return mActualStates;
+        return mActualStates.getStates();
     }
 
     @Override
     public PlanetState[] computeStates() {
         synchronized (mLockObject) {
-            SimulationUtils.clearAccelerations(mActualStates);
+            step();
+
+            return mActualStates.getStates();
+        }
+    }
+
+    @Override
+    public void step() {
+        synchronized (mLockObject) {
+            if (mAllocationMonitor != null) mAllocationMonitor.begin();
 
-            clearForces();
-            copyToPositionCache();
+            mActualStates.clearAccelerations();
+            mActualStates.clearForces();
 
             computeDistances();
 
-            computeForces(mPlanets, mActualStates);
+            computeForces(mActualStates);
 
             for (int i = 0; i < mPlanetCount; i++) {
                 advance(i);
             }
 
-            lateAdvance(mPlanets, mActualStates);
+            lateAdvance(mActualStates);
 
             swapStates();
 
-            return mActualStates;
+            mDiagnostics.compute(mActualStates, Double.NaN);
+
+            if (mAllocationMonitor != null) mAllocationMonitor.end();
         }
     }
 
     private void swapStates() {
         // the last state is not needed anymore and so dump the array to be used in the next state
-        PlanetState[] aux = mLastStates;
+        StateArrays aux = mLastStates;
 
         mLastStates = mActualStates;
         mActualStates = mNextStates;
@@ -159,35 +144,34 @@ public abstract class FieldSimulator implements Simulator {
 
     private void computeDistances() {
         for (int i = 1; i < mCachedDistances.length; i++) {
-            PlanetState s0 = mActualStates[i];
             double[] distances = mCachedDistances[i];
             for (int j = 0; j < i; j++) {
-                distances[j] = s0.distance(mActualStates[j]);
+                distances[j] = mActualStates.distance(i, j);
             }
         }
     }
 
     protected void advance(int index) {
-        PlanetState last = mLastStates[index];
-        PlanetState actual = mActualStates[index];
-        PlanetState next = mNextStates[index];
+        StateArrays last = mLastStates;
+        StateArrays actual = mActualStates;
+        StateArrays next = mNextStates;
 
-        double mass = mPlanets[index].getMass();
+        double mass = actual.mass[index];
 
-        actual.ax = actual.forceX / mass;
-        actual.ay = actual.forceY / mass;
+        actual.ax[index] = actual.forceX[index] / mass;
+        actual.ay[index] = actual.forceY[index] / mass;
 
-        next.x = mTimeIntervalSqr * actual.ax + 2.0 * actual.x + last.x;
-        next.y = mTimeIntervalSqr * actual.ay + 2.0 * actual.y + last.y;
+        next.x[index] = mTimeIntervalSqr * actual.ax[index] + 2.0 * actual.x[index] + last.x[index];
+        next.y[index] = mTimeIntervalSqr * actual.ay[index] + 2.0 * actual.y[index] + last.y[index];
 
-        next.vx = (next.x - last.x) / mDoubleTimeInterval;
-        next.vy = (next.y - last.y) / mDoubleTimeInterval;
+        next.vx[index] = (next.x[index] - last.x[index]) / mDoubleTimeInterval;
+        next.vy[index] = (next.y[index] - last.y[index]) / mDoubleTimeInterval;
     }
 
-    protected void lateAdvance(Planet[] planets, PlanetState[] states) {
+    protected void lateAdvance(StateArrays states) {
     }
 
-    protected abstract void computeForces(Planet[] planets, PlanetState[] actualStates);
+    protected abstract void computeForces(StateArrays actualStates);
 
     @Override
     public Simulation getSimulation() {
@@ -199,6 +183,20 @@ public abstract class FieldSimulator implements Simulator {
         return mPlanets;
     }
 
+    /**
+     * Return the sums of the last computed states, which were summed at the end of their step.
+     * The potential energy is not kept with them, so it is NaN.
+     */
+    @Override
+    public Diagnostics getDiagnostics() {
+        return mDiagnostics;
+    }
+
+    @Override
+    public double getKineticEnergy() {
+        return mDiagnostics.getKineticEnergy();
+    }
+
     @Override
     public abstract double getPotentialEnergy();
 
@@ -207,9 +205,11 @@ public abstract class FieldSimulator implements Simulator {
         for (int i = 0; i < mPlanetCount; i++) {
             Planet p = mPlanets[i];
 
-            mLastStates[i].setState(p);
-            mNextStates[i].setState(p);
-            mActualStates[i].setState(p);
+            mLastStates.setState(i, p);
+            mNextStates.setState(i, p);
+            mActualStates.setState(i, p);
         }
+
+        mDiagnostics.compute(mActualStates, Double.NaN);
     }
 }
@@ -0,0 +1,126 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.StateArrays;
+
+/**
+ * Sums of the fields that act over a single planet. The sums are computed without the constants
+ * of the simulation and so they must be multiplied by them before being used as accelerations.
+ */
+public class AccelerationCache {
+
+    double mGravitySumX;
+    double mGravitySumY;
+
+    double mElectricSumX;
+    double mElectricSumY;
+
+    double mMagneticSum;
+
+    /**
+     * The sums of the mass and the charge of the sources divided by their distances, which give
+     * the potential energy.
+     */
+    double mGravityPotential;
+    double mElectricPotential;
+
+    /**
+     * The derivatives in time of the gravity and electric sums, which are only computed for the
+     * integrators that need them.
+     */
+    double mGravityJerkX;
+    double mGravityJerkY;
+
+    double mElectricJerkX;
+    double mElectricJerkY;
+
+    public AccelerationCache() {
+    }
+
+    public void clear() {
+        mGravitySumX = mGravitySumY = mElectricSumX = mElectricSumY = mMagneticSum = 0;
+        mGravityPotential = mElectricPotential = 0;
+        mGravityJerkX = mGravityJerkY = mElectricJerkX = mElectricJerkY = 0;
+    }
+
+    /**
+     * Add the fields of the planet of the index in the states.
+     */
+    public void add(double dx, double dy, double ir3, StateArrays states, int index) {
+        add(dx, dy, ir3, ir3 * (dx * dx + dy * dy), states, index);
+    }
+
+    /**
+     * Add the fields of the planet of the index in the states, with the inverse of the distance
+     * given apart for the sources whose potential is not {@code 1 / r}.
+     */
+    public void add(double dx, double dy, double ir3, double ir, StateArrays states, int index) {
+        double charge = states.charge[index];
+
+        add(dx, dy, ir3, ir, states.mass[index], charge, charge * states.vx[index], charge * states.vy[index]);
+    }
+
+    /**
+     * Add the fields of a source that is at the distance (dx, dy) from the planet. The current is
+     * the charge of the source multiplied by its velocity and it is used by the magnetic field.
+     */
+    public void add(double dx, double dy, double ir3, double mass, double charge,
+                    double currentX, double currentY) {
+        add(dx, dy, ir3, ir3 * (dx * dx + dy * dy), mass, charge, currentX, currentY);
+    }
+
+    /**
+     * Add the fields of a source like {@link #add(double, double, double, double, double, double, double)},
+     * with the inverse of the distance given apart.
+     */
+    public void add(double dx, double dy, double ir3, double ir, double mass, double charge,
+                    double currentX, double currentY) {
+        mGravityPotential += mass * ir;
+        mElectricPotential += charge * ir;
+
+        mass *= ir3;
+        charge *= ir3;
+
+        mGravitySumX += mass * dx;
+        mGravitySumY += mass * dy;
+
+        mElectricSumX += charge * dx;
+        mElectricSumY += charge * dy;
+
+        mMagneticSum += ir3 * (currentX * dy - dx * currentY);
+    }
+
+    /**
+     * Add the derivatives in time of the fields of a source that is at the distance (dx, dy) and
+     * moves with the velocity (dvx, dvy) relative to the planet.
+     */
+    public void addJerk(double dx, double dy, double dvx, double dvy, double ir2, double ir3,
+                        double mass, double charge) {
+        double rv = 3.0 * (dx * dvx + dy * dvy) * ir2;
+
+        double jx = (dvx - rv * dx) * ir3;
+        double jy = (dvy - rv * dy) * ir3;
+
+        mGravityJerkX += mass * jx;
+        mGravityJerkY += mass * jy;
+
+        mElectricJerkX += charge * jx;
+        mElectricJerkY += charge * jy;
+    }
+
+    /**
+     * Add the fields that were already summed by other means, like an expansion.
+     */
+    public void addSums(double gravityX, double gravityY, double electricX, double electricY, double magnetic,
+                        double gravityPotential, double electricPotential) {
+        mGravityPotential += gravityPotential;
+        mElectricPotential += electricPotential;
+
+        mGravitySumX += gravityX;
+        mGravitySumY += gravityY;
+
+        mElectricSumX += electricX;
+        mElectricSumY += electricY;
+
+        mMagneticSum += magnetic;
+    }
+}
@@ -0,0 +1,418 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.StateArrays;
+
+import java.util.Arrays;
+
+/**
+ * Approximate the fields with a quadtree. A cell of the tree that is far enough from a planet is
+ * replaced by a single source at its center of mass, which carries the total mass, charge and
+ * current of the cell. A cell is far enough when its size divided by the distance is smaller
+ * than theta, so theta equals to zero is the same as the direct sum.
+ * <p>
+ * The tree is stored as arrays that are reused from one state to another, so the tree is only
+ * allocated again when it needs to grow.
+ * <p>
+ * The planets barely move between two computations, so the tree can be refit instead of built
+ * again: each planet stays in its leaf, and each cell grows around its center until it covers its
+ * planets and its children, from the leaves to the root. A bigger cell is opened more often, so
+ * the sums stay as accurate and only get slower, and the tree is built again when the cells grew
+ * by {@link #MAX_REFIT_GROWTH} on average, or when the count of planets changed.
+ */
+public class BarnesHutGravityEngine extends GravityEngine {
+
+    /**
+     * Planets at the same location would subdivide the tree forever, and so after this depth the
+     * leaf keeps a list of planets instead.
+     */
+    private static final int MAX_DEPTH = 48;
+
+    private static final int INITIAL_NODE_CAPACITY = 64;
+
+    /**
+     * The mean growth of the sizes of the cells with planets, relative to their sizes when the
+     * tree was built, above which the tree is built again instead of refit.
+     */
+    private static final double MAX_REFIT_GROWTH = 1.02;
+
+    private final double mThetaSqr;
+
+    private final boolean mRefitEnabled;
+
+    private int mNodeCount;
+
+    /**
+     * The count of planets of the tree, or -1 when there is no tree to refit.
+     */
+    private int mTreePlanetCount = -1;
+
+    private long mBuildCount;
+    private long mRefitCount;
+
+    /**
+     * The index of the first of the four children of each node, or -1 if the node is a leaf.
+     */
+    private int[] mFirstChild;
+
+    /**
+     * The first planet of the list of planets of a leaf, or -1 if there is none.
+     */
+    private int[] mFirstPlanet;
+    private int[] mNextPlanet;
+
+    private int[] mPlanetCount;
+
+    private double[] mCenterX;
+    private double[] mCenterY;
+    private double[] mHalfSize;
+
+    /**
+     * The half size of each cell when the tree was built, which is the least size of the cell.
+     */
+    private double[] mBuiltHalfSize;
+
+    private double[] mMass;
+    private double[] mMassCenterX;
+    private double[] mMassCenterY;
+    private double[] mCharge;
+    private double[] mCurrentX;
+    private double[] mCurrentY;
+
+    private final int[] mStack = new int[3 * MAX_DEPTH + 4];
+
+    public BarnesHutGravityEngine(double theta) {
+        this(theta, false);
+    }
+
+    public BarnesHutGravityEngine(double theta, boolean refitEnabled) {
+        mThetaSqr = theta * theta;
+        mRefitEnabled = refitEnabled;
+
+        allocateNodes(INITIAL_NODE_CAPACITY);
+        mNextPlanet = new int[0];
+    }
+
+    @Override
+    public void computeSums(StateArrays states, AccelerationCache[] caches) {
+        int count = states.getCount();
+
+        if (count == 0) return;
+
+        if (!mRefitEnabled || count != mTreePlanetCount || !refitTree(states)) {
+            buildTree(states);
+
+            mTreePlanetCount = count;
+            mBuildCount++;
+        } else {
+            mRefitCount++;
+        }
+
+        computeMoments(states);
+
+        for (int i = 0; i < count; i++) {
+            computeSum(i, states, caches[i]);
+        }
+    }
+
+    private void buildTree(StateArrays states) {
+        int count = states.getCount();
+
+        if (mNextPlanet.length < count) {
+            mNextPlanet = new int[count];
+        }
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, states.x[i]);
+            minY = Math.min(minY, states.y[i]);
+            maxX = Math.max(maxX, states.x[i]);
+            maxY = Math.max(maxY, states.y[i]);
+        }
+
+        mNodeCount = 0;
+
+        // a little bigger than the bounds so that the planets at the border are inside
+        double halfSize = Math.max(maxX - minX, maxY - minY) * 0.5 * 1.0001 + Double.MIN_NORMAL;
+
+        createNode(0.5 * (minX + maxX), 0.5 * (minY + maxY), halfSize);
+
+        for (int i = 0; i < count; i++) {
+            insert(i, states);
+        }
+    }
+
+    /**
+     * Grow the cells to cover the planets that moved out of them, keeping each planet in its leaf.
+     * Return {@code false} if the cells grew too much, and the tree must be built again.
+     */
+    private boolean refitTree(StateArrays states) {
+        double[] x = states.x;
+        double[] y = states.y;
+
+        double halfSizeSum = 0;
+        double builtHalfSizeSum = 0;
+
+        // the children are always created after their parent, so going backwards visits the
+        // children before the parent
+        for (int node = mNodeCount - 1; node >= 0; node--) {
+            // the cells without planets never receive planets until the tree is built again
+            if (mPlanetCount[node] == 0) continue;
+
+            double centerX = mCenterX[node];
+            double centerY = mCenterY[node];
+
+            double half = mBuiltHalfSize[node];
+
+            int first = mFirstChild[node];
+
+            if (first < 0) {
+                for (int i = mFirstPlanet[node]; i >= 0; i = mNextPlanet[i]) {
+                    half = Math.max(half, Math.max(Math.abs(x[i] - centerX), Math.abs(y[i] - centerY)));
+                }
+            } else {
+                for (int child = first; child < first + 4; child++) {
+                    if (mPlanetCount[child] == 0) continue;
+
+                    double reach = mHalfSize[child] + Math.max(
+                            Math.abs(mCenterX[child] - centerX), Math.abs(mCenterY[child] - centerY));
+
+                    half = Math.max(half, reach);
+                }
+            }
+
+            mHalfSize[node] = half;
+
+            halfSizeSum += half;
+            builtHalfSizeSum += mBuiltHalfSize[node];
+        }
+
+        return halfSizeSum <= MAX_REFIT_GROWTH * builtHalfSizeSum;
+    }
+
+    /**
+     * Return the count of times that the tree was built from the planets.
+     */
+    public long getBuildCount() {
+        return mBuildCount;
+    }
+
+    /**
+     * Return the count of times that the tree of the last computation was refit to the planets
+     * instead of built again.
+     */
+    public long getRefitCount() {
+        return mRefitCount;
+    }
+
+    private void insert(int index, StateArrays states) {
+        double x = states.x[index];
+        double y = states.y[index];
+
+        int node = 0;
+        int depth = 0;
+
+        while (true) {
+            int first = mFirstChild[node];
+
+            if (first < 0) {
+                int head = mFirstPlanet[node];
+
+                if (head < 0 || depth >= MAX_DEPTH) {
+                    mNextPlanet[index] = head;
+                    mFirstPlanet[node] = index;
+                    return;
+                }
+
+                // a leaf has only one planet before the maximum depth, move it to a child
+                first = split(node);
+
+                mFirstPlanet[node] = -1;
+                mFirstPlanet[first + getQuadrant(node, states.x[head], states.y[head])] = head;
+            }
+
+            node = first + getQuadrant(node, x, y);
+            depth++;
+        }
+    }
+
+    private int getQuadrant(int node, double x, double y) {
+        return (x >= mCenterX[node] ? 1 : 0) | (y >= mCenterY[node] ? 2 : 0);
+    }
+
+    private int split(int node) {
+        double half = mHalfSize[node] * 0.5;
+        double x = mCenterX[node];
+        double y = mCenterY[node];
+
+        // the order of the children must agree with getQuadrant
+        int first = createNode(x - half, y - half, half);
+        createNode(x + half, y - half, half);
+        createNode(x - half, y + half, half);
+        createNode(x + half, y + half, half);
+
+        mFirstChild[node] = first;
+
+        return first;
+    }
+
+    private int createNode(double centerX, double centerY, double halfSize) {
+        if (mNodeCount == mFirstChild.length) {
+            allocateNodes(mNodeCount * 2);
+        }
+
+        int node = mNodeCount++;
+
+        mFirstChild[node] = -1;
+        mFirstPlanet[node] = -1;
+
+        mCenterX[node] = centerX;
+        mCenterY[node] = centerY;
+        mHalfSize[node] = halfSize;
+        mBuiltHalfSize[node] = halfSize;
+
+        return node;
+    }
+
+    private void computeMoments(StateArrays states) {
+        // the children are always created after their parent, so going backwards visits the
+        // children before the parent
+        for (int node = mNodeCount - 1; node >= 0; node--) {
+            int count = 0;
+            double mass = 0;
+            double massX = 0;
+            double massY = 0;
+            double charge = 0;
+            double currentX = 0;
+            double currentY = 0;
+
+            int first = mFirstChild[node];
+
+            if (first < 0) {
+                for (int i = mFirstPlanet[node]; i >= 0; i = mNextPlanet[i]) {
+                    double m = states.mass[i];
+                    double q = states.charge[i];
+
+                    count++;
+                    mass += m;
+                    massX += m * states.x[i];
+                    massY += m * states.y[i];
+                    charge += q;
+                    currentX += q * states.vx[i];
+                    currentY += q * states.vy[i];
+                }
+            } else {
+                for (int child = first; child < first + 4; child++) {
+                    if (mPlanetCount[child] == 0) continue;
+
+                    double m = mMass[child];
+
+                    count += mPlanetCount[child];
+                    mass += m;
+                    massX += m * mMassCenterX[child];
+                    massY += m * mMassCenterY[child];
+                    charge += mCharge[child];
+                    currentX += mCurrentX[child];
+                    currentY += mCurrentY[child];
+                }
+            }
+
+            mPlanetCount[node] = count;
+            mMass[node] = mass;
+            mCharge[node] = charge;
+            mCurrentX[node] = currentX;
+            mCurrentY[node] = currentY;
+
+            if (mass != 0) {
+                mMassCenterX[node] = massX / mass;
+                mMassCenterY[node] = massY / mass;
+            } else {
+                mMassCenterX[node] = mCenterX[node];
+                mMassCenterY[node] = mCenterY[node];
+            }
+        }
+    }
+
+    private void computeSum(int index, StateArrays states, AccelerationCache cache) {
+        double x = states.x[index];
+        double y = states.y[index];
+
+        int[] stack = mStack;
+        int top = 0;
+
+        stack[top++] = 0;
+
+        while (top > 0) {
+            int node = stack[--top];
+
+            if (mPlanetCount[node] == 0) continue;
+
+            int first = mFirstChild[node];
+
+            if (first < 0) {
+                for (int j = mFirstPlanet[node]; j >= 0; j = mNextPlanet[j]) {
+                    if (j == index) continue;
+
+                    double dx = states.x[j] - x;
+                    double dy = states.y[j] - y;
+
+                    double ir = 1.0 / Math.sqrt(dx * dx + dy * dy);
+
+                    cache.add(dx, dy, ir * ir * ir, ir, states, j);
+                }
+            } else {
+                double dx = mMassCenterX[node] - x;
+                double dy = mMassCenterY[node] - y;
+
+                double distanceSqr = dx * dx + dy * dy;
+
+                double half = mHalfSize[node];
+                double size = 2.0 * half;
+
+                // a cell that contains the planet is always opened, even if its mass center is far
+                boolean inside = Math.abs(x - mCenterX[node]) <= half && Math.abs(y - mCenterY[node]) <= half;
+
+                if (!inside && size * size < mThetaSqr * distanceSqr) {
+                    double ir = 1.0 / Math.sqrt(distanceSqr);
+
+                    cache.add(dx, dy, ir * ir * ir, ir, mMass[node], mCharge[node],
+                            mCurrentX[node], mCurrentY[node]);
+                } else {
+                    stack[top++] = first;
+                    stack[top++] = first + 1;
+                    stack[top++] = first + 2;
+                    stack[top++] = first + 3;
+                }
+            }
+        }
+    }
+
+    private void allocateNodes(int capacity) {
+        mFirstChild = copyOf(mFirstChild, capacity);
+        mFirstPlanet = copyOf(mFirstPlanet, capacity);
+        mPlanetCount = copyOf(mPlanetCount, capacity);
+
+        mCenterX = copyOf(mCenterX, capacity);
+        mCenterY = copyOf(mCenterY, capacity);
+        mHalfSize = copyOf(mHalfSize, capacity);
+        mBuiltHalfSize = copyOf(mBuiltHalfSize, capacity);
+
+        mMass = copyOf(mMass, capacity);
+        mMassCenterX = copyOf(mMassCenterX, capacity);
+        mMassCenterY = copyOf(mMassCenterY, capacity);
+        mCharge = copyOf(mCharge, capacity);
+        mCurrentX = copyOf(mCurrentX, capacity);
+        mCurrentY = copyOf(mCurrentY, capacity);
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        return array == null ? new int[length] : Arrays.copyOf(array, length);
+    }
+
+    private static double[] copyOf(double[] array, int length) {
+        return array == null ? new double[length] : Arrays.copyOf(array, length);
+    }
+}
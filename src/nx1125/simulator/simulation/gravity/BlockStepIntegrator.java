@@ -0,0 +1,293 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.DefaultSimulator;
+import nx1125.simulator.simulation.StateArrays;
+import nx1125.simulator.simulation.integrator.Integrator;
+
+import java.util.Arrays;
+
+/**
+ * The predictor-corrector of {@link HermiteIntegrator} with a step for each planet. The step of a
+ * planet is the step of the simulation divided by a power of two, which is the level of the
+ * planet, and it is chosen from the ratio between the acceleration and the jerk of the planet.
+ * So the planets in close encounters take short steps while the others take long steps.
+ * <p>
+ * Because the steps are powers of two, the planets end their steps together in blocks. Only the
+ * planets of a block have their accelerations computed, with all the planets predicted to the
+ * time of the block, and all the planets end the step of the simulation together. A planet only
+ * goes to a longer step at the times that are multiples of it, so its steps stay aligned with the
+ * others.
+ * <p>
+ * When the collisions are enabled, the whole step is moved again like in
+ * {@link HermiteIntegrator}, so the collisions are found on a path of second order over the step
+ * of the simulation, which is rough for the planets of the deep levels.
+ */
+public class BlockStepIntegrator extends Integrator implements PairForcesListener {
+
+    /**
+     * The deepest level, whose step is the step of the simulation divided by two to this power.
+     */
+    private static final int MAX_LEVEL = 20;
+
+    /**
+     * The times inside a step are counted in ticks of the deepest level.
+     */
+    private static final int TICKS = 1 << MAX_LEVEL;
+
+    private final GravitySimulator mSimulator;
+
+    private final double mAccuracy;
+
+    private StateArrays mPredicted;
+
+    private double[] mJerkX;
+    private double[] mJerkY;
+
+    private double[] mNextJerkX;
+    private double[] mNextJerkY;
+
+    private int[] mLevels;
+
+    /**
+     * The tick of the end of the last step of each planet.
+     */
+    private int[] mTicks;
+
+    private int[] mActivePlanets;
+
+    private double[] mStartX;
+    private double[] mStartY;
+
+    private boolean mJerksValid;
+
+    public BlockStepIntegrator(GravitySimulator simulator, double accuracy) {
+        mSimulator = simulator;
+        mAccuracy = accuracy;
+    }
+
+    @Override
+    public void step(DefaultSimulator simulator, StateArrays states, double time) {
+        int count = states.getCount();
+
+        if (mPredicted == null) {
+            createCaches(states);
+        }
+
+        if (!mJerksValid) {
+            mSimulator.computeAccelerations(states, mJerkX, mJerkY);
+
+            for (int i = 0; i < count; i++) {
+                mLevels[i] = findLevel(states, i, time);
+            }
+
+            mJerksValid = true;
+        }
+
+        double[] x = states.x;
+        double[] y = states.y;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] ax = states.ax;
+        double[] ay = states.ay;
+
+        boolean collisionEnabled = mSimulator.isCollisionEnabled();
+
+        if (collisionEnabled) {
+            System.arraycopy(x, 0, mStartX, 0, count);
+            System.arraycopy(y, 0, mStartY, 0, count);
+        }
+
+        StateArrays predicted = mPredicted;
+
+        predicted.setState(states);
+
+        Arrays.fill(mTicks, 0, count, 0);
+
+        double tickTime = time / TICKS;
+
+        for (int tick = 0; tick < TICKS; ) {
+            int next = TICKS;
+
+            for (int i = 0; i < count; i++) {
+                next = Math.min(next, mTicks[i] + (TICKS >> mLevels[i]));
+            }
+
+            int activeCount = 0;
+
+            // all the planets are predicted, because they are the sources of the fields
+            for (int i = 0; i < count; i++) {
+                int ticks = next - mTicks[i];
+
+                if (ticks == TICKS >> mLevels[i]) {
+                    mActivePlanets[activeCount++] = i;
+                }
+
+                double t = ticks * tickTime;
+                double halfTimeSqr = t * t * 0.5;
+                double sixthTimeCube = halfTimeSqr * t / 3.0;
+
+                predicted.x[i] = x[i] + vx[i] * t + ax[i] * halfTimeSqr + mJerkX[i] * sixthTimeCube;
+                predicted.y[i] = y[i] + vy[i] * t + ay[i] * halfTimeSqr + mJerkY[i] * sixthTimeCube;
+
+                predicted.vx[i] = vx[i] + ax[i] * t + mJerkX[i] * halfTimeSqr;
+                predicted.vy[i] = vy[i] + ay[i] * t + mJerkY[i] * halfTimeSqr;
+            }
+
+            mSimulator.computeAccelerations(predicted, mActivePlanets, activeCount, mNextJerkX, mNextJerkY);
+
+            for (int k = 0; k < activeCount; k++) {
+                correct(states, mActivePlanets[k], next, tickTime, time);
+            }
+
+            tick = next;
+        }
+
+        if (collisionEnabled) {
+            replay(states, count, time);
+        }
+    }
+
+    /**
+     * Correct the state of an active planet with the acceleration and jerk at the predicted
+     * state, and choose its next level.
+     */
+    private void correct(StateArrays states, int i, int tick, double tickTime, double time) {
+        double[] nextAx = mPredicted.ax;
+        double[] nextAy = mPredicted.ay;
+
+        double t = (TICKS >> mLevels[i]) * tickTime;
+
+        double halfTime = t * 0.5;
+        double twelfthTimeSqr = t * t / 12.0;
+
+        double vx = states.vx[i];
+        double vy = states.vy[i];
+        double ax = states.ax[i];
+        double ay = states.ay[i];
+
+        double nextVx = vx + (ax + nextAx[i]) * halfTime + (mJerkX[i] - mNextJerkX[i]) * twelfthTimeSqr;
+        double nextVy = vy + (ay + nextAy[i]) * halfTime + (mJerkY[i] - mNextJerkY[i]) * twelfthTimeSqr;
+
+        states.x[i] += (vx + nextVx) * halfTime + (ax - nextAx[i]) * twelfthTimeSqr;
+        states.y[i] += (vy + nextVy) * halfTime + (ay - nextAy[i]) * twelfthTimeSqr;
+
+        states.vx[i] = nextVx;
+        states.vy[i] = nextVy;
+
+        states.ax[i] = nextAx[i];
+        states.ay[i] = nextAy[i];
+
+        mJerkX[i] = mNextJerkX[i];
+        mJerkY[i] = mNextJerkY[i];
+
+        mTicks[i] = tick;
+
+        int level = mLevels[i];
+        int wanted = findLevel(states, i, time);
+
+        if (wanted > level) {
+            level = wanted;
+        } else {
+            while (level > wanted && tick % (TICKS >> (level - 1)) == 0) {
+                level--;
+            }
+        }
+
+        mLevels[i] = level;
+    }
+
+    /**
+     * Return the level whose step is the accuracy times the time in which the acceleration of the
+     * planet changes by itself.
+     */
+    private int findLevel(StateArrays states, int i, double time) {
+        double jerk = Math.hypot(mJerkX[i], mJerkY[i]);
+
+        if (jerk == 0) return 0;
+
+        double step = mAccuracy * Math.hypot(states.ax[i], states.ay[i]) / jerk;
+
+        if (step >= time) return 0;
+
+        if (!(step > time / TICKS)) return MAX_LEVEL;
+
+        return Math.min(MAX_LEVEL, (int) Math.ceil(Math.log(time / step) / Math.log(2.0)));
+    }
+
+    /**
+     * Move the planets again from the beginning of the step with the constant accelerations that
+     * end the step at the same states, stopping at the collisions.
+     */
+    private void replay(StateArrays states, int count, double time) {
+        double[] x = states.x;
+        double[] y = states.y;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] ax = states.ax;
+        double[] ay = states.ay;
+
+        // the predicted state is not used anymore and keeps the accelerations at the end
+        double[] endAx = mPredicted.ax;
+        double[] endAy = mPredicted.ay;
+
+        double halfTimeSqr = time * time * 0.5;
+
+        for (int i = 0; i < count; i++) {
+            endAx[i] = ax[i];
+            endAy[i] = ay[i];
+
+            ax[i] = (vx[i] * time - (x[i] - mStartX[i])) / halfTimeSqr;
+            ay[i] = (vy[i] * time - (y[i] - mStartY[i])) / halfTimeSqr;
+
+            x[i] = mStartX[i];
+            y[i] = mStartY[i];
+
+            vx[i] -= ax[i] * time;
+            vy[i] -= ay[i] * time;
+        }
+
+        long collisions = mSimulator.getCollisionCount();
+
+        mSimulator.advancePlanets(time, states);
+
+        if (mSimulator.getCollisionCount() == collisions) {
+            System.arraycopy(endAx, 0, ax, 0, count);
+            System.arraycopy(endAy, 0, ay, 0, count);
+        } else {
+            // the accelerations and jerks were computed with the velocities before the
+            // collisions, and the planets that merged changed the indexes
+            mJerksValid = false;
+        }
+    }
+
+    private void createCaches(StateArrays states) {
+        int capacity = states.x.length;
+
+        mPredicted = new StateArrays(states);
+
+        mJerkX = new double[capacity];
+        mJerkY = new double[capacity];
+        mNextJerkX = new double[capacity];
+        mNextJerkY = new double[capacity];
+
+        mLevels = new int[capacity];
+        mTicks = new int[capacity];
+        mActivePlanets = new int[capacity];
+
+        mStartX = new double[capacity];
+        mStartY = new double[capacity];
+    }
+
+    @Override
+    public void addPairForces(StateArrays states, int i, int j, double sign) {
+        // the jerks are computed again with the accelerations when they are not valid
+        if (mJerksValid) {
+            mSimulator.addPairForces(states, i, j, sign, mJerkX, mJerkY, null);
+        }
+    }
+
+    @Override
+    public void reset() {
+        mJerksValid = false;
+    }
+}
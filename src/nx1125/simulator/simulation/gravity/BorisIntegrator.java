@@ -0,0 +1,100 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.DefaultSimulator;
+import nx1125.simulator.simulation.StateArrays;
+import nx1125.simulator.simulation.integrator.Integrator;
+
+/**
+ * The leapfrog of Boris for charged planets. The magnetic force only turns the velocity of a
+ * planet, at a frequency given by the magnetic field and its charge, so it is applied as an exact
+ * rotation of the velocity instead of being added to the acceleration. The other integrators add
+ * it with the velocity of the beginning of the step, which makes the speed grow in each step and
+ * needs steps much shorter than the turns.
+ * <p>
+ * A step is a push of half the step, a drift of the whole step and another push of half the step.
+ * A push is half a kick of the gravity and the electric force, the rotation and another half a
+ * kick. The fields at the end of a step are kept for the next step, so each step costs one
+ * computation of the fields, and the accelerations left in the states are without the magnetic
+ * force.
+ */
+public class BorisIntegrator extends Integrator implements PairForcesListener {
+
+    private final GravitySimulator mSimulator;
+
+    /**
+     * The frequency at which the magnetic field turns the velocity of each planet.
+     */
+    private double[] mFrequencies = new double[0];
+
+    private boolean mFieldsValid;
+
+    public BorisIntegrator(GravitySimulator simulator) {
+        mSimulator = simulator;
+    }
+
+    @Override
+    public void step(DefaultSimulator simulator, StateArrays states, double time) {
+        if (mFrequencies.length < states.x.length) {
+            mFrequencies = new double[states.x.length];
+        }
+
+        if (!mFieldsValid) {
+            mSimulator.computeAccelerations(states, mFrequencies);
+            mFieldsValid = true;
+        }
+
+        push(states, time * 0.5);
+
+        simulator.drift(time, states);
+        mSimulator.computeAccelerations(states, mFrequencies);
+
+        push(states, time * 0.5);
+    }
+
+    /**
+     * Change the velocities by the accelerations and turn them by the magnetic field.
+     */
+    private void push(StateArrays states, double time) {
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] ax = states.ax;
+        double[] ay = states.ay;
+
+        double halfTime = time * 0.5;
+
+        for (int i = 0; i < states.getCount(); i++) {
+            double x = vx[i] + ax[i] * halfTime;
+            double y = vy[i] + ay[i] * halfTime;
+
+            double angle = mFrequencies[i] * time;
+
+            if (angle != 0) {
+                double cos = Math.cos(angle);
+                double sin = Math.sin(angle);
+
+                // clockwise for a positive frequency
+                double turnedX = x * cos + y * sin;
+                double turnedY = y * cos - x * sin;
+
+                x = turnedX;
+                y = turnedY;
+            }
+
+            vx[i] = x + ax[i] * halfTime;
+            vy[i] = y + ay[i] * halfTime;
+        }
+    }
+
+    @Override
+    public void addPairForces(StateArrays states, int i, int j, double sign) {
+        // the fields are computed again when they are not valid
+        if (mFieldsValid) {
+            mSimulator.addPairForces(states, i, j, sign, null, null, mFrequencies);
+        }
+    }
+
+    @Override
+    public void reset() {
+        mFieldsValid = false;
+    }
+}
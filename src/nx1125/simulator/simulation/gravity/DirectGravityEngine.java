@@ -0,0 +1,111 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.StateArrays;
+
+/**
+ * Compute the interaction between each pair of planets. This is exact, but it takes a time
+ * proportional to the square of the planet count.
+ */
+public class DirectGravityEngine extends GravityEngine {
+
+    @Override
+    public void computeSums(StateArrays states, AccelerationCache[] caches) {
+        int count = states.getCount();
+
+        double[] x = states.x;
+        double[] y = states.y;
+
+        for (int i = 0; i < count; i++) {
+            AccelerationCache cache0 = caches[i];
+
+            for (int j = i + 1; j < count; j++) {
+                double dx = x[j] - x[i];
+                double dy = y[j] - y[i];
+
+                double ir = 1.0 / Math.sqrt(dx * dx + dy * dy);
+                double ir3 = ir * ir * ir;
+
+                // compute p0 acceleration part
+                cache0.add(dx, dy, ir3, ir, states, j);
+
+                // compute p1 acceleration part
+                caches[j].add(-dx, -dy, ir3, ir, states, i);
+            }
+        }
+    }
+
+    /**
+     * Compute the same sums of {@link #computeSums(StateArrays, AccelerationCache[])} and their
+     * derivatives in time in the same pass.
+     */
+    public void computeSumsAndJerks(StateArrays states, AccelerationCache[] caches) {
+        int count = states.getCount();
+
+        double[] x = states.x;
+        double[] y = states.y;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] mass = states.mass;
+        double[] charge = states.charge;
+
+        for (int i = 0; i < count; i++) {
+            AccelerationCache cache0 = caches[i];
+
+            for (int j = i + 1; j < count; j++) {
+                double dx = x[j] - x[i];
+                double dy = y[j] - y[i];
+                double dvx = vx[j] - vx[i];
+                double dvy = vy[j] - vy[i];
+
+                double ir = 1.0 / Math.sqrt(dx * dx + dy * dy);
+                double ir2 = ir * ir;
+                double ir3 = ir2 * ir;
+
+                cache0.add(dx, dy, ir3, ir, states, j);
+                cache0.addJerk(dx, dy, dvx, dvy, ir2, ir3, mass[j], charge[j]);
+
+                caches[j].add(-dx, -dy, ir3, ir, states, i);
+                caches[j].addJerk(-dx, -dy, -dvx, -dvy, ir2, ir3, mass[i], charge[i]);
+            }
+        }
+    }
+
+    /**
+     * Compute the sums and their derivatives in time like
+     * {@link #computeSumsAndJerks(StateArrays, AccelerationCache[])}, but only into the caches of
+     * the given planets.
+     */
+    public void computeSumsAndJerks(StateArrays states, int[] planets, int planetCount,
+                                    AccelerationCache[] caches) {
+        int count = states.getCount();
+
+        double[] x = states.x;
+        double[] y = states.y;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] mass = states.mass;
+        double[] charge = states.charge;
+
+        for (int k = 0; k < planetCount; k++) {
+            int i = planets[k];
+
+            AccelerationCache cache0 = caches[i];
+
+            for (int j = 0; j < count; j++) {
+                if (j == i) continue;
+
+                double dx = x[j] - x[i];
+                double dy = y[j] - y[i];
+                double dvx = vx[j] - vx[i];
+                double dvy = vy[j] - vy[i];
+
+                double ir = 1.0 / Math.sqrt(dx * dx + dy * dy);
+                double ir2 = ir * ir;
+                double ir3 = ir2 * ir;
+
+                cache0.add(dx, dy, ir3, ir, states, j);
+                cache0.addJerk(dx, dy, dvx, dvy, ir2, ir3, mass[j], charge[j]);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.ParallelPairExecutor;
+import nx1125.simulator.simulation.StateArrays;
+
+/**
+ * The sums of {@link DirectGravityEngine} over a tile of pairs, used by the engines that split
+ * the pairs in tiles. The sums of each planet are kept in an accumulator with
+ * {@link #COMPONENT_COUNT} components for each planet, and both planets of each pair receive
+ * their sums in the same iteration.
+ */
+class DirectTileKernel implements ParallelPairExecutor.TileKernel {
+
+    private static final int GRAVITY_X = 0;
+    private static final int GRAVITY_Y = 1;
+    private static final int ELECTRIC_X = 2;
+    private static final int ELECTRIC_Y = 3;
+    private static final int MAGNETIC = 4;
+    private static final int GRAVITY_POTENTIAL = 5;
+    private static final int ELECTRIC_POTENTIAL = 6;
+
+    static final int COMPONENT_COUNT = 7;
+
+    private StateArrays mStates;
+
+    /**
+     * Set the states of the next tiles, or {@code null} once they are done.
+     */
+    void setStates(StateArrays states) {
+        mStates = states;
+    }
+
+    /**
+     * Add the sums of the accumulator into the cache of each planet.
+     */
+    static void addSums(double[] sums, int count, AccelerationCache[] caches) {
+        for (int i = 0, k = 0; i < count; i++, k += COMPONENT_COUNT) {
+            caches[i].addSums(sums[k + GRAVITY_X], sums[k + GRAVITY_Y],
+                    sums[k + ELECTRIC_X], sums[k + ELECTRIC_Y], sums[k + MAGNETIC],
+                    sums[k + GRAVITY_POTENTIAL], sums[k + ELECTRIC_POTENTIAL]);
+        }
+    }
+
+    @Override
+    public void computeTile(int i0, int i1, int j0, int j1, double[] accumulator) {
+        StateArrays states = mStates;
+
+        double[] x = states.x;
+        double[] y = states.y;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] mass = states.mass;
+        double[] charge = states.charge;
+
+        for (int i = i0; i < i1; i++) {
+            double x0 = x[i];
+            double y0 = y[i];
+            double m0 = mass[i];
+            double q0 = charge[i];
+            double jx0 = q0 * vx[i];
+            double jy0 = q0 * vy[i];
+
+            double gravityX = 0, gravityY = 0, electricX = 0, electricY = 0, magnetic = 0;
+            double gravityPotential = 0, electricPotential = 0;
+
+            for (int j = Math.max(j0, i + 1); j < j1; j++) {
+                double dx = x[j] - x0;
+                double dy = y[j] - y0;
+
+                double rSqr = dx * dx + dy * dy;
+                double ir = 1.0 / Math.sqrt(rSqr);
+                double ir3 = ir * ir * ir;
+
+                gravityPotential += mass[j] * ir;
+                electricPotential += charge[j] * ir;
+
+                double m1 = mass[j] * ir3;
+                double q1 = charge[j] * ir3;
+
+                gravityX += m1 * dx;
+                gravityY += m1 * dy;
+                electricX += q1 * dx;
+                electricY += q1 * dy;
+                magnetic += q1 * (vx[j] * dy - dx * vy[j]);
+
+                int k = j * COMPONENT_COUNT;
+
+                double m = m0 * ir3;
+                double q = q0 * ir3;
+
+                accumulator[k + GRAVITY_X] -= m * dx;
+                accumulator[k + GRAVITY_Y] -= m * dy;
+                accumulator[k + ELECTRIC_X] -= q * dx;
+                accumulator[k + ELECTRIC_Y] -= q * dy;
+                accumulator[k + MAGNETIC] -= ir3 * (jx0 * dy - dx * jy0);
+                accumulator[k + GRAVITY_POTENTIAL] += m0 * ir;
+                accumulator[k + ELECTRIC_POTENTIAL] += q0 * ir;
+            }
+
+            int k = i * COMPONENT_COUNT;
+
+            accumulator[k + GRAVITY_X] += gravityX;
+            accumulator[k + GRAVITY_Y] += gravityY;
+            accumulator[k + ELECTRIC_X] += electricX;
+            accumulator[k + ELECTRIC_Y] += electricY;
+            accumulator[k + MAGNETIC] += magnetic;
+            accumulator[k + GRAVITY_POTENTIAL] += gravityPotential;
+            accumulator[k + ELECTRIC_POTENTIAL] += electricPotential;
+        }
+    }
+}
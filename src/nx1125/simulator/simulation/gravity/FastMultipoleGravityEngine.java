@@ -0,0 +1,666 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.StateArrays;
+
+import java.util.Arrays;
+
+/**
+ * Approximate the fields with the fast multipole method. The planets are binned into a uniform
+ * quadtree, the sources of each cell are expanded as a multipole around its center and the
+ * multipoles of the well separated cells are converted into a local expansion at each cell, which
+ * is then evaluated at each planet. Only the planets of neighbour leaves are summed directly.
+ * <p>
+ * The force between two planets falls with the square of the distance, which is not the
+ * logarithmic potential of the plane, so the expansions are the Cartesian Taylor series of
+ * {@code 1 / r} instead of the complex series. The four sources are the mass, the charge and the
+ * two components of the current, and the fields are the gradients of their potentials:
+ * <pre>
+ * gravity = grad(massPotential)
+ * electric = grad(chargePotential)
+ * magnetic = d(currentXPotential)/dy - d(currentYPotential)/dx
+ * </pre>
+ * The expansion order trades accuracy for speed. The error falls roughly by half for each order.
+ */
+public class FastMultipoleGravityEngine extends GravityEngine {
+
+    private static final int SOURCE_MASS = 0;
+    private static final int SOURCE_CHARGE = 1;
+    private static final int SOURCE_CURRENT_X = 2;
+    private static final int SOURCE_CURRENT_Y = 3;
+
+    private static final int SOURCE_COUNT = 4;
+
+    /**
+     * The mean number of planets in a leaf that the depth of the tree tries to keep.
+     */
+    private static final int LEAF_SIZE = 32;
+
+    /**
+     * The first level that has cells that are well separated from each other.
+     */
+    private static final int FIRST_LEVEL = 2;
+    private static final int MAX_LEVEL = 10;
+
+    /**
+     * The cells of the interaction list are at most three cells away from the target.
+     */
+    private static final int OFFSET_RANGE = 3;
+    private static final int OFFSET_WIDTH = 2 * OFFSET_RANGE + 1;
+
+    private final int mOrder;
+
+    /**
+     * The count of coefficients of an expansion, which is the count of pairs (a, b) with
+     * {@code a + b <= order}.
+     */
+    private final int mCoefficientCount;
+
+    private final int[] mPowerX;
+    private final int[] mPowerY;
+
+    /**
+     * The index of the coefficient (a0 + a1, b0 + b1) given two coefficients, or -1 when the sum
+     * is above the order.
+     */
+    private final int[] mSumIndexes;
+
+    /**
+     * The index of the coefficient (a0 - a1, b0 - b1) given two coefficients, or -1 when it is
+     * negative.
+     */
+    private final int[] mDifferenceIndexes;
+
+    /**
+     * The index of the coefficient with one more power in x and in y.
+     */
+    private final int[] mNextXIndexes;
+    private final int[] mNextYIndexes;
+
+    private final double[] mSigns;
+
+    private int mLevelCount;
+
+    private double mMinX;
+    private double mMinY;
+    private double mSize;
+
+    private double[][] mMultipoles;
+    private double[][] mLocals;
+
+    /**
+     * The derivatives of 1 / r for each offset between two cells of the same level.
+     */
+    private double[][] mDerivatives;
+
+    /**
+     * The powers of the offset between a child and its parent for each level and quadrant.
+     */
+    private double[][] mChildShifts;
+
+    private int[] mLeafStart;
+    private int[] mLeafPlanets;
+    private int[] mPlanetLeaves;
+
+    private final double[] mPowersX;
+    private final double[] mPowersY;
+    private final double[] mPowers;
+    private final double[] mGradients = new double[2 * SOURCE_COUNT];
+    private final double[] mPotentials = new double[SOURCE_COUNT];
+
+    public FastMultipoleGravityEngine(int order) {
+        if (order < 1) {
+            throw new IllegalArgumentException("The expansion order must be at least 1: " + order);
+        }
+
+        mOrder = order;
+        mCoefficientCount = (order + 1) * (order + 2) / 2;
+
+        int count = mCoefficientCount;
+
+        mPowerX = new int[count];
+        mPowerY = new int[count];
+        mSigns = new double[count];
+
+        for (int n = 0, k = 0; n <= order; n++) {
+            for (int b = 0; b <= n; b++, k++) {
+                mPowerX[k] = n - b;
+                mPowerY[k] = b;
+                mSigns[k] = (n & 1) == 0 ? 1.0 : -1.0;
+            }
+        }
+
+        mSumIndexes = new int[count * count];
+        mDifferenceIndexes = new int[count * count];
+        mNextXIndexes = new int[count];
+        mNextYIndexes = new int[count];
+
+        for (int k0 = 0; k0 < count; k0++) {
+            for (int k1 = 0; k1 < count; k1++) {
+                mSumIndexes[k0 * count + k1] = indexOf(mPowerX[k0] + mPowerX[k1], mPowerY[k0] + mPowerY[k1]);
+                mDifferenceIndexes[k0 * count + k1] = indexOf(mPowerX[k0] - mPowerX[k1], mPowerY[k0] - mPowerY[k1]);
+            }
+
+            mNextXIndexes[k0] = indexOf(mPowerX[k0] + 1, mPowerY[k0]);
+            mNextYIndexes[k0] = indexOf(mPowerX[k0], mPowerY[k0] + 1);
+        }
+
+        mPowersX = new double[order + 1];
+        mPowersY = new double[order + 1];
+        mPowers = new double[count];
+
+        mLeafPlanets = new int[0];
+        mPlanetLeaves = new int[0];
+    }
+
+    public int getOrder() {
+        return mOrder;
+    }
+
+    private int indexOf(int a, int b) {
+        if (a < 0 || b < 0 || a + b > mOrder) return -1;
+
+        int n = a + b;
+
+        return n * (n + 1) / 2 + b;
+    }
+
+    @Override
+    public void computeSums(StateArrays states, AccelerationCache[] caches) {
+        if (states.getCount() == 0) return;
+
+        createLevels(states.getCount());
+        computeBounds(states);
+        binPlanets(states);
+
+        computeShifts();
+
+        computeLeafMultipoles(states);
+        computeParentMultipoles();
+
+        computeLocals();
+
+        evaluateLocals(states, caches);
+        computeNearSums(states, caches);
+    }
+
+    private void createLevels(int planetCount) {
+        int levelCount = FIRST_LEVEL;
+
+        while (levelCount < MAX_LEVEL && (planetCount >> (2 * levelCount)) > LEAF_SIZE) {
+            levelCount++;
+        }
+
+        // the levels are counted from zero
+        levelCount++;
+
+        if (levelCount != mLevelCount) {
+            mLevelCount = levelCount;
+
+            mMultipoles = new double[levelCount][];
+            mLocals = new double[levelCount][];
+            mDerivatives = new double[levelCount][];
+            mChildShifts = new double[levelCount][];
+
+            for (int level = FIRST_LEVEL; level < levelCount; level++) {
+                int cells = 1 << (2 * level);
+
+                mMultipoles[level] = new double[cells * SOURCE_COUNT * mCoefficientCount];
+                mLocals[level] = new double[cells * SOURCE_COUNT * mCoefficientCount];
+                mDerivatives[level] = new double[OFFSET_WIDTH * OFFSET_WIDTH * mCoefficientCount];
+                mChildShifts[level] = new double[4 * mCoefficientCount];
+            }
+
+            mLeafStart = new int[(1 << (2 * (levelCount - 1))) + 1];
+        }
+
+        if (mLeafPlanets.length < planetCount) {
+            mLeafPlanets = new int[planetCount];
+            mPlanetLeaves = new int[planetCount];
+        }
+    }
+
+    private void computeBounds(StateArrays states) {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < states.getCount(); i++) {
+            minX = Math.min(minX, states.x[i]);
+            minY = Math.min(minY, states.y[i]);
+            maxX = Math.max(maxX, states.x[i]);
+            maxY = Math.max(maxY, states.y[i]);
+        }
+
+        // a little bigger than the bounds so that the planets at the border are inside
+        double size = Math.max(maxX - minX, maxY - minY) * 1.0001 + Double.MIN_NORMAL;
+
+        mMinX = 0.5 * (minX + maxX - size);
+        mMinY = 0.5 * (minY + maxY - size);
+        mSize = size;
+    }
+
+    private void binPlanets(StateArrays states) {
+        int side = 1 << (mLevelCount - 1);
+        int cells = side * side;
+
+        double scale = side / mSize;
+
+        int[] start = mLeafStart;
+
+        for (int i = 0; i <= cells; i++) {
+            start[i] = 0;
+        }
+
+        for (int i = 0; i < states.getCount(); i++) {
+            int cx = Math.min(side - 1, (int) ((states.x[i] - mMinX) * scale));
+            int cy = Math.min(side - 1, (int) ((states.y[i] - mMinY) * scale));
+
+            int leaf = cy * side + cx;
+
+            mPlanetLeaves[i] = leaf;
+            start[leaf + 1]++;
+        }
+
+        for (int i = 0; i < cells; i++) {
+            start[i + 1] += start[i];
+        }
+
+        for (int i = 0; i < states.getCount(); i++) {
+            mLeafPlanets[start[mPlanetLeaves[i]]++] = i;
+        }
+
+        // the counting above moved each start to the start of the next leaf
+        for (int i = cells; i > 0; i--) {
+            start[i] = start[i - 1];
+        }
+        start[0] = 0;
+    }
+
+    private void computeShifts() {
+        int count = mCoefficientCount;
+
+        for (int level = FIRST_LEVEL; level < mLevelCount; level++) {
+            double cellSize = mSize / (1 << level);
+
+            double[] derivatives = mDerivatives[level];
+
+            for (int oy = -OFFSET_RANGE; oy <= OFFSET_RANGE; oy++) {
+                for (int ox = -OFFSET_RANGE; ox <= OFFSET_RANGE; ox++) {
+                    if (Math.abs(ox) <= 1 && Math.abs(oy) <= 1) continue;
+
+                    int offset = ((oy + OFFSET_RANGE) * OFFSET_WIDTH + ox + OFFSET_RANGE) * count;
+
+                    // the vector goes from the source cell to the target cell
+                    computeDerivatives(-ox * cellSize, -oy * cellSize, derivatives, offset);
+                }
+            }
+
+            // the shift from the center of the parent to the center of each child
+            double quarter = 0.25 * mSize / (1 << (level - 1));
+
+            double[] shifts = mChildShifts[level];
+
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                double dx = (quadrant & 1) == 0 ? -quarter : quarter;
+                double dy = (quadrant & 2) == 0 ? -quarter : quarter;
+
+                computePowers(dx, dy);
+
+                System.arraycopy(mPowers, 0, shifts, quadrant * count, count);
+            }
+        }
+    }
+
+    /**
+     * Compute the derivatives of 1 / r at (x, y) for each coefficient.
+     */
+    private void computeDerivatives(double x, double y, double[] derivatives, int offset) {
+        double rSqr = x * x + y * y;
+        double ir2 = 1.0 / rSqr;
+
+        derivatives[offset] = Math.sqrt(ir2);
+
+        for (int k = 1; k < mCoefficientCount; k++) {
+            int a = mPowerX[k];
+            int b = mPowerY[k];
+
+            double value;
+
+            if (a > 0) {
+                value = -(2 * a - 1) * x * derivativeOf(derivatives, offset, a - 1, b)
+                        - (a - 1) * (a - 1) * derivativeOf(derivatives, offset, a - 2, b)
+                        - 2 * b * y * derivativeOf(derivatives, offset, a, b - 1)
+                        - b * (b - 1) * derivativeOf(derivatives, offset, a, b - 2);
+            } else {
+                value = -(2 * b - 1) * y * derivativeOf(derivatives, offset, 0, b - 1)
+                        - (b - 1) * (b - 1) * derivativeOf(derivatives, offset, 0, b - 2);
+            }
+
+            derivatives[offset + k] = value * ir2;
+        }
+    }
+
+    private double derivativeOf(double[] derivatives, int offset, int a, int b) {
+        int index = indexOf(a, b);
+        return index < 0 ? 0.0 : derivatives[offset + index];
+    }
+
+    /**
+     * Compute x^a * y^b / (a! * b!) for each coefficient.
+     */
+    private void computePowers(double x, double y) {
+        double[] powersX = mPowersX;
+        double[] powersY = mPowersY;
+
+        powersX[0] = powersY[0] = 1.0;
+
+        for (int i = 1; i <= mOrder; i++) {
+            powersX[i] = powersX[i - 1] * x / i;
+            powersY[i] = powersY[i - 1] * y / i;
+        }
+
+        for (int k = 0; k < mCoefficientCount; k++) {
+            mPowers[k] = powersX[mPowerX[k]] * powersY[mPowerY[k]];
+        }
+    }
+
+    private double getCellCenter(int cell, int level) {
+        double cellSize = mSize / (1 << level);
+
+        return (cell + 0.5) * cellSize;
+    }
+
+    private void computeLeafMultipoles(StateArrays states) {
+        int level = mLevelCount - 1;
+        int side = 1 << level;
+        int count = mCoefficientCount;
+
+        double[] multipoles = mMultipoles[level];
+
+        for (int leaf = 0; leaf < side * side; leaf++) {
+            int base = leaf * SOURCE_COUNT * count;
+
+            for (int k = 0; k < SOURCE_COUNT * count; k++) {
+                multipoles[base + k] = 0.0;
+            }
+
+            double centerX = mMinX + getCellCenter(leaf % side, level);
+            double centerY = mMinY + getCellCenter(leaf / side, level);
+
+            for (int n = mLeafStart[leaf]; n < mLeafStart[leaf + 1]; n++) {
+                int i = mLeafPlanets[n];
+
+                double mass = states.mass[i];
+                double charge = states.charge[i];
+                double currentX = charge * states.vx[i];
+                double currentY = charge * states.vy[i];
+
+                computePowers(states.x[i] - centerX, states.y[i] - centerY);
+
+                for (int k = 0; k < count; k++) {
+                    double power = mPowers[k];
+
+                    multipoles[base + SOURCE_MASS * count + k] += mass * power;
+                    multipoles[base + SOURCE_CHARGE * count + k] += charge * power;
+                    multipoles[base + SOURCE_CURRENT_X * count + k] += currentX * power;
+                    multipoles[base + SOURCE_CURRENT_Y * count + k] += currentY * power;
+                }
+            }
+        }
+    }
+
+    private void computeParentMultipoles() {
+        int count = mCoefficientCount;
+
+        for (int level = mLevelCount - 2; level >= FIRST_LEVEL; level--) {
+            int side = 1 << level;
+
+            double[] parents = mMultipoles[level];
+            double[] children = mMultipoles[level + 1];
+            double[] shifts = mChildShifts[level + 1];
+
+            for (int cell = 0; cell < side * side; cell++) {
+                int base = cell * SOURCE_COUNT * count;
+
+                for (int k = 0; k < SOURCE_COUNT * count; k++) {
+                    parents[base + k] = 0.0;
+                }
+
+                int cx = cell % side;
+                int cy = cell / side;
+
+                for (int quadrant = 0; quadrant < 4; quadrant++) {
+                    int child = ((cy << 1) + (quadrant >> 1)) * (side << 1) + (cx << 1) + (quadrant & 1);
+                    int childBase = child * SOURCE_COUNT * count;
+                    int shiftBase = quadrant * count;
+
+                    for (int source = 0; source < SOURCE_COUNT; source++) {
+                        int to = base + source * count;
+                        int from = childBase + source * count;
+
+                        // M'(k) = sum of M(j) * shift^(k - j) / (k - j)!
+                        for (int k = 0; k < count; k++) {
+                            double sum = 0.0;
+
+                            for (int j = 0; j <= k; j++) {
+                                int difference = mDifferenceIndexes[k * count + j];
+
+                                if (difference >= 0) {
+                                    sum += children[from + j] * shifts[shiftBase + difference];
+                                }
+                            }
+
+                            parents[to + k] += sum;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void computeLocals() {
+        int count = mCoefficientCount;
+
+        for (int level = FIRST_LEVEL; level < mLevelCount; level++) {
+            int side = 1 << level;
+
+            double[] locals = mLocals[level];
+            double[] multipoles = mMultipoles[level];
+            double[] derivatives = mDerivatives[level];
+
+            if (level == FIRST_LEVEL) {
+                Arrays.fill(locals, 0.0);
+            } else {
+                shiftParentLocals(level);
+            }
+
+            for (int cy = 0; cy < side; cy++) {
+                for (int cx = 0; cx < side; cx++) {
+                    int base = (cy * side + cx) * SOURCE_COUNT * count;
+
+                    // the sources are the children of the neighbours of the parent that are not
+                    // neighbours of the cell
+                    int minX = Math.max(0, ((cx >> 1) - 1) << 1);
+                    int minY = Math.max(0, ((cy >> 1) - 1) << 1);
+                    int maxX = Math.min(side - 1, (((cx >> 1) + 1) << 1) + 1);
+                    int maxY = Math.min(side - 1, (((cy >> 1) + 1) << 1) + 1);
+
+                    for (int sy = minY; sy <= maxY; sy++) {
+                        for (int sx = minX; sx <= maxX; sx++) {
+                            int ox = sx - cx;
+                            int oy = sy - cy;
+
+                            if (Math.abs(ox) <= 1 && Math.abs(oy) <= 1) continue;
+
+                            int sourceBase = (sy * side + sx) * SOURCE_COUNT * count;
+                            int derivativeBase = ((oy + OFFSET_RANGE) * OFFSET_WIDTH + ox + OFFSET_RANGE) * count;
+
+                            convertMultipole(multipoles, sourceBase, derivatives, derivativeBase, locals, base);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * L(n) += sum of (-1)^|k| * M(k) * D(k + n)
+     */
+    private void convertMultipole(double[] multipoles, int sourceBase, double[] derivatives, int derivativeBase,
+                                  double[] locals, int base) {
+        int count = mCoefficientCount;
+
+        for (int n = 0; n < count; n++) {
+            double mass = 0.0;
+            double charge = 0.0;
+            double currentX = 0.0;
+            double currentY = 0.0;
+
+            for (int k = 0; k < count; k++) {
+                int sum = mSumIndexes[n * count + k];
+
+                if (sum < 0) continue;
+
+                double derivative = mSigns[k] * derivatives[derivativeBase + sum];
+
+                mass += multipoles[sourceBase + SOURCE_MASS * count + k] * derivative;
+                charge += multipoles[sourceBase + SOURCE_CHARGE * count + k] * derivative;
+                currentX += multipoles[sourceBase + SOURCE_CURRENT_X * count + k] * derivative;
+                currentY += multipoles[sourceBase + SOURCE_CURRENT_Y * count + k] * derivative;
+            }
+
+            locals[base + SOURCE_MASS * count + n] += mass;
+            locals[base + SOURCE_CHARGE * count + n] += charge;
+            locals[base + SOURCE_CURRENT_X * count + n] += currentX;
+            locals[base + SOURCE_CURRENT_Y * count + n] += currentY;
+        }
+    }
+
+    private void shiftParentLocals(int level) {
+        int side = 1 << level;
+        int count = mCoefficientCount;
+
+        double[] locals = mLocals[level];
+        double[] parents = mLocals[level - 1];
+        double[] shifts = mChildShifts[level];
+
+        for (int cell = 0; cell < side * side; cell++) {
+            int cx = cell % side;
+            int cy = cell / side;
+
+            int parent = (cy >> 1) * (side >> 1) + (cx >> 1);
+            int quadrant = (cx & 1) | ((cy & 1) << 1);
+
+            int base = cell * SOURCE_COUNT * count;
+            int parentBase = parent * SOURCE_COUNT * count;
+            int shiftBase = quadrant * count;
+
+            for (int source = 0; source < SOURCE_COUNT; source++) {
+                int to = base + source * count;
+                int from = parentBase + source * count;
+
+                // L'(n) = sum of L(k) * shift^(k - n) / (k - n)!
+                for (int n = 0; n < count; n++) {
+                    double sum = 0.0;
+
+                    for (int k = n; k < count; k++) {
+                        int difference = mDifferenceIndexes[k * count + n];
+
+                        if (difference >= 0) {
+                            sum += parents[from + k] * shifts[shiftBase + difference];
+                        }
+                    }
+
+                    locals[to + n] = sum;
+                }
+            }
+        }
+    }
+
+    private void evaluateLocals(StateArrays states, AccelerationCache[] caches) {
+        int level = mLevelCount - 1;
+        int side = 1 << level;
+        int count = mCoefficientCount;
+
+        double[] locals = mLocals[level];
+
+        for (int i = 0; i < states.getCount(); i++) {
+            int leaf = mPlanetLeaves[i];
+            int base = leaf * SOURCE_COUNT * count;
+
+            double centerX = mMinX + getCellCenter(leaf % side, level);
+            double centerY = mMinY + getCellCenter(leaf / side, level);
+
+            computePowers(states.x[i] - centerX, states.y[i] - centerY);
+
+            double[] gradients = mGradients;
+
+            for (int source = 0; source < SOURCE_COUNT; source++) {
+                int from = base + source * count;
+
+                double potential = 0.0;
+                double gradientX = 0.0;
+                double gradientY = 0.0;
+
+                for (int k = 0; k < count; k++) {
+                    int nextX = mNextXIndexes[k];
+                    int nextY = mNextYIndexes[k];
+
+                    potential += locals[from + k] * mPowers[k];
+
+                    if (nextX >= 0) gradientX += locals[from + nextX] * mPowers[k];
+                    if (nextY >= 0) gradientY += locals[from + nextY] * mPowers[k];
+                }
+
+                mPotentials[source] = potential;
+
+                gradients[2 * source] = gradientX;
+                gradients[2 * source + 1] = gradientY;
+            }
+
+            caches[i].addSums(
+                    gradients[2 * SOURCE_MASS], gradients[2 * SOURCE_MASS + 1],
+                    gradients[2 * SOURCE_CHARGE], gradients[2 * SOURCE_CHARGE + 1],
+                    gradients[2 * SOURCE_CURRENT_X + 1] - gradients[2 * SOURCE_CURRENT_Y],
+                    mPotentials[SOURCE_MASS], mPotentials[SOURCE_CHARGE]);
+        }
+    }
+
+    private void computeNearSums(StateArrays states, AccelerationCache[] caches) {
+        int side = 1 << (mLevelCount - 1);
+
+        for (int leaf = 0; leaf < side * side; leaf++) {
+            int cx = leaf % side;
+            int cy = leaf / side;
+
+            for (int n = mLeafStart[leaf]; n < mLeafStart[leaf + 1]; n++) {
+                int i = mLeafPlanets[n];
+
+                double x = states.x[i];
+                double y = states.y[i];
+
+                AccelerationCache cache = caches[i];
+
+                for (int sy = Math.max(0, cy - 1); sy <= Math.min(side - 1, cy + 1); sy++) {
+                    for (int sx = Math.max(0, cx - 1); sx <= Math.min(side - 1, cx + 1); sx++) {
+                        int source = sy * side + sx;
+
+                        for (int m = mLeafStart[source]; m < mLeafStart[source + 1]; m++) {
+                            int j = mLeafPlanets[m];
+
+                            if (j == i) continue;
+
+                            double dx = states.x[j] - x;
+                            double dy = states.y[j] - y;
+
+                            double ir = 1.0 / Math.sqrt(dx * dx + dy * dy);
+
+                            cache.add(dx, dy, ir * ir * ir, ir, states, j);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.StateArrays;
+
+/**
+ * An engine is the algorithm used by {@link GravitySimulator} to sum the fields that each planet
+ * receives from all the other planets.
+ */
+public abstract class GravityEngine {
+
+    /**
+     * Add into each cache the fields that the planet of the same index receives. The caches are
+     * cleared before this method is called.
+     */
+    public abstract void computeSums(StateArrays states, AccelerationCache[] caches);
+}
@@ -5,12 +5,158 @@ import nx1125.simulator.simulation.Simulator;
 
 public class GravitySimulation extends Simulation {
 
+    /**
+     * Sum the fields of all pairs of planets, split between the threads when there are many.
+     */
+    public static final int ENGINE_DIRECT = 0;
+
+    /**
+     * Approximate the fields of far planets with a quadtree.
+     *
+     * @see #setBarnesHutTheta(double)
+     * @see #setBarnesHutRefitEnabled(boolean)
+     */
+    public static final int ENGINE_BARNES_HUT = 1;
+
+    /**
+     * Approximate the fields of far planets with the fast multipole method.
+     *
+     * @see #setMultipoleOrder(int)
+     */
+    public static final int ENGINE_FAST_MULTIPOLE = 2;
+
+    /**
+     * Sum the fields of all pairs of planets like {@link #ENGINE_DIRECT}, but with the vector
+     * instructions of the processor. It needs the module {@code jdk.incubator.vector}, and without
+     * it the simulator uses {@link #ENGINE_DIRECT} instead.
+     */
+    public static final int ENGINE_VECTOR = 3;
+
+    /**
+     * Compute the time of the collision for all pairs of planets.
+     */
+    public static final int BROAD_PHASE_ALL_PAIRS = 0;
+
+    /**
+     * Compute the time of the collision only for the planets whose swept boxes share a cell of a
+     * uniform grid.
+     */
+    public static final int BROAD_PHASE_SPATIAL_HASH = 1;
+
+    /**
+     * Compute the time of the collision only for the planets whose swept boxes overlap, found by
+     * sorting the boxes along the x axis. The order is reused from the last check, so it is faster
+     * than {@link #BROAD_PHASE_SPATIAL_HASH} when the planets keep their order, like in a disk.
+     */
+    public static final int BROAD_PHASE_SWEEP_AND_PRUNE = 2;
+
+    /**
+     * Find the time of a collision with the Newton-Raphson method.
+     */
+    public static final int COLLISION_SOLVER_NEWTON = 0;
+
+    /**
+     * Find the time of a collision with the formulas of the roots of the quartic, which have the
+     * same cost for all pairs.
+     */
+    public static final int COLLISION_SOLVER_CLOSED_FORM = 1;
+
+    /**
+     * After each collision, search the pairs again for the next collision.
+     */
+    public static final int COLLISION_SCHEDULER_SCAN = 0;
+
+    /**
+     * Predict the next collision of each planet once and keep them in a queue, computing again
+     * only the collisions of the planets affected by each collision. It is faster when there are
+     * many collisions in each step.
+     */
+    public static final int COLLISION_SCHEDULER_EVENTS = 1;
+
+    /**
+     * After each search of the pairs, resolve together all the collisions of different planets
+     * in a short window after the earliest one.
+     *
+     * @see #setCollisionBatchWindow(double)
+     */
+    public static final int COLLISION_SCHEDULER_BATCH = 2;
+
+    /**
+     * The planets that collide bounce without losing energy.
+     */
+    public static final int COLLISION_RESPONSE_ELASTIC = 0;
+
+    /**
+     * The planets that collide merge into one planet, keeping their mass, momentum and charge.
+     */
+    public static final int COLLISION_RESPONSE_MERGE = 1;
+
+    /**
+     * The predictor-corrector of Hermite, of fourth order and with one computation of the
+     * accelerations and their derivatives in each step, always summed directly. It continues the
+     * integrators of {@link Simulation}.
+     *
+     * @see HermiteIntegrator
+     */
+    public static final int INTEGRATOR_HERMITE = 3;
+
+    /**
+     * The predictor-corrector of Hermite with a step for each planet, which is the step of the
+     * simulation divided by a power of two. Only the planets at the end of their steps have their
+     * accelerations computed again.
+     *
+     * @see #setBlockStepAccuracy(double)
+     * @see BlockStepIntegrator
+     */
+    public static final int INTEGRATOR_BLOCK_STEPS = 4;
+
+    /**
+     * The mixed-variable integrator of Wisdom and Holman, for planets orbiting a much heavier
+     * planet. The orbits around the heaviest planet are followed exactly and only the pulls
+     * between the other planets limit the step, which can be a large fraction of the orbits.
+     *
+     * @see WisdomHolmanIntegrator
+     */
+    public static final int INTEGRATOR_WISDOM_HOLMAN = 5;
+
+    /**
+     * The leapfrog of Boris, which turns the velocities by the magnetic force exactly instead of
+     * adding it to the accelerations, so the charged planets keep their speeds with long steps.
+     *
+     * @see BorisIntegrator
+     */
+    public static final int INTEGRATOR_BORIS = 6;
+
     private double mGravityConstant = 1;
     private double mPermittivityConstant = 1;
     private double mPermeabilityConstant = 1;
 
     private boolean mCollisionEnabled = false;
 
+    private int mBroadPhase = BROAD_PHASE_ALL_PAIRS;
+
+    private int mCollisionSolver = COLLISION_SOLVER_NEWTON;
+
+    private int mCollisionScheduler = COLLISION_SCHEDULER_SCAN;
+
+    private double mCollisionBatchWindow = 0.1;
+
+    private int mCollisionResponse = COLLISION_RESPONSE_ELASTIC;
+
+    private double mBlockStepAccuracy = 0.01;
+
+    private boolean mRegularizationEnabled = false;
+
+    private double mRegularizationDistance = 5;
+
+    private int mEngine = ENGINE_DIRECT;
+
+    private double mBarnesHutTheta = 0.5;
+
+    private boolean mBarnesHutRefitEnabled = false;
+
+    private int mMultipoleOrder = 6;
+
     /**
      * Return the constant that affects the force in gravity field.
      */
@@ -59,6 +205,153 @@ public class GravitySimulation extends Simulation {
         mCollisionEnabled = collisionEnabled;
     }
 
+    /**
+     * Return the algorithm used to find the pairs of planets that may collide in a step.
+     */
+    public int getBroadPhase() {
+        return mBroadPhase;
+    }
+
+    public void setBroadPhase(int broadPhase) {
+        mBroadPhase = broadPhase;
+    }
+
+    /**
+     * Return the algorithm used to find the time of the collision of two planets.
+     */
+    public int getCollisionSolver() {
+        return mCollisionSolver;
+    }
+
+    public void setCollisionSolver(int collisionSolver) {
+        mCollisionSolver = collisionSolver;
+    }
+
+    /**
+     * Return how the simulator finds the order of the collisions in a step.
+     */
+    public int getCollisionScheduler() {
+        return mCollisionScheduler;
+    }
+
+    public void setCollisionScheduler(int collisionScheduler) {
+        mCollisionScheduler = collisionScheduler;
+    }
+
+    /**
+     * Return the window of time after the earliest collision in which the collisions are resolved
+     * together by {@link #COLLISION_SCHEDULER_BATCH}, as a fraction of a step.
+     */
+    public double getCollisionBatchWindow() {
+        return mCollisionBatchWindow;
+    }
+
+    public void setCollisionBatchWindow(double collisionBatchWindow) {
+        mCollisionBatchWindow = collisionBatchWindow;
+    }
+
+    /**
+     * Return what happens to the planets that collide.
+     */
+    public int getCollisionResponse() {
+        return mCollisionResponse;
+    }
+
+    public void setCollisionResponse(int collisionResponse) {
+        mCollisionResponse = collisionResponse;
+    }
+
+    /**
+     * Return the fraction of the time in which the acceleration of a planet changes by itself
+     * that is used as the step of the planet by {@link #INTEGRATOR_BLOCK_STEPS}. Smaller values
+     * give shorter steps.
+     */
+    public double getBlockStepAccuracy() {
+        return mBlockStepAccuracy;
+    }
+
+    public void setBlockStepAccuracy(double blockStepAccuracy) {
+        mBlockStepAccuracy = blockStepAccuracy;
+    }
+
+    /**
+     * Return {@code true} if the close pairs of planets are moved in regularized coordinates,
+     * apart from the integrator, so the step does not need to follow their orbits.
+     *
+     * @see LeviCivitaIntegrator
+     */
+    public boolean isRegularizationEnabled() {
+        return mRegularizationEnabled;
+    }
+
+    public void setRegularizationEnabled(boolean regularizationEnabled) {
+        mRegularizationEnabled = regularizationEnabled;
+    }
+
+    /**
+     * Return the distance below which two planets that are the nearest of each other and bound
+     * to each other are regularized.
+     */
+    public double getRegularizationDistance() {
+        return mRegularizationDistance;
+    }
+
+    public void setRegularizationDistance(double regularizationDistance) {
+        mRegularizationDistance = regularizationDistance;
+    }
+
+    /**
+     * Return the algorithm used to sum the fields between the planets.
+     */
+    public int getEngine() {
+        return mEngine;
+    }
+
+    public void setEngine(int engine) {
+        mEngine = engine;
+    }
+
+    /**
+     * Return the ratio between the size of a cell and its distance to a planet below which the
+     * cell is used as a single source by {@link #ENGINE_BARNES_HUT}. Smaller values are more
+     * accurate and slower.
+     */
+    public double getBarnesHutTheta() {
+        return mBarnesHutTheta;
+    }
+
+    public void setBarnesHutTheta(double barnesHutTheta) {
+        mBarnesHutTheta = barnesHutTheta;
+    }
+
+    /**
+     * Return {@code true} if the quadtree of {@link #ENGINE_BARNES_HUT} is refit to the planets
+     * that moved instead of built again in each computation, while its cells did not grow too
+     * much. Building the tree is cheap next to the sums themselves, so this mostly helps with a
+     * large theta, where the sums are cheaper too.
+     *
+     * @see BarnesHutGravityEngine#getRefitCount()
+     */
+    public boolean isBarnesHutRefitEnabled() {
+        return mBarnesHutRefitEnabled;
+    }
+
+    public void setBarnesHutRefitEnabled(boolean barnesHutRefitEnabled) {
+        mBarnesHutRefitEnabled = barnesHutRefitEnabled;
+    }
+
+    /**
+     * Return the highest power of the expansions used by {@link #ENGINE_FAST_MULTIPOLE}. Higher
+     * orders are more accurate and slower.
+     */
+    public int getMultipoleOrder() {
+        return mMultipoleOrder;
+    }
+
+    public void setMultipoleOrder(int multipoleOrder) {
+        mMultipoleOrder = multipoleOrder;
+    }
+
     @Override
     public Simulator createSimulator() {
         return new GravitySimulator(this);
@@ -1,8 +1,16 @@
 package nx1125.simulator.simulation.gravity;
 
+import nx1125.simulator.simulation.CollisionResult;
 import nx1125.simulator.simulation.DefaultSimulator;
-import nx1125.simulator.simulation.Planet;
-import nx1125.simulator.simulation.PlanetState;
+import nx1125.simulator.simulation.StateArrays;
+import nx1125.simulator.simulation.collision.AllPairsBroadPhase;
+import nx1125.simulator.simulation.collision.BroadPhase;
+import nx1125.simulator.simulation.collision.ClosedFormQuarticSolver;
+import nx1125.simulator.simulation.collision.NewtonQuarticSolver;
+import nx1125.simulator.simulation.collision.QuarticSolver;
+import nx1125.simulator.simulation.collision.SpatialHashBroadPhase;
+import nx1125.simulator.simulation.collision.SweepAndPruneBroadPhase;
+import nx1125.simulator.simulation.integrator.Integrator;
 
 /**
  * Created by guilh on 01/10/2017.
@@ -14,13 +22,27 @@ public class GravitySimulator extends DefaultSimulator {
 
     private static final boolean DEBUG = true;
 
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final String VECTOR_ENGINE_CLASS = "nx1125.simulator.simulation.gravity.vector.VectorGravityEngine";
+
     private final GravitySimulation mSimulation;
 
     private double[] mCachedElectricFieldMultipliersFromPlanets;
     private double[] mCachedMagneticFieldMultipliersFromPlanets;
 
+    private double[] mCachedReorderArray;
+
     private AccelerationCache[] mAccelerationCaches;
 
+    private volatile GravityEngine mEngine;
+
+    private DirectGravityEngine mJerkEngine;
+
+    /**
+     * The integrator of the close pairs, or {@code null} if the regularization is disabled.
+     */
+    private LeviCivitaIntegrator mRegularization;
+
     public GravitySimulator(GravitySimulation simulation) {
         super(simulation);
 
@@ -38,117 +60,503 @@ public class GravitySimulator extends DefaultSimulator {
         mCachedMagneticFieldMultipliersFromPlanets = new double[planetCount];
         mCachedElectricFieldMultipliersFromPlanets = new double[planetCount];
 
+        mCachedReorderArray = new double[planetCount];
+
         mAccelerationCaches = new AccelerationCache[planetCount];
 
         for (int i = 0; i < planetCount; i++) {
             mAccelerationCaches[i] = new AccelerationCache();
         }
+
+        mEngine = createEngine();
+    }
+
+    protected GravityEngine createEngine() {
+        switch (mSimulation.getEngine()) {
+            case GravitySimulation.ENGINE_BARNES_HUT:
+                return new BarnesHutGravityEngine(mSimulation.getBarnesHutTheta(),
+                        mSimulation.isBarnesHutRefitEnabled());
+            case GravitySimulation.ENGINE_FAST_MULTIPOLE:
+                return new FastMultipoleGravityEngine(mSimulation.getMultipoleOrder());
+            case GravitySimulation.ENGINE_VECTOR:
+                GravityEngine engine = createVectorEngine();
+
+                if (engine != null) {
+                    return engine;
+                }
+
+                info("The vector module is not available, using the scalar engine");
+
+                return createDirectEngine();
+            case GravitySimulation.ENGINE_DIRECT:
+            default:
+                return createDirectEngine();
+        }
+    }
+
+    private GravityEngine createDirectEngine() {
+        if (mSimulation.getThreadCount() > 1) {
+            return new ParallelDirectGravityEngine(mSimulation.getThreadCount());
+        }
+        return new DirectGravityEngine();
+    }
+
+    @Override
+    protected BroadPhase createBroadPhase() {
+        switch (mSimulation.getBroadPhase()) {
+            case GravitySimulation.BROAD_PHASE_ALL_PAIRS:
+                return new AllPairsBroadPhase();
+            case GravitySimulation.BROAD_PHASE_SWEEP_AND_PRUNE:
+                return new SweepAndPruneBroadPhase();
+            case GravitySimulation.BROAD_PHASE_SPATIAL_HASH:
+            default:
+                return new SpatialHashBroadPhase();
+        }
+    }
+
+    @Override
+    protected QuarticSolver createQuarticSolver() {
+        switch (mSimulation.getCollisionSolver()) {
+            case GravitySimulation.COLLISION_SOLVER_NEWTON:
+                return new NewtonQuarticSolver();
+            case GravitySimulation.COLLISION_SOLVER_CLOSED_FORM:
+            default:
+                return new ClosedFormQuarticSolver();
+        }
+    }
+
+    @Override
+    protected boolean isCollisionEnabled() {
+        return mSimulation.isCollisionEnabled();
+    }
+
+    @Override
+    protected Integrator createIntegrator() {
+        Integrator integrator;
+
+        switch (mSimulation.getIntegrator()) {
+            case GravitySimulation.INTEGRATOR_HERMITE:
+                integrator = new HermiteIntegrator(this);
+                break;
+            case GravitySimulation.INTEGRATOR_BLOCK_STEPS:
+                integrator = new BlockStepIntegrator(this, mSimulation.getBlockStepAccuracy());
+                break;
+            case GravitySimulation.INTEGRATOR_WISDOM_HOLMAN:
+                integrator = new WisdomHolmanIntegrator(this, mSimulation.getGravityConstant());
+                break;
+            case GravitySimulation.INTEGRATOR_BORIS:
+                integrator = new BorisIntegrator(this);
+                break;
+            default:
+                integrator = super.createIntegrator();
+                break;
+        }
+
+        if (mSimulation.isRegularizationEnabled()) {
+            mRegularization = new LeviCivitaIntegrator(this, integrator,
+                    mSimulation.getRegularizationDistance(), mSimulation.getGravityConstant());
+
+            return mRegularization;
+        }
+
+        return integrator;
+    }
+
+    @Override
+    protected boolean isMergeEnabled() {
+        return mSimulation.getCollisionResponse() == GravitySimulation.COLLISION_RESPONSE_MERGE;
     }
 
     @Override
-    protected PlanetState[] onCreateInitialStates() {
-        PlanetState[] states = super.onCreateInitialStates();
+    protected void advanceWithCollisions(double time, StateArrays states) {
+        switch (mSimulation.getCollisionScheduler()) {
+            case GravitySimulation.COLLISION_SCHEDULER_EVENTS:
+                advanceWithCollisionEvents(time, states);
+                break;
+            case GravitySimulation.COLLISION_SCHEDULER_BATCH:
+                advanceWithCollisionBatches(time, mSimulation.getCollisionBatchWindow() * time, states);
+                break;
+            case GravitySimulation.COLLISION_SCHEDULER_SCAN:
+            default:
+                super.advanceWithCollisions(time, states);
+                break;
+        }
+    }
 
-        int count = getPlanetCount();
+    /**
+     * Return the engine of the vector instructions, or {@code null} if the virtual machine was not
+     * started with the module {@code jdk.incubator.vector}. The engine is loaded by its name so
+     * this class does not depend on the module.
+     */
+    private GravityEngine createVectorEngine() {
+        if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+            return null;
+        }
 
+        try {
+            return (GravityEngine) Class.forName(VECTOR_ENGINE_CLASS)
+                    .getConstructor(int.class)
+                    .newInstance(mSimulation.getThreadCount());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            info("Could not create the vector engine: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Change the engine while the simulator is running. The next state is computed with the new
+     * engine.
+     *
+     * @see GravitySimulation#setEngine(int)
+     */
+    public void setEngine(int engine) {
+        mSimulation.setEngine(engine);
+
+        if (mAccelerationCaches != null) {
+            mEngine = createEngine();
+        }
+    }
+
+    /**
+     * Return the engine that sums the fields, which may not be the one of the simulation when
+     * the engine of the simulation is not available.
+     */
+    public GravityEngine getEngine() {
+        return mEngine;
+    }
+
+    @Override
+    protected StateArrays onCreateInitialStates() {
+        StateArrays states = super.onCreateInitialStates();
+
+        for (int i = 0; i < states.getCount(); i++) {
+            computeFieldMultipliers(states, i);
+        }
+
+        // the potential energy needs the multipliers
+        updateLastDiagnostics();
+
+        return states;
+    }
+
+    @Override
+    public void restart() {
+        super.restart();
+
+        StateArrays states = getLastStateArrays();
+
+        for (int i = 0; i < states.getCount(); i++) {
+            computeFieldMultipliers(states, i);
+        }
+
+        updateLastDiagnostics();
+    }
+
+    @Override
+    public void merge(CollisionResult result, StateArrays states) {
+        super.merge(result, states);
+
+        // the ratio of the charge and the mass changed
+        computeFieldMultipliers(states, result.getIndex0());
+    }
+
+    @Override
+    protected void onReorderCaches(int[] order, int count) {
+        reorder(mCachedElectricFieldMultipliersFromPlanets, order, count);
+        reorder(mCachedMagneticFieldMultipliersFromPlanets, order, count);
+
+        if (mRegularization != null) {
+            mRegularization.onReorder(order, count);
+        }
+    }
+
+    private void reorder(double[] array, int[] order, int count) {
+        double[] aux = mCachedReorderArray;
+
+        for (int i = 0; i < count; i++) {
+            aux[i] = array[order[i]];
+        }
+
+        System.arraycopy(aux, 0, array, 0, count);
+    }
+
+    private void computeFieldMultipliers(StateArrays states, int i) {
         double pi4 = Math.PI * 4.0;
 
         double electricMultiplier = 1.0 / (mSimulation.getPermittivityConstant() * pi4);
         double magneticMultiplier = mSimulation.getPermeabilityConstant() / pi4;
 
-        for (int i = 0; i < count; i++) {
-            Planet p = getPlanet(i);
+        double ratio = states.charge[i] / states.mass[i];
+
+        mCachedElectricFieldMultipliersFromPlanets[i] = ratio * electricMultiplier;
+        mCachedMagneticFieldMultipliersFromPlanets[i] = ratio * magneticMultiplier;
+    }
 
-            double ratio = p.getCharge() / p.getMass();
+    /**
+     * Return the constant that multiplies the electric field at the planet to give its
+     * acceleration.
+     */
+    double getElectricMultiplier(int i) {
+        return mCachedElectricFieldMultipliersFromPlanets[i];
+    }
+
+    /**
+     * Return the constant that multiplies the magnetic field at the planet and its velocity to
+     * give its acceleration.
+     */
+    double getMagneticMultiplier(int i) {
+        return mCachedMagneticFieldMultipliersFromPlanets[i];
+    }
 
-            mCachedElectricFieldMultipliersFromPlanets[i] = ratio * electricMultiplier;
-            mCachedMagneticFieldMultipliersFromPlanets[i] = ratio * magneticMultiplier;
+    public void computeAccelerations(StateArrays states) {
+        mEngine.computeSums(states, mAccelerationCaches);
+
+        if (mRegularization != null) {
+            for (int i = 0; i < states.getCount(); i++) {
+                removePairFields(states, i, false);
+            }
         }
 
-        return states;
+        commitAccelerations(states);
     }
 
-    public void computeAccelerations(Planet[] planets, PlanetState[] actualStates) {
+    /**
+     * Compute the accelerations like {@link #computeAccelerations(StateArrays)} without the
+     * magnetic force, which is given instead as the frequency at which it turns the velocity of
+     * each planet, clockwise when positive.
+     */
+    public void computeAccelerations(StateArrays states, double[] frequencies) {
+        mEngine.computeSums(states, mAccelerationCaches);
+
         double g = mSimulation.getGravityConstant();
 
-        for (int i = 0; i < planets.length; i++) {
-            Planet p0 = planets[i];
-            PlanetState s0 = actualStates[i];
+        for (int i = 0; i < states.getCount(); i++) {
+            if (mRegularization != null) {
+                removePairFields(states, i, false);
+            }
+
             AccelerationCache cache0 = mAccelerationCaches[i];
 
-            for (int j = i + 1; j < planets.length; j++) {
-                Planet p1 = planets[j];
-                PlanetState s1 = actualStates[j];
+            // gravity + electric
+            states.ax[i] = cache0.mGravitySumX * g + mCachedElectricFieldMultipliersFromPlanets[i] * cache0.mElectricSumX;
+            states.ay[i] = cache0.mGravitySumY * g + mCachedElectricFieldMultipliersFromPlanets[i] * cache0.mElectricSumY;
+
+            frequencies[i] = mCachedMagneticFieldMultipliersFromPlanets[i] * cache0.mMagneticSum;
 
-                AccelerationCache cache1 = mAccelerationCaches[j];
+            cache0.clear();
+        }
+    }
 
-                double dx = s1.x - s0.x;
-                double dy = s1.y - s0.y;
+    /**
+     * Compute the accelerations like {@link #computeAccelerations(StateArrays)} and their
+     * derivatives in time, which are always summed directly. The derivative of the magnetic
+     * force depends on the accelerations themselves, so it is left out.
+     */
+    public void computeAccelerations(StateArrays states, double[] jerkX, double[] jerkY) {
+        if (mJerkEngine == null) {
+            mJerkEngine = new DirectGravityEngine();
+        }
 
-                double ir3 = Math.pow(dx * dx + dy * dy, -1.5);
+        mJerkEngine.computeSumsAndJerks(states, mAccelerationCaches);
 
-                // compute p0 acceleration part
-                cache0.add(dx, dy, ir3, p1, s1);
+        double g = mSimulation.getGravityConstant();
 
-                // compute p1 acceleration part
-                cache1.add(-dx, -dy, ir3, p0, s0);
+        for (int i = 0; i < states.getCount(); i++) {
+            if (mRegularization != null) {
+                removePairFields(states, i, true);
             }
 
-            // gravity + electric + magnetic
-            s0.ax = cache0.mGravitySumX * g
-                    + mCachedElectricFieldMultipliersFromPlanets[i] * cache0.mElectricSumX
-                    + mCachedMagneticFieldMultipliersFromPlanets[i] * s0.vy * cache0.mMagneticSum;
-            s0.ay = cache0.mGravitySumY * g
-                    + mCachedElectricFieldMultipliersFromPlanets[i] * cache0.mElectricSumY
-                    - mCachedMagneticFieldMultipliersFromPlanets[i] * s0.vx * cache0.mMagneticSum;
+            AccelerationCache cache0 = mAccelerationCaches[i];
 
-            cache0.clear();
+            jerkX[i] = cache0.mGravityJerkX * g + mCachedElectricFieldMultipliersFromPlanets[i] * cache0.mElectricJerkX;
+            jerkY[i] = cache0.mGravityJerkY * g + mCachedElectricFieldMultipliersFromPlanets[i] * cache0.mElectricJerkY;
         }
+
+        commitAccelerations(states);
     }
 
-    @Override
-    public double getPotentialEnergy() {
-        // TODO: 23/11/2017 Compute potential energy from all three forces
-        return 0;
+    /**
+     * Compute the accelerations and their derivatives in time like
+     * {@link #computeAccelerations(StateArrays, double[], double[])}, but only for the given
+     * planets. The other planets are only the sources of the fields.
+     */
+    public void computeAccelerations(StateArrays states, int[] planets, int planetCount,
+                                     double[] jerkX, double[] jerkY) {
+        if (mJerkEngine == null) {
+            mJerkEngine = new DirectGravityEngine();
+        }
+
+        mJerkEngine.computeSumsAndJerks(states, planets, planetCount, mAccelerationCaches);
+
+        double g = mSimulation.getGravityConstant();
+
+        for (int k = 0; k < planetCount; k++) {
+            int i = planets[k];
+
+            if (mRegularization != null) {
+                removePairFields(states, i, true);
+            }
+
+            AccelerationCache cache0 = mAccelerationCaches[i];
+
+            jerkX[i] = cache0.mGravityJerkX * g + mCachedElectricFieldMultipliersFromPlanets[i] * cache0.mElectricJerkX;
+            jerkY[i] = cache0.mGravityJerkY * g + mCachedElectricFieldMultipliersFromPlanets[i] * cache0.mElectricJerkY;
+
+            commitAcceleration(states, i, g);
+        }
     }
 
-    private static void debug(String msg) {
-        System.out.println(TAG + "/D " + msg);
+    /**
+     * Subtract the fields of the other planet of the pair of the planet from its cache, because
+     * the forces inside the pairs are integrated by {@link LeviCivitaIntegrator}.
+     */
+    private void removePairFields(StateArrays states, int i, boolean jerks) {
+        int j = mRegularization.getPartner(i);
+
+        if (j < 0) return;
+
+        double dx = states.x[j] - states.x[i];
+        double dy = states.y[j] - states.y[i];
+
+        double ir2 = 1.0 / (dx * dx + dy * dy);
+        double ir3 = ir2 * Math.sqrt(ir2);
+
+        AccelerationCache cache0 = mAccelerationCaches[i];
+
+        // the negative inverse cube takes back the fields that the engine added, but the
+        // potential energy of the pair is kept
+        cache0.add(dx, dy, -ir3, 0.0, states, j);
+
+        if (jerks) {
+            cache0.addJerk(dx, dy, states.vx[j] - states.vx[i], states.vy[j] - states.vy[i],
+                    ir2, -ir3, states.mass[j], states.charge[j]);
+        }
     }
 
-    private static void info(String msg) {
-        System.out.println(TAG + "/I " + msg);
+    /**
+     * Add the forces between the two planets of a pair, times the sign, to their accelerations,
+     * and the derivatives in time of the forces to the jerks if they are given. When the
+     * frequencies are given, the magnetic force is added to them instead of the accelerations,
+     * like in {@link #computeAccelerations(StateArrays, double[])}. It is used by
+     * {@link LeviCivitaIntegrator} to take the forces inside its pairs out of the accelerations
+     * kept from the last step, and to put them back, without computing all the fields again.
+     */
+    void addPairForces(StateArrays states, int i, int j, double sign,
+                       double[] jerkX, double[] jerkY, double[] frequencies) {
+        addPairForce(states, i, j, sign, jerkX, jerkY, frequencies);
+        addPairForce(states, j, i, sign, jerkX, jerkY, frequencies);
     }
 
-    private static class AccelerationCache {
+    private void addPairForce(StateArrays states, int i, int j, double sign,
+                              double[] jerkX, double[] jerkY, double[] frequencies) {
+        double dx = states.x[j] - states.x[i];
+        double dy = states.y[j] - states.y[i];
+
+        double ir2 = 1.0 / (dx * dx + dy * dy);
+        double ir3 = sign * ir2 * Math.sqrt(ir2);
+
+        AccelerationCache cache0 = mAccelerationCaches[i];
 
-        private double mGravitySumX;
-        private double mGravitySumY;
+        cache0.add(dx, dy, ir3, 0.0, states, j);
 
-        private double mElectricSumX;
-        private double mElectricSumY;
+        double g = mSimulation.getGravityConstant();
+        double electric = mCachedElectricFieldMultipliersFromPlanets[i];
+        double frequency = mCachedMagneticFieldMultipliersFromPlanets[i] * cache0.mMagneticSum;
 
-        private double mMagneticSum;
+        states.ax[i] += cache0.mGravitySumX * g + electric * cache0.mElectricSumX;
+        states.ay[i] += cache0.mGravitySumY * g + electric * cache0.mElectricSumY;
 
-        AccelerationCache() {
+        if (frequencies != null) {
+            frequencies[i] += frequency;
+        } else {
+            states.ax[i] += frequency * states.vy[i];
+            states.ay[i] -= frequency * states.vx[i];
         }
 
-        void clear() {
-            mGravitySumX = mGravitySumY = mElectricSumX = mElectricSumY = mMagneticSum = 0;
+        if (jerkX != null) {
+            cache0.addJerk(dx, dy, states.vx[j] - states.vx[i], states.vy[j] - states.vy[i],
+                    ir2, ir3, states.mass[j], states.charge[j]);
+
+            jerkX[i] += cache0.mGravityJerkX * g + electric * cache0.mElectricJerkX;
+            jerkY[i] += cache0.mGravityJerkY * g + electric * cache0.mElectricJerkY;
+        }
+
+        cache0.clear();
+    }
+
+    /**
+     * Multiply the sums of the caches by the constants to give the accelerations, and clear the
+     * caches.
+     */
+    private void commitAccelerations(StateArrays states) {
+        double g = mSimulation.getGravityConstant();
+
+        for (int i = 0; i < states.getCount(); i++) {
+            commitAcceleration(states, i, g);
         }
+    }
+
+    /**
+     * Return the potential energy of the planet in the fields summed in its cache.
+     */
+    private double getPotential(StateArrays states, int i, double g) {
+        AccelerationCache cache0 = mAccelerationCaches[i];
 
-        void add(double dx, double dy, double ir3, Planet p,
-                 PlanetState state) {
-            double mass = ir3 * p.getMass();
-            double charge = ir3 * p.getCharge();
+        return states.mass[i] * (cache0.mGravityPotential * g
+                + mCachedElectricFieldMultipliersFromPlanets[i] * cache0.mElectricPotential);
+    }
+
+    private void commitAcceleration(StateArrays states, int i, double g) {
+        AccelerationCache cache0 = mAccelerationCaches[i];
 
-            mGravitySumX += mass * dx;
-            mGravitySumY += mass * dy;
+        // gravity + electric + magnetic
+        states.ax[i] = cache0.mGravitySumX * g
+                + mCachedElectricFieldMultipliersFromPlanets[i] * cache0.mElectricSumX
+                + mCachedMagneticFieldMultipliersFromPlanets[i] * states.vy[i] * cache0.mMagneticSum;
+        states.ay[i] = cache0.mGravitySumY * g
+                + mCachedElectricFieldMultipliersFromPlanets[i] * cache0.mElectricSumY
+                - mCachedMagneticFieldMultipliersFromPlanets[i] * states.vx[i] * cache0.mMagneticSum;
 
-            mElectricSumX += charge * dx;
-            mElectricSumY += charge * dy;
+        cache0.clear();
+    }
+
+    /**
+     * Return the potential energy of the gravity and the electric force of the states, with the
+     * fields summed by the engine at their positions, without changing the accelerations. The
+     * magnetic force does no work, so it has no potential energy.
+     */
+    @Override
+    protected double computePotentialEnergy(StateArrays states) {
+        int count = states.getCount();
 
-            mMagneticSum += charge * (state.vx * dy - dx * state.vy);
+        mEngine.computeSums(states, mAccelerationCaches);
+
+        double g = mSimulation.getGravityConstant();
+
+        double potential = 0;
+
+        for (int i = 0; i < count; i++) {
+            potential += getPotential(states, i, g);
+
+            mAccelerationCaches[i].clear();
         }
+
+        return -0.5 * potential;
+    }
+
+    /**
+     * Return the potential energy of the last states, which is computed once for each state.
+     */
+    @Override
+    public double getPotentialEnergy() {
+        return getLastPotentialEnergy();
+    }
+
+    private static void debug(String msg) {
+        System.out.println(TAG + "/D " + msg);
+    }
+
+    private static void info(String msg) {
+        System.out.println(TAG + "/I " + msg);
     }
 }
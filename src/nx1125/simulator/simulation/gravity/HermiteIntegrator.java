@@ -0,0 +1,151 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.DefaultSimulator;
+import nx1125.simulator.simulation.StateArrays;
+import nx1125.simulator.simulation.integrator.Integrator;
+
+/**
+ * The predictor-corrector of Hermite. The planets are predicted to the end of the step with their
+ * accelerations and jerks, which are the derivatives in time of the accelerations, and the
+ * accelerations and jerks computed at the predicted states correct the step to fourth order. The
+ * accelerations and jerks at the predicted states are kept for the next step, so each step costs
+ * one computation of the accelerations.
+ * <p>
+ * When the collisions are enabled, the planets are moved with the constant acceleration that
+ * gives the same position and velocity at the end of the step, so the collisions are found on a
+ * path of second order.
+ */
+public class HermiteIntegrator extends Integrator implements PairForcesListener {
+
+    private final GravitySimulator mSimulator;
+
+    private StateArrays mPredicted;
+
+    private double[] mJerkX = new double[0];
+    private double[] mJerkY = new double[0];
+
+    private double[] mNextJerkX = new double[0];
+    private double[] mNextJerkY = new double[0];
+
+    private boolean mJerksValid;
+
+    public HermiteIntegrator(GravitySimulator simulator) {
+        mSimulator = simulator;
+    }
+
+    @Override
+    public void step(DefaultSimulator simulator, StateArrays states, double time) {
+        int count = states.getCount();
+
+        if (mPredicted == null) {
+            mPredicted = new StateArrays(states);
+
+            int capacity = states.x.length;
+
+            mJerkX = new double[capacity];
+            mJerkY = new double[capacity];
+            mNextJerkX = new double[capacity];
+            mNextJerkY = new double[capacity];
+        }
+
+        if (!mJerksValid) {
+            mSimulator.computeAccelerations(states, mJerkX, mJerkY);
+            mJerksValid = true;
+        }
+
+        double[] x = states.x;
+        double[] y = states.y;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] ax = states.ax;
+        double[] ay = states.ay;
+
+        StateArrays predicted = mPredicted;
+
+        predicted.setState(states);
+
+        double halfTimeSqr = time * time * 0.5;
+        double sixthTimeCube = halfTimeSqr * time / 3.0;
+
+        for (int i = 0; i < count; i++) {
+            predicted.x[i] = x[i] + vx[i] * time + ax[i] * halfTimeSqr + mJerkX[i] * sixthTimeCube;
+            predicted.y[i] = y[i] + vy[i] * time + ay[i] * halfTimeSqr + mJerkY[i] * sixthTimeCube;
+
+            predicted.vx[i] = vx[i] + ax[i] * time + mJerkX[i] * halfTimeSqr;
+            predicted.vy[i] = vy[i] + ay[i] * time + mJerkY[i] * halfTimeSqr;
+        }
+
+        mSimulator.computeAccelerations(predicted, mNextJerkX, mNextJerkY);
+
+        double[] nextAx = predicted.ax;
+        double[] nextAy = predicted.ay;
+
+        double halfTime = time * 0.5;
+        double twelfthTimeSqr = time * time / 12.0;
+
+        boolean collisionEnabled = mSimulator.isCollisionEnabled();
+
+        for (int i = 0; i < count; i++) {
+            double nextVx = vx[i] + (ax[i] + nextAx[i]) * halfTime + (mJerkX[i] - mNextJerkX[i]) * twelfthTimeSqr;
+            double nextVy = vy[i] + (ay[i] + nextAy[i]) * halfTime + (mJerkY[i] - mNextJerkY[i]) * twelfthTimeSqr;
+
+            double dx = (vx[i] + nextVx) * halfTime + (ax[i] - nextAx[i]) * twelfthTimeSqr;
+            double dy = (vy[i] + nextVy) * halfTime + (ay[i] - nextAy[i]) * twelfthTimeSqr;
+
+            if (collisionEnabled) {
+                // the constant acceleration and the initial velocity that end the step with the
+                // same displacement and velocity
+                ax[i] = (nextVx * time - dx) / halfTimeSqr;
+                ay[i] = (nextVy * time - dy) / halfTimeSqr;
+
+                vx[i] = nextVx - ax[i] * time;
+                vy[i] = nextVy - ay[i] * time;
+            } else {
+                x[i] += dx;
+                y[i] += dy;
+
+                vx[i] = nextVx;
+                vy[i] = nextVy;
+
+                ax[i] = nextAx[i];
+                ay[i] = nextAy[i];
+            }
+        }
+
+        if (collisionEnabled) {
+            long collisions = mSimulator.getCollisionCount();
+
+            mSimulator.advancePlanets(time, states);
+
+            if (mSimulator.getCollisionCount() == collisions) {
+                System.arraycopy(nextAx, 0, ax, 0, count);
+                System.arraycopy(nextAy, 0, ay, 0, count);
+            } else {
+                // the accelerations and jerks were predicted with the velocities before the
+                // collisions, and the planets that merged changed the indexes
+                mJerksValid = false;
+            }
+        }
+
+        double[] aux = mJerkX;
+        mJerkX = mNextJerkX;
+        mNextJerkX = aux;
+
+        aux = mJerkY;
+        mJerkY = mNextJerkY;
+        mNextJerkY = aux;
+    }
+
+    @Override
+    public void addPairForces(StateArrays states, int i, int j, double sign) {
+        // the jerks are computed again with the accelerations when they are not valid
+        if (mJerksValid) {
+            mSimulator.addPairForces(states, i, j, sign, mJerkX, mJerkY, null);
+        }
+    }
+
+    @Override
+    public void reset() {
+        mJerksValid = false;
+    }
+}
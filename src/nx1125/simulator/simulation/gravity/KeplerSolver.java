@@ -0,0 +1,97 @@
+package nx1125.simulator.simulation.gravity;
+
+/**
+ * Move a body around a fixed mass along its exact orbit, which may be an ellipse, a parabola or a
+ * hyperbola. The orbit is followed with the universal anomaly, found from the universal Kepler
+ * equation with the method of Laguerre and Conway, which converges even from poor guesses.
+ */
+public class KeplerSolver {
+
+    private static final int MAX_ITERATIONS = 32;
+
+    /**
+     * The degree used by the method of Laguerre.
+     */
+    private static final double LAGUERRE_DEGREE = 5.0;
+
+    private final StumpffFunctions mStumpff = new StumpffFunctions();
+
+    /**
+     * Move the body of the index in the arrays by the time, around a mass at the origin whose
+     * gravity constant times mass is mu.
+     */
+    public void drift(double[] x, double[] y, double[] vx, double[] vy, int i, double mu, double time) {
+        double x0 = x[i];
+        double y0 = y[i];
+        double vx0 = vx[i];
+        double vy0 = vy[i];
+
+        double r0 = Math.hypot(x0, y0);
+
+        if (!(mu > 0) || r0 == 0) {
+            x[i] += vx0 * time;
+            y[i] += vy0 * time;
+            return;
+        }
+
+        double sqrtMu = Math.sqrt(mu);
+
+        // the radial velocity times the radius, divided by the square root of mu
+        double eta = (x0 * vx0 + y0 * vy0) / sqrtMu;
+
+        // the inverse of the semi-major axis, negative for hyperbolas
+        double alpha = 2.0 / r0 - (vx0 * vx0 + vy0 * vy0) / mu;
+        double beta = 1.0 - alpha * r0;
+
+        double target = sqrtMu * time;
+
+        double chi = target / r0;
+
+        for (int k = 0; k < MAX_ITERATIONS; k++) {
+            double chiSqr = chi * chi;
+            double z = alpha * chiSqr;
+
+            mStumpff.compute(z);
+
+            double c = mStumpff.getC();
+            double s = mStumpff.getS();
+
+            double f = eta * chiSqr * c + beta * chiSqr * chi * s + r0 * chi - target;
+            double df = eta * chi * (1.0 - z * s) + beta * chiSqr * c + r0;
+            double ddf = eta * (1.0 - z * c) + beta * chi * (1.0 - z * s);
+
+            double n = LAGUERRE_DEGREE;
+            double root = Math.sqrt(Math.abs((n - 1.0) * (n - 1.0) * df * df - n * (n - 1.0) * f * ddf));
+            double delta = n * f / (df + Math.copySign(root, df));
+
+            chi -= delta;
+
+            if (!(Math.abs(delta) > 1e-15 * Math.abs(chi))) break;
+        }
+
+        double chiSqr = chi * chi;
+        double z = alpha * chiSqr;
+
+        mStumpff.compute(z);
+
+        double c = mStumpff.getC();
+        double s = mStumpff.getS();
+
+        double f = 1.0 - chiSqr / r0 * c;
+        double g = time - chiSqr * chi / sqrtMu * s;
+
+        double nextX = f * x0 + g * vx0;
+        double nextY = f * y0 + g * vy0;
+
+        double r = Math.hypot(nextX, nextY);
+
+        double df = sqrtMu / (r * r0) * (z * s - 1.0) * chi;
+        double dg = 1.0 - chiSqr / r * c;
+
+        x[i] = nextX;
+        y[i] = nextY;
+
+        vx[i] = df * x0 + dg * vx0;
+        vy[i] = df * y0 + dg * vy0;
+    }
+}
@@ -0,0 +1,625 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.DefaultSimulator;
+import nx1125.simulator.simulation.StateArrays;
+import nx1125.simulator.simulation.integrator.Integrator;
+
+import java.util.Arrays;
+
+/**
+ * Move the close pairs of planets in the regularized coordinates of Levi-Civita, and everything
+ * else with another integrator. A pair is made of two planets that are the nearest of each other,
+ * closer than the regularization distance and bound to each other. The other integrator moves
+ * the center of mass of each pair without the forces between its planets, which are the ones
+ * that need tiny steps, so the step can stay large during the encounter.
+ * <p>
+ * The separation of a pair is the square of a complex number u, and the time is stretched by the
+ * distance between the planets. In these coordinates the orbit of the pair is a harmonic
+ * oscillator, which is followed exactly even when the planets almost touch. The pulls of the
+ * other planets, taken as constant over the step, and the magnetic forces between the planets of
+ * the pair are added as kicks in the stretched time.
+ * <p>
+ * The pairs are found again at the beginning of each step. The forces inside the pairs are taken
+ * out of the accelerations kept by the other integrator at the beginning of the step and put back
+ * at the end, so the other integrator does not compute its accelerations again when the pairs
+ * change. Two planets that would touch at the closest
+ * point of their orbit are not regularized when the collisions are enabled, so their collision
+ * is still found by the other integrator.
+ */
+public class LeviCivitaIntegrator extends Integrator {
+
+    /**
+     * The largest phase of the oscillator between two kicks.
+     */
+    private static final double MAX_PHASE = 0.1;
+
+    /**
+     * The most kicks of a pair in a step, for the pairs that orbit many times in a step.
+     */
+    private static final int MAX_KICKS = 1024;
+
+    private static final int MAX_ITERATIONS = 64;
+
+    private final GravitySimulator mSimulator;
+
+    private final Integrator mIntegrator;
+
+    private final double mDistance;
+
+    private final double mGravityConstant;
+
+    private final StumpffFunctions mStumpff = new StumpffFunctions();
+
+    /**
+     * The other planet of the pair of each planet, or -1.
+     */
+    private int[] mPartners;
+
+    private int[] mNearest;
+    private double[] mNearestDistances;
+
+    /**
+     * The planets sorted by their horizontal position, which is kept between the steps because
+     * the order changes little.
+     */
+    private int[] mSorted;
+    private int mSortedCount;
+
+    private int[] mInverseOrder;
+
+    private int mPairCount;
+
+    private int[] mFirstPlanets;
+    private int[] mSecondPlanets;
+
+    /**
+     * The position and velocity of the second planet of each pair relative to the first at the
+     * beginning of the step.
+     */
+    private double[] mPairX;
+    private double[] mPairY;
+    private double[] mPairVx;
+    private double[] mPairVy;
+
+    /**
+     * The gravity constant times the mass of each pair, with the electric force between the
+     * planets.
+     */
+    private double[] mPairStrengths;
+
+    // the pair being advanced, in the regularized coordinates
+    private double mUx;
+    private double mUy;
+    private double mDux;
+    private double mDuy;
+
+    private double mStrength;
+
+    private double mTidalX;
+    private double mTidalY;
+
+    private double mCenterVx;
+    private double mCenterVy;
+
+    private double mFirstFraction;
+    private double mSecondFraction;
+
+    // the magnetic multiplier of each planet times the charge of the other
+    private double mFirstMagnetic;
+    private double mSecondMagnetic;
+
+    // the state of the pair at the stretched time given to evaluate
+    private double mNextUx;
+    private double mNextUy;
+    private double mNextDux;
+    private double mNextDuy;
+
+    public LeviCivitaIntegrator(GravitySimulator simulator, Integrator integrator, double distance,
+                                double gravityConstant) {
+        mSimulator = simulator;
+        mIntegrator = integrator;
+        mDistance = distance;
+        mGravityConstant = gravityConstant;
+    }
+
+    /**
+     * Return the other planet of the pair of the planet in this step, or -1 if the planet is not
+     * in a pair. The forces between the planets of a pair are left out of the accelerations.
+     */
+    public int getPartner(int i) {
+        return mPartners == null ? -1 : mPartners[i];
+    }
+
+    /**
+     * Return the number of pairs in the current step.
+     */
+    public int getPairCount() {
+        return mPairCount;
+    }
+
+    @Override
+    public void step(DefaultSimulator simulator, StateArrays states, double time) {
+        if (mPartners == null) {
+            createCaches(states);
+        }
+
+        findPairs(states);
+
+        for (int k = 0; k < mPairCount; k++) {
+            // the accelerations kept by the integrator were computed with the forces inside the pairs
+            addPairForces(states, mFirstPlanets[k], mSecondPlanets[k], -1.0);
+
+            beginPair(states, k);
+        }
+
+        mIntegrator.step(simulator, states, time);
+
+        for (int k = 0; k < mPairCount; k++) {
+            int i = mFirstPlanets[k];
+            int j = mSecondPlanets[k];
+
+            if (i >= 0 && j >= 0) {
+                endPair(states, k, time);
+
+                addPairForces(states, i, j, 1.0);
+
+                mPartners[i] = -1;
+                mPartners[j] = -1;
+            }
+        }
+
+        mPairCount = 0;
+    }
+
+    /**
+     * Add the forces between the planets of a pair, times the sign, to the accelerations kept by
+     * the other integrator, so it does not compute all the accelerations again when the pairs
+     * change.
+     */
+    private void addPairForces(StateArrays states, int i, int j, double sign) {
+        if (mIntegrator instanceof PairForcesListener) {
+            ((PairForcesListener) mIntegrator).addPairForces(states, i, j, sign);
+        } else {
+            mSimulator.addPairForces(states, i, j, sign, null, null, null);
+        }
+    }
+
+    /**
+     * Pair the planets that are the nearest of each other inside the regularization distance.
+     */
+    private void findPairs(StateArrays states) {
+        int count = states.getCount();
+
+        double[] x = states.x;
+        double[] y = states.y;
+
+        if (mSortedCount != count) {
+            for (int i = 0; i < count; i++) {
+                mSorted[i] = i;
+            }
+
+            mSortedCount = count;
+        }
+
+        for (int a = 1; a < count; a++) {
+            int i = mSorted[a];
+            double xi = x[i];
+
+            int b = a;
+
+            while (b > 0 && x[mSorted[b - 1]] > xi) {
+                mSorted[b] = mSorted[b - 1];
+                b--;
+            }
+
+            mSorted[b] = i;
+        }
+
+        Arrays.fill(mNearest, 0, count, -1);
+        Arrays.fill(mNearestDistances, 0, count, mDistance * mDistance);
+
+        for (int a = 0; a < count; a++) {
+            int i = mSorted[a];
+
+            for (int b = a + 1; b < count; b++) {
+                int j = mSorted[b];
+
+                double dx = x[j] - x[i];
+
+                if (dx > mDistance) break;
+
+                double dy = y[j] - y[i];
+                double distanceSqr = dx * dx + dy * dy;
+
+                if (distanceSqr < mNearestDistances[i]) {
+                    mNearestDistances[i] = distanceSqr;
+                    mNearest[i] = j;
+                }
+
+                if (distanceSqr < mNearestDistances[j]) {
+                    mNearestDistances[j] = distanceSqr;
+                    mNearest[j] = i;
+                }
+            }
+        }
+
+        mPairCount = 0;
+
+        for (int i = 0; i < count; i++) {
+            int j = mNearest[i];
+
+            if (j > i && mNearest[j] == i) {
+                addPair(states, i, j);
+            }
+        }
+    }
+
+    /**
+     * Add the pair if its planets are bound to each other and, when the collisions are enabled,
+     * do not touch in their orbit.
+     */
+    private void addPair(StateArrays states, int i, int j) {
+        double strength = mGravityConstant * (states.mass[i] + states.mass[j])
+                + mSimulator.getElectricMultiplier(i) * states.charge[j]
+                + mSimulator.getElectricMultiplier(j) * states.charge[i];
+
+        if (!(strength > 0)) return;
+
+        double x = states.x[j] - states.x[i];
+        double y = states.y[j] - states.y[i];
+        double vx = states.vx[j] - states.vx[i];
+        double vy = states.vy[j] - states.vy[i];
+
+        double r = Math.hypot(x, y);
+
+        if (r == 0) return;
+
+        double energy = (vx * vx + vy * vy) * 0.5 - strength / r;
+
+        if (!(energy < 0)) return;
+
+        if (mSimulator.isCollisionEnabled()) {
+            double angularMomentum = x * vy - y * vx;
+            double semiLatusRectum = angularMomentum * angularMomentum / strength;
+
+            double eccentricitySqr = 1.0 + 2.0 * energy * semiLatusRectum / strength;
+            double closest = semiLatusRectum / (1.0 + Math.sqrt(Math.max(0.0, eccentricitySqr)));
+
+            if (closest <= states.radius[i] + states.radius[j]) return;
+        }
+
+        int k = mPairCount++;
+
+        mFirstPlanets[k] = i;
+        mSecondPlanets[k] = j;
+
+        mPairX[k] = x;
+        mPairY[k] = y;
+        mPairVx[k] = vx;
+        mPairVy[k] = vy;
+
+        mPairStrengths[k] = strength;
+
+        mPartners[i] = j;
+        mPartners[j] = i;
+    }
+
+    /**
+     * Give both planets of the pair the velocity of its center of mass, so the other integrator
+     * moves them together.
+     */
+    private void beginPair(StateArrays states, int k) {
+        int i = mFirstPlanets[k];
+        int j = mSecondPlanets[k];
+
+        double m0 = states.mass[i];
+        double m1 = states.mass[j];
+        double m = m0 + m1;
+
+        double vx = (m0 * states.vx[i] + m1 * states.vx[j]) / m;
+        double vy = (m0 * states.vy[i] + m1 * states.vy[j]) / m;
+
+        states.vx[i] = states.vx[j] = vx;
+        states.vy[i] = states.vy[j] = vy;
+    }
+
+    /**
+     * Place the planets of the pair around the center of mass moved by the other integrator, with
+     * the separation advanced in the regularized coordinates.
+     */
+    private void endPair(StateArrays states, int k, double time) {
+        int i = mFirstPlanets[k];
+        int j = mSecondPlanets[k];
+
+        double m0 = states.mass[i];
+        double m1 = states.mass[j];
+        double m = m0 + m1;
+
+        double centerX = (m0 * states.x[i] + m1 * states.x[j]) / m;
+        double centerY = (m0 * states.y[i] + m1 * states.y[j]) / m;
+
+        mCenterVx = (m0 * states.vx[i] + m1 * states.vx[j]) / m;
+        mCenterVy = (m0 * states.vy[i] + m1 * states.vy[j]) / m;
+
+        mFirstFraction = m0 / m;
+        mSecondFraction = m1 / m;
+
+        mTidalX = states.ax[j] - states.ax[i];
+        mTidalY = states.ay[j] - states.ay[i];
+
+        mFirstMagnetic = mSimulator.getMagneticMultiplier(i) * states.charge[j];
+        mSecondMagnetic = mSimulator.getMagneticMultiplier(j) * states.charge[i];
+
+        mStrength = mPairStrengths[k];
+
+        double x = mPairX[k];
+        double y = mPairY[k];
+        double vx = mPairVx[k];
+        double vy = mPairVy[k];
+
+        double r = Math.hypot(x, y);
+
+        // u is the square root of the separation and u' is the velocity times the conjugate of u
+        // divided by two
+        mUx = Math.sqrt((r + x) * 0.5);
+        mUy = Math.copySign(Math.sqrt((r - x) * 0.5), y);
+
+        mDux = (vx * mUx + vy * mUy) * 0.5;
+        mDuy = (vy * mUx - vx * mUy) * 0.5;
+
+        boolean perturbed = mTidalX != 0 || mTidalY != 0 || mFirstMagnetic != 0 || mSecondMagnetic != 0;
+
+        double s = findStretchedTime(time);
+
+        if (perturbed) {
+            double phase = Math.sqrt(-0.5 * computeEnergy()) * Math.abs(s);
+            int kicks = (int) Math.min(MAX_KICKS, Math.max(1.0, Math.ceil(phase / MAX_PHASE)));
+
+            double ds = s / kicks;
+            double elapsed = 0;
+
+            for (int n = 0; n < kicks; n++) {
+                kick(ds * 0.5);
+                elapsed += drift(ds);
+                kick(ds * 0.5);
+            }
+
+            // the kicks changed the speed of the stretched time
+            drift(findStretchedTime(time - elapsed));
+        } else {
+            drift(s);
+        }
+
+        r = mUx * mUx + mUy * mUy;
+
+        x = mUx * mUx - mUy * mUy;
+        y = 2.0 * mUx * mUy;
+
+        vx = 2.0 * (mUx * mDux - mUy * mDuy) / r;
+        vy = 2.0 * (mUx * mDuy + mUy * mDux) / r;
+
+        states.x[i] = centerX - mSecondFraction * x;
+        states.y[i] = centerY - mSecondFraction * y;
+        states.x[j] = centerX + mFirstFraction * x;
+        states.y[j] = centerY + mFirstFraction * y;
+
+        states.vx[i] = mCenterVx - mSecondFraction * vx;
+        states.vy[i] = mCenterVy - mSecondFraction * vy;
+        states.vx[j] = mCenterVx + mFirstFraction * vx;
+        states.vy[j] = mCenterVy + mFirstFraction * vy;
+    }
+
+    /**
+     * Return the energy of the separation per unit of reduced mass.
+     */
+    private double computeEnergy() {
+        double r = mUx * mUx + mUy * mUy;
+
+        return (2.0 * (mDux * mDux + mDuy * mDuy) - mStrength) / r;
+    }
+
+    /**
+     * Change u' by the pulls of the other planets and the magnetic forces between the planets of
+     * the pair, over the stretched time.
+     */
+    private void kick(double s) {
+        double r = mUx * mUx + mUy * mUy;
+
+        double px = mTidalX;
+        double py = mTidalY;
+
+        if (mFirstMagnetic != 0 || mSecondMagnetic != 0) {
+            double x = mUx * mUx - mUy * mUy;
+            double y = 2.0 * mUx * mUy;
+
+            double vx = 2.0 * (mUx * mDux - mUy * mDuy) / r;
+            double vy = 2.0 * (mUx * mDuy + mUy * mDux) / r;
+
+            double vx0 = mCenterVx - mSecondFraction * vx;
+            double vy0 = mCenterVy - mSecondFraction * vy;
+            double vx1 = mCenterVx + mFirstFraction * vx;
+            double vy1 = mCenterVy + mFirstFraction * vy;
+
+            double ir3 = 1.0 / (r * r * r);
+
+            double field0 = mFirstMagnetic * ir3 * (vx1 * y - x * vy1);
+            double field1 = mSecondMagnetic * ir3 * (x * vy0 - vx0 * y);
+
+            px += vy1 * field1 - vy0 * field0;
+            py += vx0 * field0 - vx1 * field1;
+        }
+
+        double f = r * 0.5 * s;
+
+        // the conjugate of u times the perturbation
+        mDux += (mUx * px + mUy * py) * f;
+        mDuy += (mUx * py - mUy * px) * f;
+    }
+
+    /**
+     * Move the oscillator by the stretched time and return the time that passed.
+     */
+    private double drift(double s) {
+        double t = evaluate(s);
+
+        mUx = mNextUx;
+        mUy = mNextUy;
+        mDux = mNextDux;
+        mDuy = mNextDuy;
+
+        return t;
+    }
+
+    /**
+     * Compute the state of the oscillator after the stretched time, and return the time that
+     * passes meanwhile, which is the integral of the distance.
+     */
+    private double evaluate(double s) {
+        // the square of the frequency of the oscillator, negative when the pair is not bound
+        double beta = -0.5 * computeEnergy();
+
+        double z = beta * s * s;
+
+        mStumpff.compute(z);
+
+        double cos = 1.0 - z * mStumpff.getC();
+        double sinOverFrequency = s * (1.0 - z * mStumpff.getS());
+
+        mNextUx = mUx * cos + mDux * sinOverFrequency;
+        mNextUy = mUy * cos + mDuy * sinOverFrequency;
+        mNextDux = mDux * cos - mUx * beta * sinOverFrequency;
+        mNextDuy = mDuy * cos - mUy * beta * sinOverFrequency;
+
+        mStumpff.compute(4.0 * z);
+
+        double c = mStumpff.getC();
+        double sCube = s * s * s * mStumpff.getS();
+
+        double uu = mUx * mUx + mUy * mUy;
+        double udu = mUx * mDux + mUy * mDuy;
+        double dudu = mDux * mDux + mDuy * mDuy;
+
+        return uu * (s - 2.0 * beta * sCube) + 2.0 * udu * s * s * c + 2.0 * dudu * sCube;
+    }
+
+    /**
+     * Return the stretched time in which the time passes, without the kicks. The time grows with
+     * the stretched time, so the root is bracketed and refined with the method of Newton.
+     */
+    private double findStretchedTime(double time) {
+        if (time == 0) return 0;
+
+        double s = time / (mUx * mUx + mUy * mUy);
+
+        double low;
+        double high;
+
+        if (time > 0) {
+            low = 0;
+            high = s;
+
+            for (int k = 0; k < MAX_ITERATIONS && evaluate(high) < time; k++) {
+                low = high;
+                high *= 2.0;
+            }
+
+            s = high;
+        } else {
+            low = s;
+            high = 0;
+
+            for (int k = 0; k < MAX_ITERATIONS && evaluate(low) > time; k++) {
+                high = low;
+                low *= 2.0;
+            }
+
+            s = low;
+        }
+
+        for (int k = 0; k < MAX_ITERATIONS; k++) {
+            double f = evaluate(s) - time;
+
+            if (f > 0) {
+                high = s;
+            } else {
+                low = s;
+            }
+
+            double next = s - f / (mNextUx * mNextUx + mNextUy * mNextUy);
+
+            if (!(next > low && next < high)) {
+                next = (low + high) * 0.5;
+            }
+
+            if (!(Math.abs(next - s) > 1e-15 * Math.abs(s))) return next;
+
+            s = next;
+        }
+
+        return s;
+    }
+
+    /**
+     * Follow the planets that were moved by a merge or a reordering, and drop the pairs whose
+     * planets merged.
+     */
+    void onReorder(int[] order, int count) {
+        if (mPartners == null) return;
+
+        // the planets that were removed are not in the order
+        Arrays.fill(mInverseOrder, -1);
+
+        for (int i = 0; i < count; i++) {
+            mInverseOrder[order[i]] = i;
+        }
+
+        Arrays.fill(mPartners, -1);
+
+        for (int k = 0; k < mPairCount; k++) {
+            int i = mFirstPlanets[k] < 0 ? -1 : mInverseOrder[mFirstPlanets[k]];
+            int j = mSecondPlanets[k] < 0 ? -1 : mInverseOrder[mSecondPlanets[k]];
+
+            if (i < 0 || j < 0) {
+                i = j = -1;
+            } else {
+                mPartners[i] = j;
+                mPartners[j] = i;
+            }
+
+            mFirstPlanets[k] = i;
+            mSecondPlanets[k] = j;
+        }
+
+        mSortedCount = 0;
+    }
+
+    private void createCaches(StateArrays states) {
+        int capacity = states.x.length;
+
+        mPartners = new int[capacity];
+        Arrays.fill(mPartners, -1);
+
+        mNearest = new int[capacity];
+        mNearestDistances = new double[capacity];
+
+        mSorted = new int[capacity];
+        mInverseOrder = new int[capacity];
+
+        int pairCapacity = capacity / 2;
+
+        mFirstPlanets = new int[pairCapacity];
+        mSecondPlanets = new int[pairCapacity];
+
+        mPairX = new double[pairCapacity];
+        mPairY = new double[pairCapacity];
+        mPairVx = new double[pairCapacity];
+        mPairVy = new double[pairCapacity];
+
+        mPairStrengths = new double[pairCapacity];
+    }
+
+    @Override
+    public void reset() {
+        mIntegrator.reset();
+    }
+}
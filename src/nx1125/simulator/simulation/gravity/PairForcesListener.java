@@ -0,0 +1,17 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.StateArrays;
+
+/**
+ * An integrator that keeps more than the accelerations of the states from the last step, like
+ * their derivatives in time, so it changes what it keeps when {@link LeviCivitaIntegrator} takes
+ * the forces inside its pairs out of the accelerations or puts them back between the steps.
+ */
+interface PairForcesListener {
+
+    /**
+     * Add the forces between the two planets, times the sign, to the accelerations of the states
+     * and to what is kept with them, if anything is kept from the last step.
+     */
+    void addPairForces(StateArrays states, int i, int j, double sign);
+}
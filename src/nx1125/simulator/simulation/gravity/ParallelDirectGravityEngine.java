@@ -0,0 +1,31 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.ParallelPairExecutor;
+import nx1125.simulator.simulation.StateArrays;
+
+/**
+ * The same sums of {@link DirectGravityEngine}, but split between many threads.
+ */
+public class ParallelDirectGravityEngine extends GravityEngine {
+
+    private final ParallelPairExecutor mExecutor;
+
+    private final DirectTileKernel mKernel = new DirectTileKernel();
+
+    public ParallelDirectGravityEngine(int threadCount) {
+        mExecutor = new ParallelPairExecutor(threadCount, DirectTileKernel.COMPONENT_COUNT);
+    }
+
+    @Override
+    public void computeSums(StateArrays states, AccelerationCache[] caches) {
+        int count = states.getCount();
+
+        mKernel.setStates(states);
+
+        double[] sums = mExecutor.execute(count, mKernel);
+
+        mKernel.setStates(null);
+
+        DirectTileKernel.addSums(sums, count, caches);
+    }
+}
@@ -0,0 +1,47 @@
+package nx1125.simulator.simulation.gravity;
+
+/**
+ * The Stumpff functions C(z) and S(z), which give the motion in the universal variables of the
+ * orbits. For positive arguments they come from the cosine and the sine of the square root of the
+ * argument, and for negative arguments from the hyperbolic ones.
+ */
+class StumpffFunctions {
+
+    /**
+     * Below this value of the argument, the functions are computed with their series to avoid
+     * subtracting close numbers.
+     */
+    private static final double SERIES_LIMIT = 0.01;
+
+    private double mC;
+    private double mS;
+
+    /**
+     * Compute both functions of the argument, which are returned by {@link #getC()} and
+     * {@link #getS()}.
+     */
+    void compute(double z) {
+        if (Math.abs(z) < SERIES_LIMIT) {
+            mC = 0.5 - z * (1.0 / 24.0 - z * (1.0 / 720.0 - z * (1.0 / 40320.0 - z / 3628800.0)));
+            mS = 1.0 / 6.0 - z * (1.0 / 120.0 - z * (1.0 / 5040.0 - z * (1.0 / 362880.0 - z / 39916800.0)));
+        } else if (z > 0) {
+            double sqrtZ = Math.sqrt(z);
+
+            mC = (1.0 - Math.cos(sqrtZ)) / z;
+            mS = (sqrtZ - Math.sin(sqrtZ)) / (z * sqrtZ);
+        } else {
+            double sqrtZ = Math.sqrt(-z);
+
+            mC = (Math.cosh(sqrtZ) - 1.0) / -z;
+            mS = (Math.sinh(sqrtZ) - sqrtZ) / (-z * sqrtZ);
+        }
+    }
+
+    double getC() {
+        return mC;
+    }
+
+    double getS() {
+        return mS;
+    }
+}
@@ -0,0 +1,324 @@
+package nx1125.simulator.simulation.gravity;
+
+import nx1125.simulator.simulation.DefaultSimulator;
+import nx1125.simulator.simulation.StateArrays;
+import nx1125.simulator.simulation.integrator.Integrator;
+
+/**
+ * The mixed-variable integrator of Wisdom and Holman, for planets that orbit a central planet
+ * much heavier than them. The motion is split into the orbits of the planets around the central
+ * planet, which are followed exactly by {@link KeplerSolver}, and the small pulls between the
+ * orbiting planets, which are applied as kicks at the beginning and the end of the step. So the
+ * step can be a large fraction of the orbits, instead of the small steps that the straight drifts
+ * of {@link nx1125.simulator.simulation.integrator.LeapfrogIntegrator} need to follow them.
+ * <p>
+ * The orbits are followed in the coordinates of Jacobi, where the central planet is the heaviest
+ * planet and the position of each other planet is relative to the center of mass of the planets
+ * before it, ordered by their distances to the central planet. The kicks are the accelerations
+ * of all the forces, computed with the selected engine and seen in the same coordinates, minus
+ * the accelerations of the orbits themselves. The accelerations at the end of a step are kept for
+ * the next step, so each step costs one computation of the accelerations.
+ * <p>
+ * When the collisions are enabled, the planets are moved again with the constant acceleration
+ * that gives the same position and velocity at the end of the step, like in
+ * {@link HermiteIntegrator}, so the collisions are found on a path of second order that is rough
+ * when the step is long compared to the orbits.
+ */
+public class WisdomHolmanIntegrator extends Integrator {
+
+    private final GravitySimulator mSimulator;
+
+    private final double mGravityConstant;
+
+    private final KeplerSolver mKeplerSolver = new KeplerSolver();
+
+    /**
+     * The indexes of the planets in the order of the coordinates of Jacobi, starting with the
+     * central planet.
+     */
+    private int[] mOrder;
+
+    /**
+     * The sum of the masses of the planets up to each position of the order.
+     */
+    private double[] mInteriorMasses;
+
+    private double[] mDistances;
+
+    private double[] mJacobiX;
+    private double[] mJacobiY;
+    private double[] mJacobiVx;
+    private double[] mJacobiVy;
+
+    private double[] mStartX;
+    private double[] mStartY;
+
+    private double[] mEndAx;
+    private double[] mEndAy;
+
+    private boolean mAccelerationsValid;
+
+    public WisdomHolmanIntegrator(GravitySimulator simulator, double gravityConstant) {
+        mSimulator = simulator;
+        mGravityConstant = gravityConstant;
+    }
+
+    @Override
+    public void step(DefaultSimulator simulator, StateArrays states, double time) {
+        int count = states.getCount();
+
+        if (count == 0) return;
+
+        if (mOrder == null) {
+            createCaches(states);
+        }
+
+        if (!mAccelerationsValid) {
+            mSimulator.computeAccelerations(states);
+            findOrder(states, count);
+
+            mAccelerationsValid = true;
+        }
+
+        boolean collisionEnabled = mSimulator.isCollisionEnabled();
+
+        if (collisionEnabled) {
+            System.arraycopy(states.x, 0, mStartX, 0, count);
+            System.arraycopy(states.y, 0, mStartY, 0, count);
+        }
+
+        toJacobi(states, count);
+
+        kick(states, count, time * 0.5);
+
+        mJacobiX[0] += mJacobiVx[0] * time;
+        mJacobiY[0] += mJacobiVy[0] * time;
+
+        for (int k = 1; k < count; k++) {
+            mKeplerSolver.drift(mJacobiX, mJacobiY, mJacobiVx, mJacobiVy, k,
+                    mGravityConstant * mInteriorMasses[k], time);
+        }
+
+        fromJacobi(mJacobiX, mJacobiY, states.x, states.y, states.mass, count);
+        fromJacobi(mJacobiVx, mJacobiVy, states.vx, states.vy, states.mass, count);
+
+        mSimulator.computeAccelerations(states);
+
+        kick(states, count, time * 0.5);
+
+        fromJacobi(mJacobiVx, mJacobiVy, states.vx, states.vy, states.mass, count);
+
+        if (collisionEnabled) {
+            replay(states, count, time);
+        }
+    }
+
+    /**
+     * Change the velocities in the coordinates of Jacobi by the accelerations of the planets
+     * without the accelerations of their orbits.
+     */
+    private void kick(StateArrays states, int count, double time) {
+        double[] mass = states.mass;
+        double[] ax = states.ax;
+        double[] ay = states.ay;
+
+        int central = mOrder[0];
+
+        // the sums of the masses times the accelerations of the planets before each one
+        double sumAx = mass[central] * ax[central];
+        double sumAy = mass[central] * ay[central];
+
+        for (int k = 1; k < count; k++) {
+            int i = mOrder[k];
+
+            double interiorMass = mInteriorMasses[k - 1];
+
+            double jacobiAx = ax[i] - sumAx / interiorMass;
+            double jacobiAy = ay[i] - sumAy / interiorMass;
+
+            double x = mJacobiX[k];
+            double y = mJacobiY[k];
+
+            double r = Math.hypot(x, y);
+            double f = mGravityConstant * mInteriorMasses[k] / (r * r * r);
+
+            mJacobiVx[k] += (jacobiAx + f * x) * time;
+            mJacobiVy[k] += (jacobiAy + f * y) * time;
+
+            sumAx += mass[i] * ax[i];
+            sumAy += mass[i] * ay[i];
+        }
+    }
+
+    /**
+     * Compute the positions and velocities of the planets in the coordinates of Jacobi. The first
+     * position is the center of mass of all the planets.
+     */
+    private void toJacobi(StateArrays states, int count) {
+        double[] mass = states.mass;
+
+        int central = mOrder[0];
+
+        double sumX = mass[central] * states.x[central];
+        double sumY = mass[central] * states.y[central];
+        double sumVx = mass[central] * states.vx[central];
+        double sumVy = mass[central] * states.vy[central];
+
+        for (int k = 1; k < count; k++) {
+            int i = mOrder[k];
+
+            double interiorMass = mInteriorMasses[k - 1];
+
+            mJacobiX[k] = states.x[i] - sumX / interiorMass;
+            mJacobiY[k] = states.y[i] - sumY / interiorMass;
+            mJacobiVx[k] = states.vx[i] - sumVx / interiorMass;
+            mJacobiVy[k] = states.vy[i] - sumVy / interiorMass;
+
+            sumX += mass[i] * states.x[i];
+            sumY += mass[i] * states.y[i];
+            sumVx += mass[i] * states.vx[i];
+            sumVy += mass[i] * states.vy[i];
+        }
+
+        double totalMass = mInteriorMasses[count - 1];
+
+        mJacobiX[0] = sumX / totalMass;
+        mJacobiY[0] = sumY / totalMass;
+        mJacobiVx[0] = sumVx / totalMass;
+        mJacobiVy[0] = sumVy / totalMass;
+    }
+
+    /**
+     * Compute the vectors of the planets from the vectors in the coordinates of Jacobi, going from
+     * the center of mass of all the planets to the central planet.
+     */
+    private void fromJacobi(double[] jacobiX, double[] jacobiY, double[] x, double[] y,
+                            double[] mass, int count) {
+        double centerX = jacobiX[0];
+        double centerY = jacobiY[0];
+
+        for (int k = count - 1; k > 0; k--) {
+            int i = mOrder[k];
+
+            double fraction = mass[i] / mInteriorMasses[k];
+
+            centerX -= fraction * jacobiX[k];
+            centerY -= fraction * jacobiY[k];
+
+            x[i] = jacobiX[k] + centerX;
+            y[i] = jacobiY[k] + centerY;
+        }
+
+        x[mOrder[0]] = centerX;
+        y[mOrder[0]] = centerY;
+    }
+
+    /**
+     * Choose the heaviest planet as the central planet and order the others by their distances to
+     * it.
+     */
+    private void findOrder(StateArrays states, int count) {
+        double[] mass = states.mass;
+
+        int central = 0;
+
+        for (int i = 1; i < count; i++) {
+            if (mass[i] > mass[central]) {
+                central = i;
+            }
+        }
+
+        mOrder[0] = central;
+        mDistances[0] = 0;
+
+        int k = 1;
+
+        for (int i = 0; i < count; i++) {
+            if (i == central) continue;
+
+            double distance = states.distance(central, i);
+
+            // insertion by the distance, few planets are expected around a central planet
+            int j = k++;
+
+            while (j > 1 && mDistances[j - 1] > distance) {
+                mOrder[j] = mOrder[j - 1];
+                mDistances[j] = mDistances[j - 1];
+                j--;
+            }
+
+            mOrder[j] = i;
+            mDistances[j] = distance;
+        }
+
+        double interiorMass = 0;
+
+        for (k = 0; k < count; k++) {
+            interiorMass += mass[mOrder[k]];
+            mInteriorMasses[k] = interiorMass;
+        }
+    }
+
+    /**
+     * Move the planets again from the beginning of the step with the constant accelerations that
+     * end the step at the same states, stopping at the collisions.
+     */
+    private void replay(StateArrays states, int count, double time) {
+        double[] x = states.x;
+        double[] y = states.y;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] ax = states.ax;
+        double[] ay = states.ay;
+
+        double halfTimeSqr = time * time * 0.5;
+
+        for (int i = 0; i < count; i++) {
+            mEndAx[i] = ax[i];
+            mEndAy[i] = ay[i];
+
+            ax[i] = (vx[i] * time - (x[i] - mStartX[i])) / halfTimeSqr;
+            ay[i] = (vy[i] * time - (y[i] - mStartY[i])) / halfTimeSqr;
+
+            x[i] = mStartX[i];
+            y[i] = mStartY[i];
+
+            vx[i] -= ax[i] * time;
+            vy[i] -= ay[i] * time;
+        }
+
+        mSimulator.advancePlanets(time, states);
+
+        if (states.getCount() == count) {
+            System.arraycopy(mEndAx, 0, ax, 0, count);
+            System.arraycopy(mEndAy, 0, ay, 0, count);
+        } else {
+            // the planets that merged changed the indexes and the masses
+            mAccelerationsValid = false;
+        }
+    }
+
+    private void createCaches(StateArrays states) {
+        int capacity = states.x.length;
+
+        mOrder = new int[capacity];
+        mInteriorMasses = new double[capacity];
+        mDistances = new double[capacity];
+
+        mJacobiX = new double[capacity];
+        mJacobiY = new double[capacity];
+        mJacobiVx = new double[capacity];
+        mJacobiVy = new double[capacity];
+
+        mStartX = new double[capacity];
+        mStartY = new double[capacity];
+
+        mEndAx = new double[capacity];
+        mEndAy = new double[capacity];
+    }
+
+    @Override
+    public void reset() {
+        mAccelerationsValid = false;
+    }
+}
@@ -0,0 +1,135 @@
+package nx1125.simulator.simulation.gravity.mesh;
+
+/**
+ * Iterative radix 2 Fourier transform of square grids. The grid is stored by rows, with the real
+ * and the imaginary parts in separated arrays.
+ */
+public class FastFourierTransform {
+
+    private final int mSize;
+    private final int mLogSize;
+
+    private final int[] mReversedIndexes;
+
+    private final double[] mCos;
+    private final double[] mSin;
+
+    private final double[] mColumnReal;
+    private final double[] mColumnImaginary;
+
+    public FastFourierTransform(int size) {
+        if (size < 2 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("The size must be a power of two: " + size);
+        }
+
+        mSize = size;
+        mLogSize = Integer.numberOfTrailingZeros(size);
+
+        mReversedIndexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            mReversedIndexes[i] = Integer.reverse(i) >>> (32 - mLogSize);
+        }
+
+        mCos = new double[size / 2];
+        mSin = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            double angle = -2.0 * Math.PI * i / size;
+
+            mCos[i] = Math.cos(angle);
+            mSin[i] = Math.sin(angle);
+        }
+
+        mColumnReal = new double[size];
+        mColumnImaginary = new double[size];
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Transform the grid in place. The inverse transform is divided by the count of cells, so
+     * that the inverse of the transform is the original grid.
+     */
+    public void transform(double[] real, double[] imaginary, boolean inverse) {
+        int size = mSize;
+
+        for (int row = 0; row < size; row++) {
+            transform(real, imaginary, row * size, inverse);
+        }
+
+        double[] columnReal = mColumnReal;
+        double[] columnImaginary = mColumnImaginary;
+
+        // the columns are copied so the transform walks contiguous memory
+        for (int column = 0; column < size; column++) {
+            for (int i = 0, index = column; i < size; i++, index += size) {
+                columnReal[i] = real[index];
+                columnImaginary[i] = imaginary[index];
+            }
+
+            transform(columnReal, columnImaginary, 0, inverse);
+
+            for (int i = 0, index = column; i < size; i++, index += size) {
+                real[index] = columnReal[i];
+                imaginary[index] = columnImaginary[i];
+            }
+        }
+
+        if (inverse) {
+            double scale = 1.0 / ((double) size * size);
+
+            for (int i = 0; i < real.length; i++) {
+                real[i] *= scale;
+                imaginary[i] *= scale;
+            }
+        }
+    }
+
+    private void transform(double[] real, double[] imaginary, int offset, boolean inverse) {
+        int size = mSize;
+
+        for (int i = 0; i < size; i++) {
+            int j = mReversedIndexes[i];
+
+            if (i < j) {
+                int a = offset + i;
+                int b = offset + j;
+
+                double t = real[a];
+                real[a] = real[b];
+                real[b] = t;
+
+                t = imaginary[a];
+                imaginary[a] = imaginary[b];
+                imaginary[b] = t;
+            }
+        }
+
+        double sign = inverse ? -1.0 : 1.0;
+
+        for (int length = 2; length <= size; length <<= 1) {
+            int half = length >> 1;
+            int step = size / length;
+
+            for (int start = 0; start < size; start += length) {
+                for (int k = 0; k < half; k++) {
+                    double cos = mCos[k * step];
+                    double sin = sign * mSin[k * step];
+
+                    int a = offset + start + k;
+                    int b = a + half;
+
+                    double re = real[b] * cos - imaginary[b] * sin;
+                    double im = real[b] * sin + imaginary[b] * cos;
+
+                    real[b] = real[a] - re;
+                    imaginary[b] = imaginary[a] - im;
+
+                    real[a] += re;
+                    imaginary[a] += im;
+                }
+            }
+        }
+    }
+}
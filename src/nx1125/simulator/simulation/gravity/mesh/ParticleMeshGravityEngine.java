@@ -0,0 +1,478 @@
+package nx1125.simulator.simulation.gravity.mesh;
+
+import nx1125.simulator.simulation.StateArrays;
+import nx1125.simulator.simulation.gravity.AccelerationCache;
+import nx1125.simulator.simulation.gravity.GravityEngine;
+
+import java.util.Arrays;
+
+/**
+ * Compute the fields from a grid. The mass, the charge and the current of the planets are spread
+ * into the nodes of a grid that covers all the planets, the potentials of the grid are computed
+ * with the Fourier transform and the gradients of the potentials are interpolated back into the
+ * planets.
+ * <p>
+ * The force falls with the square of the distance, which is not the force of the Poisson
+ * equation of the plane, so the potential is the convolution with {@code 1 / r} instead of the
+ * solution of the Poisson equation. The grid is padded to twice its size, so the planets do not
+ * see the images of the grid like in a periodic universe.
+ * <p>
+ * The grid smooths the field at distances of a few nodes. When the short range correction is
+ * enabled, the grid only computes the part of {@code 1 / r} that is smooth and the part that
+ * remains is summed directly between the planets that are close to each other, which is the
+ * P3M method.
+ */
+public class ParticleMeshGravityEngine extends GravityEngine {
+
+    /**
+     * The count of nodes between the planets and the border of the grid, so the assignment and
+     * the gradient of the planets at the border stay inside the grid.
+     */
+    private static final int MARGIN = 3;
+
+    /**
+     * The distance, in splitting radius, after which the short range force is neglected.
+     */
+    private static final double CUTOFF = 4.0;
+
+    private static final double TWO_BY_SQRT_PI = 2.0 / Math.sqrt(Math.PI);
+
+    private final int mGridSize;
+    private final int mPaddedSize;
+
+    private final int mAssignment;
+
+    private final boolean mShortRangeCorrectionEnabled;
+
+    private final double mSplittingRadius;
+
+    private final FastFourierTransform mTransform;
+
+    /**
+     * The transform of 1 / r for a grid with nodes one unit apart. The transform for other
+     * spacing is this one divided by the spacing.
+     */
+    private final double[] mKernel;
+
+    /**
+     * The mass in the real part and the charge in the imaginary part.
+     */
+    private final double[] mMassGrid;
+    private final double[] mChargeGrid;
+
+    /**
+     * The current in x in the real part and the current in y in the imaginary part.
+     */
+    private final double[] mCurrentXGrid;
+    private final double[] mCurrentYGrid;
+
+    private final double[] mWeightsX = new double[3];
+    private final double[] mWeightsY = new double[3];
+
+    private final double[] mGradients = new double[8];
+
+    /**
+     * The part of 1 / r that the grid computes between the nodes around a planet, for the offsets
+     * from -2 to 2 nodes. It gives the potential of each planet on itself, which the grid adds to
+     * the potential at the planet.
+     */
+    private final double[] mSelfKernel = new double[25];
+
+    private double mOriginX;
+    private double mOriginY;
+    private double mSpacing;
+
+    private double mMinX;
+    private double mMinY;
+    private double mSize;
+
+    private int[] mCellStart = new int[0];
+    private int[] mCellPlanets = new int[0];
+    private int[] mPlanetCells = new int[0];
+
+    public ParticleMeshGravityEngine(int gridSize, int assignment, boolean shortRangeCorrectionEnabled,
+                                     double splittingRadius) {
+        if (gridSize <= 2 * MARGIN) {
+            throw new IllegalArgumentException("The grid is too small: " + gridSize);
+        }
+
+        mGridSize = gridSize;
+        mPaddedSize = 2 * gridSize;
+
+        mAssignment = assignment;
+
+        mShortRangeCorrectionEnabled = shortRangeCorrectionEnabled;
+        mSplittingRadius = splittingRadius;
+
+        mTransform = new FastFourierTransform(mPaddedSize);
+
+        int cells = mPaddedSize * mPaddedSize;
+
+        mKernel = new double[cells];
+        mMassGrid = new double[cells];
+        mChargeGrid = new double[cells];
+        mCurrentXGrid = new double[cells];
+        mCurrentYGrid = new double[cells];
+
+        createKernel();
+
+        for (int j = -2; j <= 2; j++) {
+            for (int i = -2; i <= 2; i++) {
+                mSelfKernel[(j + 2) * 5 + i + 2] = getLongRangePotential(Math.sqrt(i * i + j * j));
+            }
+        }
+    }
+
+    private void createKernel() {
+        int size = mPaddedSize;
+
+        double[] real = mKernel;
+        double[] imaginary = new double[real.length];
+
+        for (int j = 1 - mGridSize; j < mGridSize; j++) {
+            for (int i = 1 - mGridSize; i < mGridSize; i++) {
+                int index = ((j + size) % size) * size + (i + size) % size;
+
+                real[index] = getLongRangePotential(Math.sqrt(i * i + j * j));
+            }
+        }
+
+        mTransform.transform(real, imaginary, false);
+
+        // the kernel is real and symmetric, so its transform is real too
+    }
+
+    /**
+     * The part of 1 / r that the grid computes, for r in nodes.
+     */
+    private double getLongRangePotential(double r) {
+        if (mShortRangeCorrectionEnabled) {
+            if (r == 0) return TWO_BY_SQRT_PI / mSplittingRadius;
+
+            return (1.0 - erfc(r / mSplittingRadius)) / r;
+        } else {
+            // the mean of 1 / r inside the cell of the node
+            if (r == 0) return 4.0 * Math.log(1.0 + Math.sqrt(2.0));
+
+            return 1.0 / r;
+        }
+    }
+
+    @Override
+    public void computeSums(StateArrays states, AccelerationCache[] caches) {
+        if (states.getCount() == 0) return;
+
+        computeBounds(states);
+
+        assign(states);
+        computePotentials();
+        interpolate(states, caches);
+
+        if (mShortRangeCorrectionEnabled) {
+            computeShortRangeSums(states, caches);
+        }
+    }
+
+    private void computeBounds(StateArrays states) {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < states.getCount(); i++) {
+            minX = Math.min(minX, states.x[i]);
+            minY = Math.min(minY, states.y[i]);
+            maxX = Math.max(maxX, states.x[i]);
+            maxY = Math.max(maxY, states.y[i]);
+        }
+
+        double size = Math.max(maxX - minX, maxY - minY) * 1.0001 + Double.MIN_NORMAL;
+
+        mMinX = minX;
+        mMinY = minY;
+        mSize = size;
+
+        mSpacing = size / (mGridSize - 1 - 2 * MARGIN);
+
+        double half = 0.5 * (mGridSize - 1) * mSpacing;
+
+        mOriginX = 0.5 * (minX + maxX) - half;
+        mOriginY = 0.5 * (minY + maxY) - half;
+    }
+
+    /**
+     * Compute the weights of the three nodes around the coordinate, which is in nodes, and return
+     * the first node.
+     */
+    private int computeWeights(double u, double[] weights) {
+        if (mAssignment == ParticleMeshSimulation.ASSIGNMENT_CLOUD_IN_CELL) {
+            int node = (int) Math.floor(u);
+            double f = u - node;
+
+            weights[0] = 1.0 - f;
+            weights[1] = f;
+            weights[2] = 0.0;
+
+            return node;
+        } else {
+            int node = (int) Math.floor(u + 0.5);
+            double d = u - node;
+
+            weights[0] = 0.5 * (0.5 - d) * (0.5 - d);
+            weights[1] = 0.75 - d * d;
+            weights[2] = 0.5 * (0.5 + d) * (0.5 + d);
+
+            return node - 1;
+        }
+    }
+
+    private void assign(StateArrays states) {
+        Arrays.fill(mMassGrid, 0.0);
+        Arrays.fill(mChargeGrid, 0.0);
+        Arrays.fill(mCurrentXGrid, 0.0);
+        Arrays.fill(mCurrentYGrid, 0.0);
+
+        int size = mPaddedSize;
+
+        double[] weightsX = mWeightsX;
+        double[] weightsY = mWeightsY;
+
+        for (int n = 0; n < states.getCount(); n++) {
+            double mass = states.mass[n];
+            double charge = states.charge[n];
+            double currentX = charge * states.vx[n];
+            double currentY = charge * states.vy[n];
+
+            int nodeX = computeWeights((states.x[n] - mOriginX) / mSpacing, weightsX);
+            int nodeY = computeWeights((states.y[n] - mOriginY) / mSpacing, weightsY);
+
+            for (int j = 0; j < 3; j++) {
+                int row = (nodeY + j) * size;
+
+                for (int i = 0; i < 3; i++) {
+                    double w = weightsX[i] * weightsY[j];
+
+                    if (w == 0.0) continue;
+
+                    int index = row + nodeX + i;
+
+                    mMassGrid[index] += w * mass;
+                    mChargeGrid[index] += w * charge;
+                    mCurrentXGrid[index] += w * currentX;
+                    mCurrentYGrid[index] += w * currentY;
+                }
+            }
+        }
+    }
+
+    private void computePotentials() {
+        mTransform.transform(mMassGrid, mChargeGrid, false);
+        mTransform.transform(mCurrentXGrid, mCurrentYGrid, false);
+
+        double scale = 1.0 / mSpacing;
+
+        for (int i = 0; i < mKernel.length; i++) {
+            double k = mKernel[i] * scale;
+
+            mMassGrid[i] *= k;
+            mChargeGrid[i] *= k;
+            mCurrentXGrid[i] *= k;
+            mCurrentYGrid[i] *= k;
+        }
+
+        mTransform.transform(mMassGrid, mChargeGrid, true);
+        mTransform.transform(mCurrentXGrid, mCurrentYGrid, true);
+    }
+
+    private void interpolate(StateArrays states, AccelerationCache[] caches) {
+        int size = mPaddedSize;
+
+        double[] weightsX = mWeightsX;
+        double[] weightsY = mWeightsY;
+        double[] gradients = mGradients;
+
+        // the gradient of the four point difference
+        double scale = 1.0 / (12.0 * mSpacing);
+
+        for (int n = 0; n < states.getCount(); n++) {
+            int nodeX = computeWeights((states.x[n] - mOriginX) / mSpacing, weightsX);
+            int nodeY = computeWeights((states.y[n] - mOriginY) / mSpacing, weightsY);
+
+            Arrays.fill(gradients, 0.0);
+
+            double massPotential = 0.0;
+            double chargePotential = 0.0;
+
+            for (int j = 0; j < 3; j++) {
+                for (int i = 0; i < 3; i++) {
+                    double w = weightsX[i] * weightsY[j];
+
+                    if (w == 0.0) continue;
+
+                    int index = (nodeY + j) * size + nodeX + i;
+
+                    massPotential += w * mMassGrid[index];
+                    chargePotential += w * mChargeGrid[index];
+
+                    w *= scale;
+
+                    addGradient(mMassGrid, index, size, w, gradients, 0);
+                    addGradient(mChargeGrid, index, size, w, gradients, 2);
+                    addGradient(mCurrentXGrid, index, size, w, gradients, 4);
+                    addGradient(mCurrentYGrid, index, size, w, gradients, 6);
+                }
+            }
+
+            double self = computeSelfPotential() / mSpacing;
+
+            caches[n].addSums(gradients[0], gradients[1], gradients[2], gradients[3],
+                    gradients[5] - gradients[6],
+                    massPotential - states.mass[n] * self, chargePotential - states.charge[n] * self);
+        }
+    }
+
+    /**
+     * Return the potential at a planet of unit source spread with the current weights, in nodes.
+     */
+    private double computeSelfPotential() {
+        double[] weightsX = mWeightsX;
+        double[] weightsY = mWeightsY;
+
+        double sum = 0.0;
+
+        for (int j0 = 0; j0 < 3; j0++) {
+            for (int i0 = 0; i0 < 3; i0++) {
+                double w0 = weightsX[i0] * weightsY[j0];
+
+                if (w0 == 0.0) continue;
+
+                for (int j1 = 0; j1 < 3; j1++) {
+                    for (int i1 = 0; i1 < 3; i1++) {
+                        sum += w0 * weightsX[i1] * weightsY[j1] * mSelfKernel[(j1 - j0 + 2) * 5 + i1 - i0 + 2];
+                    }
+                }
+            }
+        }
+
+        return sum;
+    }
+
+    private static void addGradient(double[] grid, int index, int size, double weight,
+                                    double[] gradients, int offset) {
+        int row = 2 * size;
+
+        gradients[offset] += weight * (8.0 * (grid[index + 1] - grid[index - 1]) - grid[index + 2] + grid[index - 2]);
+        gradients[offset + 1] += weight * (8.0 * (grid[index + size] - grid[index - size]) - grid[index + row] + grid[index - row]);
+    }
+
+    private void computeShortRangeSums(StateArrays states, AccelerationCache[] caches) {
+        double radius = mSplittingRadius * mSpacing;
+        double cutoff = CUTOFF * radius;
+        double cutoffSqr = cutoff * cutoff;
+
+        // the cells are at least as big as the cutoff, so only the neighbour cells are searched
+        int side = (int) Math.max(1, Math.min(mSize / cutoff, 2 * Math.sqrt(states.getCount()) + 1));
+
+        binPlanets(states, side);
+
+        double inverseRadius = 1.0 / radius;
+
+        for (int cell = 0; cell < side * side; cell++) {
+            int cx = cell % side;
+            int cy = cell / side;
+
+            for (int n = mCellStart[cell]; n < mCellStart[cell + 1]; n++) {
+                int i = mCellPlanets[n];
+
+                double x = states.x[i];
+                double y = states.y[i];
+
+                AccelerationCache cache = caches[i];
+
+                for (int sy = Math.max(0, cy - 1); sy <= Math.min(side - 1, cy + 1); sy++) {
+                    for (int sx = Math.max(0, cx - 1); sx <= Math.min(side - 1, cx + 1); sx++) {
+                        int source = sy * side + sx;
+
+                        for (int m = mCellStart[source]; m < mCellStart[source + 1]; m++) {
+                            int j = mCellPlanets[m];
+
+                            if (j == i) continue;
+
+                            double dx = states.x[j] - x;
+                            double dy = states.y[j] - y;
+
+                            double rSqr = dx * dx + dy * dy;
+
+                            if (rSqr >= cutoffSqr) continue;
+
+                            double r = Math.sqrt(rSqr);
+                            double u = r * inverseRadius;
+
+                            double erfc = erfc(u);
+
+                            // the force of erfc(r / radius) / r
+                            double ir3 = (erfc + TWO_BY_SQRT_PI * u * Math.exp(-u * u)) / (rSqr * r);
+
+                            cache.add(dx, dy, ir3, erfc / r, states, j);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void binPlanets(StateArrays states, int side) {
+        int cells = side * side;
+
+        if (mCellStart.length < cells + 1) {
+            mCellStart = new int[cells + 1];
+        }
+        int count = states.getCount();
+
+        if (mCellPlanets.length < count) {
+            mCellPlanets = new int[count];
+            mPlanetCells = new int[count];
+        }
+
+        int[] start = mCellStart;
+
+        Arrays.fill(start, 0, cells + 1, 0);
+
+        double scale = side / mSize;
+
+        for (int i = 0; i < count; i++) {
+            int cx = Math.min(side - 1, (int) ((states.x[i] - mMinX) * scale));
+            int cy = Math.min(side - 1, (int) ((states.y[i] - mMinY) * scale));
+
+            int cell = cy * side + cx;
+
+            mPlanetCells[i] = cell;
+            start[cell + 1]++;
+        }
+
+        for (int i = 0; i < cells; i++) {
+            start[i + 1] += start[i];
+        }
+
+        for (int i = 0; i < count; i++) {
+            mCellPlanets[start[mPlanetCells[i]]++] = i;
+        }
+
+        // the counting above moved each start to the start of the next cell
+        for (int i = cells; i > 0; i--) {
+            start[i] = start[i - 1];
+        }
+        start[0] = 0;
+    }
+
+    /**
+     * The complementary error function, with a relative error below 1.2e-7 for positive values.
+     */
+    static double erfc(double x) {
+        double t = 1.0 / (1.0 + 0.5 * x);
+
+        return t * Math.exp(-x * x - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+                + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+                + t * (-0.82215223 + t * 0.17087277)))))))));
+    }
+}
@@ -0,0 +1,77 @@
+package nx1125.simulator.simulation.gravity.mesh;
+
+import nx1125.simulator.simulation.Simulator;
+import nx1125.simulator.simulation.gravity.GravitySimulation;
+
+public class ParticleMeshSimulation extends GravitySimulation {
+
+    /**
+     * Spread each planet into the four nodes around it.
+     */
+    public static final int ASSIGNMENT_CLOUD_IN_CELL = 0;
+
+    /**
+     * Spread each planet into the nine nodes around it, which is smoother than
+     * {@link #ASSIGNMENT_CLOUD_IN_CELL}.
+     */
+    public static final int ASSIGNMENT_TRIANGULAR_SHAPED_CLOUD = 1;
+
+    private int mGridSize = 128;
+
+    private int mAssignment = ASSIGNMENT_TRIANGULAR_SHAPED_CLOUD;
+
+    private boolean mShortRangeCorrectionEnabled = false;
+
+    private double mSplittingRadius = 2.0;
+
+    /**
+     * Return the count of nodes in each side of the grid. It must be a power of two.
+     */
+    public int getGridSize() {
+        return mGridSize;
+    }
+
+    public void setGridSize(int gridSize) {
+        mGridSize = gridSize;
+    }
+
+    /**
+     * Return how the planets are spread into the nodes of the grid.
+     */
+    public int getAssignment() {
+        return mAssignment;
+    }
+
+    public void setAssignment(int assignment) {
+        mAssignment = assignment;
+    }
+
+    /**
+     * Return {@code true} if the forces between close planets are summed directly, which corrects
+     * the smoothing of the grid at short distances.
+     */
+    public boolean isShortRangeCorrectionEnabled() {
+        return mShortRangeCorrectionEnabled;
+    }
+
+    public void setShortRangeCorrectionEnabled(boolean shortRangeCorrectionEnabled) {
+        mShortRangeCorrectionEnabled = shortRangeCorrectionEnabled;
+    }
+
+    /**
+     * Return the distance, in nodes of the grid, where the force is split between the grid and the
+     * short range correction.
+     */
+    public double getSplittingRadius() {
+        return mSplittingRadius;
+    }
+
+    public void setSplittingRadius(double splittingRadius) {
+        mSplittingRadius = splittingRadius;
+    }
+
+    @Override
+    public Simulator createSimulator() {
+        return new ParticleMeshSimulator(this);
+    }
+}
@@ -0,0 +1,21 @@
+package nx1125.simulator.simulation.gravity.mesh;
+
+import nx1125.simulator.simulation.gravity.GravityEngine;
+import nx1125.simulator.simulation.gravity.GravitySimulator;
+
+public class ParticleMeshSimulator extends GravitySimulator {
+
+    private final ParticleMeshSimulation mSimulation;
+
+    public ParticleMeshSimulator(ParticleMeshSimulation simulation) {
+        super(simulation);
+
+        mSimulation = simulation;
+    }
+
+    @Override
+    protected GravityEngine createEngine() {
+        return new ParticleMeshGravityEngine(mSimulation.getGridSize(), mSimulation.getAssignment(),
+                mSimulation.isShortRangeCorrectionEnabled(), mSimulation.getSplittingRadius());
+    }
+}
@@ -0,0 +1,236 @@
+package nx1125.simulator.simulation.gravity.vector;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import nx1125.simulator.simulation.ParallelPairExecutor;
+import nx1125.simulator.simulation.StateArrays;
+import nx1125.simulator.simulation.gravity.AccelerationCache;
+import nx1125.simulator.simulation.gravity.GravityEngine;
+
+import java.util.Arrays;
+
+/**
+ * The same sums of the direct engine, but computing many pairs at once with the vector
+ * instructions of the processor. For each planet i, the planets j after it are read in groups as
+ * wide as the vectors of the processor and the planets that do not fill a whole group are
+ * computed one by one.
+ * <p>
+ * This class uses the incubator module {@code jdk.incubator.vector}, which must be added to both
+ * the compiler and the virtual machine with {@code --add-modules jdk.incubator.vector}. The
+ * {@link nx1125.simulator.simulation.gravity.GravitySimulator} only loads this class when the
+ * module is present, so the simulator still runs without it.
+ */
+public class VectorGravityEngine extends GravityEngine implements ParallelPairExecutor.TileKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private static final int COMPONENT_COUNT = 7;
+
+    private static final int ROW_BLOCK_SIZE = 64;
+
+    private final ParallelPairExecutor mExecutor;
+
+    private StateArrays mStates;
+
+    /**
+     * Each component of all planets is contiguous in the accumulator, so the vectors can be
+     * loaded and stored directly.
+     */
+    private int mComponentStride;
+
+    private double[] mSums = new double[0];
+
+    public VectorGravityEngine(int threadCount) {
+        mExecutor = threadCount > 1 ? new ParallelPairExecutor(threadCount, COMPONENT_COUNT) : null;
+    }
+
+    /**
+     * Return the count of doubles in each vector.
+     */
+    public static int getLaneCount() {
+        return SPECIES.length();
+    }
+
+    @Override
+    public void computeSums(StateArrays states, AccelerationCache[] caches) {
+        int count = states.getCount();
+
+        mStates = states;
+        mComponentStride = count;
+
+        double[] sums;
+
+        if (mExecutor != null) {
+            sums = mExecutor.execute(count, this);
+        } else {
+            if (mSums.length < count * COMPONENT_COUNT) {
+                mSums = new double[count * COMPONENT_COUNT];
+            } else {
+                Arrays.fill(mSums, 0, count * COMPONENT_COUNT, 0.0);
+            }
+
+            sums = mSums;
+
+            // many small calls instead of one long call, so the compiler optimizes the kernel
+            // like it does for the threads of the executor
+            for (int i = 0; i < count; i += ROW_BLOCK_SIZE) {
+                computeTile(i, Math.min(count, i + ROW_BLOCK_SIZE), 0, count, sums);
+            }
+        }
+
+        mStates = null;
+
+        for (int i = 0; i < count; i++) {
+            caches[i].addSums(sums[i], sums[count + i], sums[2 * count + i], sums[3 * count + i],
+                    sums[4 * count + i], sums[5 * count + i], sums[6 * count + i]);
+        }
+    }
+
+    @Override
+    public void computeTile(int i0, int i1, int j0, int j1, double[] accumulator) {
+        StateArrays states = mStates;
+
+        double[] x = states.x;
+        double[] y = states.y;
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] mass = states.mass;
+        double[] charge = states.charge;
+
+        int stride = mComponentStride;
+
+        int gravityY = stride;
+        int electricX = 2 * stride;
+        int electricY = 3 * stride;
+        int magnetic = 4 * stride;
+        int gravityPotential = 5 * stride;
+        int electricPotential = 6 * stride;
+
+        int lanes = SPECIES.length();
+
+        for (int i = i0; i < i1; i++) {
+            double x0 = x[i];
+            double y0 = y[i];
+            double m0 = mass[i];
+            double q0 = charge[i];
+            double jx0 = q0 * vx[i];
+            double jy0 = q0 * vy[i];
+
+            DoubleVector gravityXSum = DoubleVector.zero(SPECIES);
+            DoubleVector gravityYSum = gravityXSum;
+            DoubleVector electricXSum = gravityXSum;
+            DoubleVector electricYSum = gravityXSum;
+            DoubleVector magneticSum = gravityXSum;
+            DoubleVector gravityPotentialSum = gravityXSum;
+            DoubleVector electricPotentialSum = gravityXSum;
+
+            int j = Math.max(j0, i + 1);
+            int bound = j + SPECIES.loopBound(Math.max(0, j1 - j));
+
+            for (; j < bound; j += lanes) {
+                DoubleVector dx = DoubleVector.fromArray(SPECIES, x, j).sub(x0);
+                DoubleVector dy = DoubleVector.fromArray(SPECIES, y, j).sub(y0);
+
+                DoubleVector rSqr = dx.mul(dx).add(dy.mul(dy));
+                DoubleVector ir = DoubleVector.broadcast(SPECIES, 1.0).div(rSqr.sqrt());
+                DoubleVector ir3 = ir.mul(ir).mul(ir);
+
+                DoubleVector m1 = DoubleVector.fromArray(SPECIES, mass, j);
+                DoubleVector q1 = DoubleVector.fromArray(SPECIES, charge, j);
+
+                gravityPotentialSum = m1.fma(ir, gravityPotentialSum);
+                electricPotentialSum = q1.fma(ir, electricPotentialSum);
+
+                m1 = m1.mul(ir3);
+                q1 = q1.mul(ir3);
+
+                gravityXSum = m1.fma(dx, gravityXSum);
+                gravityYSum = m1.fma(dy, gravityYSum);
+                electricXSum = q1.fma(dx, electricXSum);
+                electricYSum = q1.fma(dy, electricYSum);
+
+                DoubleVector vx1 = DoubleVector.fromArray(SPECIES, vx, j);
+                DoubleVector vy1 = DoubleVector.fromArray(SPECIES, vy, j);
+
+                magneticSum = q1.fma(vx1.mul(dy).sub(dx.mul(vy1)), magneticSum);
+
+                DoubleVector m = ir3.mul(m0);
+                DoubleVector q = ir3.mul(q0);
+
+                // written out instead of calling a helper, so every vector stays in this loop
+                // and the compiler keeps them in registers instead of allocating them
+                DoubleVector.fromArray(SPECIES, accumulator, j)
+                        .sub(m.mul(dx))
+                        .intoArray(accumulator, j);
+                DoubleVector.fromArray(SPECIES, accumulator, gravityY + j)
+                        .sub(m.mul(dy))
+                        .intoArray(accumulator, gravityY + j);
+                DoubleVector.fromArray(SPECIES, accumulator, electricX + j)
+                        .sub(q.mul(dx))
+                        .intoArray(accumulator, electricX + j);
+                DoubleVector.fromArray(SPECIES, accumulator, electricY + j)
+                        .sub(q.mul(dy))
+                        .intoArray(accumulator, electricY + j);
+                DoubleVector.fromArray(SPECIES, accumulator, magnetic + j)
+                        .sub(ir3.mul(dy.mul(jx0).sub(dx.mul(jy0))))
+                        .intoArray(accumulator, magnetic + j);
+                DoubleVector.fromArray(SPECIES, accumulator, gravityPotential + j)
+                        .add(ir.mul(m0))
+                        .intoArray(accumulator, gravityPotential + j);
+                DoubleVector.fromArray(SPECIES, accumulator, electricPotential + j)
+                        .add(ir.mul(q0))
+                        .intoArray(accumulator, electricPotential + j);
+            }
+
+            double gravityXTotal = gravityXSum.reduceLanes(VectorOperators.ADD);
+            double gravityYTotal = gravityYSum.reduceLanes(VectorOperators.ADD);
+            double electricXTotal = electricXSum.reduceLanes(VectorOperators.ADD);
+            double electricYTotal = electricYSum.reduceLanes(VectorOperators.ADD);
+            double magneticTotal = magneticSum.reduceLanes(VectorOperators.ADD);
+            double gravityPotentialTotal = gravityPotentialSum.reduceLanes(VectorOperators.ADD);
+            double electricPotentialTotal = electricPotentialSum.reduceLanes(VectorOperators.ADD);
+
+            // the planets that do not fill a vector
+            for (; j < j1; j++) {
+                double dx = x[j] - x0;
+                double dy = y[j] - y0;
+
+                double rSqr = dx * dx + dy * dy;
+                double ir = 1.0 / Math.sqrt(rSqr);
+                double ir3 = ir * ir * ir;
+
+                gravityPotentialTotal += mass[j] * ir;
+                electricPotentialTotal += charge[j] * ir;
+
+                double m1 = mass[j] * ir3;
+                double q1 = charge[j] * ir3;
+
+                gravityXTotal += m1 * dx;
+                gravityYTotal += m1 * dy;
+                electricXTotal += q1 * dx;
+                electricYTotal += q1 * dy;
+                magneticTotal += q1 * (vx[j] * dy - dx * vy[j]);
+
+                double m = m0 * ir3;
+                double q = q0 * ir3;
+
+                accumulator[j] -= m * dx;
+                accumulator[gravityY + j] -= m * dy;
+                accumulator[electricX + j] -= q * dx;
+                accumulator[electricY + j] -= q * dy;
+                accumulator[magnetic + j] -= ir3 * (jx0 * dy - dx * jy0);
+                accumulator[gravityPotential + j] += m0 * ir;
+                accumulator[electricPotential + j] += q0 * ir;
+            }
+
+            accumulator[i] += gravityXTotal;
+            accumulator[gravityY + i] += gravityYTotal;
+            accumulator[electricX + i] += electricXTotal;
+            accumulator[electricY + i] += electricYTotal;
+            accumulator[magnetic + i] += magneticTotal;
+            accumulator[gravityPotential + i] += gravityPotentialTotal;
+            accumulator[electricPotential + i] += electricPotentialTotal;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package nx1125.simulator.simulation.integrator;
+
+import nx1125.simulator.simulation.DefaultSimulator;
+import nx1125.simulator.simulation.StateArrays;
+
+/**
+ * An integrator is the algorithm used by {@link DefaultSimulator} to advance the states of the
+ * planets by one step, asking the simulator for the accelerations as many times as it needs.
+ */
+public abstract class Integrator {
+
+    /**
+     * Advance the states by the time. The states start as a copy of the last step, including the
+     * accelerations of the last step.
+     */
+    public abstract void step(DefaultSimulator simulator, StateArrays states, double time);
+
+    /**
+     * Called when the states were changed outside of the integrator, like when the simulator
+     * restarts, so anything kept from the last step is not valid anymore.
+     */
+    public void reset() {
+    }
+
+    /**
+     * Change the velocities by the accelerations during the time, without moving the planets.
+     */
+    protected static void kick(StateArrays states, double time) {
+        double[] vx = states.vx;
+        double[] vy = states.vy;
+        double[] ax = states.ax;
+        double[] ay = states.ay;
+
+        for (int i = 0; i < states.getCount(); i++) {
+            vx[i] += ax[i] * time;
+            vy[i] += ay[i] * time;
+        }
+    }
+}
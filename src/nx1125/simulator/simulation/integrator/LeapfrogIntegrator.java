@@ -0,0 +1,13 @@
+package nx1125.simulator.simulation.integrator;
+
+/**
+ * The kick-drift-kick leapfrog: half a kick, a drift of the whole step and another half a kick.
+ * It is of second order and computes the accelerations once in each step, like
+ * {@link TaylorIntegrator}.
+ */
+public class LeapfrogIntegrator extends SymplecticIntegrator {
+
+    public LeapfrogIntegrator() {
+        super(new double[]{0.5, 0.5}, new double[]{1.0});
+    }
+}
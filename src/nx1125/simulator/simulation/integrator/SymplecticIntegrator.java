@@ -0,0 +1,57 @@
+package nx1125.simulator.simulation.integrator;
+
+import nx1125.simulator.simulation.DefaultSimulator;
+import nx1125.simulator.simulation.StateArrays;
+
+/**
+ * A step made of kicks, which change the velocities by the accelerations, and drifts, which move
+ * the planets in straight lines, alternated with the given fractions of the step. Such steps keep
+ * the energy of the planets oscillating around its true value instead of drifting away from it.
+ * <p>
+ * The accelerations at the end of a step are the accelerations at the beginning of the next
+ * step, so they are kept between the steps and each drift costs one computation of the
+ * accelerations. When the accelerations depend on the velocities, like the magnetic force, they
+ * are computed with the velocities of the middle of the kicks, which is only of first order for
+ * that part of the force.
+ */
+public abstract class SymplecticIntegrator extends Integrator {
+
+    private final double[] mKicks;
+    private final double[] mDrifts;
+
+    private boolean mAccelerationsValid;
+
+    /**
+     * There must be one kick more than the drifts, because the steps start and end with a kick.
+     */
+    protected SymplecticIntegrator(double[] kicks, double[] drifts) {
+        if (kicks.length != drifts.length + 1) {
+            throw new IllegalArgumentException("Expected " + (drifts.length + 1) + " kicks, but there are " + kicks.length);
+        }
+
+        mKicks = kicks;
+        mDrifts = drifts;
+    }
+
+    @Override
+    public void step(DefaultSimulator simulator, StateArrays states, double time) {
+        if (!mAccelerationsValid) {
+            simulator.computeAccelerations(states);
+            mAccelerationsValid = true;
+        }
+
+        for (int k = 0; k < mDrifts.length; k++) {
+            kick(states, mKicks[k] * time);
+
+            simulator.drift(mDrifts[k] * time, states);
+            simulator.computeAccelerations(states);
+        }
+
+        kick(states, mKicks[mDrifts.length] * time);
+    }
+
+    @Override
+    public void reset() {
+        mAccelerationsValid = false;
+    }
+}
@@ -0,0 +1,34 @@
+package nx1125.simulator.simulation.integrator;
+
+import nx1125.simulator.simulation.DefaultSimulator;
+import nx1125.simulator.simulation.StateArrays;
+
+/**
+ * Move each planet with the acceleration of the beginning of the step, as if it was constant
+ * during the whole step. It computes the accelerations only once in each step, but the energy of
+ * the planets drifts quickly unless the step is short.
+ * <p>
+ * The accelerations are computed at the end of each step, where they are the accelerations of the
+ * beginning of the next step, so the last computation of each step is at its final positions.
+ */
+public class TaylorIntegrator extends Integrator {
+
+    private boolean mAccelerationsValid;
+
+    @Override
+    public void step(DefaultSimulator simulator, StateArrays states, double time) {
+        if (!mAccelerationsValid) {
+            simulator.computeAccelerations(states);
+        }
+
+        simulator.advancePlanets(time, states);
+        simulator.computeAccelerations(states);
+
+        mAccelerationsValid = true;
+    }
+
+    @Override
+    public void reset() {
+        mAccelerationsValid = false;
+    }
+}
@@ -0,0 +1,19 @@
+package nx1125.simulator.simulation.integrator;
+
+/**
+ * Three leapfrogs in a row, with the fractions of Yoshida that cancel the errors of third order,
+ * which is also the integrator of Forest and Ruth. It is of fourth order and computes the
+ * accelerations three times in each step. The leapfrog in the middle goes backwards in time.
+ */
+public class YoshidaIntegrator extends SymplecticIntegrator {
+
+    private static final double CBRT_2 = Math.cbrt(2.0);
+
+    private static final double W1 = 1.0 / (2.0 - CBRT_2);
+    private static final double W0 = -CBRT_2 / (2.0 - CBRT_2);
+
+    public YoshidaIntegrator() {
+        super(new double[]{0.5 * W1, 0.5 * (W0 + W1), 0.5 * (W0 + W1), 0.5 * W1},
+                new double[]{W1, W0, W1});
+    }
+}